@@ -0,0 +1,463 @@
+package fr.curie.micmaq.batch;
+
+import fr.curie.micmaq.config.ExperimentSettings;
+import fr.curie.micmaq.config.FieldOfView;
+import fr.curie.micmaq.config.FieldOfViewPrefetcher;
+import fr.curie.micmaq.config.FieldOfViewProvider;
+import fr.curie.micmaq.config.RunOptions;
+import fr.curie.micmaq.detectors.CellposeWorker;
+import fr.curie.micmaq.detectors.Experiment;
+import fr.curie.micmaq.helpers.BackgroundWriter;
+import fr.curie.micmaq.helpers.ExperimentResults;
+import fr.curie.micmaq.helpers.IncrementalResultsWriter;
+import fr.curie.micmaq.helpers.ResultsTableFile;
+import fr.curie.micmaq.helpers.RunCheckpoint;
+import fr.curie.micmaq.helpers.StageTimings;
+import ij.IJ;
+import ij.measure.ResultsTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+
+/**
+ * Analysis of the fields of view of a directory, run by the plugin and by the batch
+ * - the settings of the fields of view to analyse are created on the calling thread by the {@link SettingsFactory} of
+ *   the caller, before the workers start
+ * - the fields of view are read ahead and analysed by the workers of the {@link RunOptions}, their tables are merged in
+ *   field of view order: appended to the tables of the run and at the end of the results files
+ * - the fields of view done by the previous run are read from the checkpoint when the run is resumed (see {@link RunCheckpoint})
+ * - the fields of view that could not be analysed are counted, they are not analysed again by the same run
+ * - the run can be canceled ({@link #cancel()} or {@link Listener#isCanceled()}): the running experiments are interrupted
+ */
+public class AnalysisRun {
+    /**
+     * settings of the experiment of a field of view
+     */
+    public interface SettingsFactory {
+        /**
+         * @param fov field of view
+         * @return settings of the experiment, null if it cannot be created (the run is canceled)
+         */
+        ExperimentSettings create(FieldOfView fov);
+    }
+
+    /**
+     * progress of the run, called on the thread of {@link #analyse(Predicate, boolean)}
+     */
+    public interface Listener {
+        /**
+         * @param index field of view whose results are awaited
+         * @param nbFields number of fields of view of the directory
+         */
+        default void merging(int index, int nbFields) {
+        }
+
+        /**
+         * @param index field of view whose results were appended to the tables of the run
+         */
+        default void merged(int index) {
+        }
+
+        /**
+         * @return true to cancel the run, polled while the results are awaited
+         */
+        default boolean isCanceled() {
+            return false;
+        }
+    }
+
+    private final FieldOfViewProvider provider;
+    private final String workingDirectory;
+    private final String resultDirectory;
+    private final RunOptions options;
+    private final SettingsFactory settingsFactory;
+    private final boolean[] spotChannels;
+    private final String[] spotFiles;
+    private Listener listener = new Listener() {
+    };
+    private boolean summary = false;
+    private boolean onlyPositive4Spots = false;
+    private boolean copyTables = false;
+
+    private RunCheckpoint checkpoint;
+    private final ExperimentResults allResults;
+    private ResultsTable summaryTable;
+    private final HashMap<String, IncrementalResultsWriter> resultsWriters = new HashMap<>();
+    private final HashMap<String, ResultsTable> tables = new HashMap<>(); /*tables of the run by file name*/
+    private final HashSet<String> failedFields = new HashSet<>(); /*not analysed again when the directory is parsed again*/
+    private final ConcurrentHashMap<Integer, Experiment> runningExperiments = new ConcurrentHashMap<>();
+    private volatile int lastField = -1;
+    private volatile Experiment lastExperiment; /*kept for its ROIs*/
+    private volatile boolean canceled = false;
+
+    /**
+     * @param provider fields of view of the directory
+     * @param workingDirectory directory of the images, the images and ROIs are saved in its Results directory
+     * @param resultDirectory directory of the results files, with the Parameters.txt of the run
+     * @param options options of the run
+     * @param settingsFactory settings of the experiments
+     * @param nbSpotChannels number of channels that can have spots tables
+     */
+    public AnalysisRun(FieldOfViewProvider provider, String workingDirectory, String resultDirectory, RunOptions options,
+                       SettingsFactory settingsFactory, int nbSpotChannels) {
+        this.provider = provider;
+        this.workingDirectory = workingDirectory;
+        this.resultDirectory = resultDirectory;
+        this.options = options;
+        this.settingsFactory = settingsFactory;
+        this.spotChannels = new boolean[nbSpotChannels];
+        this.spotFiles = new String[nbSpotChannels];
+        this.allResults = new ExperimentResults(nbSpotChannels);
+    }
+
+    /**
+     * @param s index of spot channel
+     * @param filePrefix prefix of the spots results files of the channel (C2_protein), null if they are not written
+     */
+    public void setSpotChannel(int s, String filePrefix) {
+        spotChannels[s] = true;
+        spotFiles[s] = filePrefix;
+    }
+
+    /**
+     * @param summary true to write the summary of the fields of view analysed after each analysis
+     * @param onlyPositive4Spots true to count only the cells with spots in the summary
+     */
+    public void setSummary(boolean summary, boolean onlyPositive4Spots) {
+        this.summary = summary;
+        this.onlyPositive4Spots = onlyPositive4Spots;
+    }
+
+    /**
+     * @param copyTables true to copy the tables with all their digits after each analysis, to be merged (see {@link ShardMerger})
+     */
+    public void setCopyTables(boolean copyTables) {
+        this.copyTables = copyTables;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * start the run: resume the previous run or start a new one, start the Cellpose workers
+     */
+    public void start() {
+        checkpoint = new RunCheckpoint(resultDirectory, RunCheckpoint.parameterHash(resultDirectory + "Parameters.txt"));
+        if (!options.isResumeRun() || !checkpoint.resume()) {
+            checkpoint.start();
+            new File(resultDirectory + StageTimings.FILE).delete();
+        }
+        if (options.isCellposeWorkers()) CellposeWorker.startSessions();
+    }
+
+    /**
+     * end the run, also when it failed or was canceled
+     */
+    public void close() {
+        CellposeWorker.closeSessions();
+    }
+
+    /**
+     * interrupt the running experiments, {@link #analyse(Predicate, boolean)} returns without waiting for them
+     */
+    public void cancel() {
+        canceled = true;
+    }
+
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    /**
+     * @return tables of all the fields of view merged so far
+     */
+    public ExperimentResults getResults() {
+        return allResults;
+    }
+
+    /**
+     * @return experiment of the last field of view analysed by the last analysis, null if it failed or was already
+     * done: its ROIs can be shown in the RoiManager once the run is over ({@link Experiment#showRois()})
+     */
+    public Experiment getLastExperiment() {
+        return lastExperiment;
+    }
+
+    /**
+     * @return summary written by the last analysis, null if there is no summary
+     */
+    public ResultsTable getSummary() {
+        return summaryTable;
+    }
+
+    /**
+     * analyse the fields of view selected and write the results files
+     * @param selection fields of view of the analysis
+     * @param loadDone true to append the tables of the fields of view done by a previous run, false to skip them
+     *                 (and the fields of view that failed) when the directory is analysed again
+     * @return number of fields of view that could not be analysed
+     */
+    public int analyse(Predicate<FieldOfView> selection, boolean loadDone) {
+        int nbFields = provider.getNbFielOfView();
+        boolean[] selected = new boolean[nbFields];
+        boolean[] done = new boolean[nbFields];
+        ArrayList<Integer> fieldsToRun = new ArrayList<>();
+        for (int index = 0; index < nbFields; index++) {
+            FieldOfView fov = provider.getFieldOfView(index);
+            selected[index] = selection.test(fov);
+            if (!selected[index]) continue;
+            done[index] = checkpoint.isDone(fov);
+            if (!loadDone && (done[index] || failedFields.contains(fieldKey(fov)))) selected[index] = false;
+            else if (!done[index]) fieldsToRun.add(index);
+        }
+        IJ.log(fieldsToRun.size() + " field(s) of view of " + nbFields + " to analyse");
+        lastExperiment = null;
+        lastField = fieldsToRun.isEmpty() ? -1 : fieldsToRun.get(fieldsToRun.size() - 1);
+        /*the settings are created here, the workers do not access the settings of the caller*/
+        HashMap<Integer, ExperimentSettings> fieldSettings = new HashMap<>();
+        for (int index : fieldsToRun) {
+            ExperimentSettings settings = settingsFactory.create(provider.getFieldOfView(index));
+            if (settings == null) {
+                IJ.log("analysis canceled: the experiment of field of view " + (index + 1) + " cannot be created");
+                canceled = true;
+                return 0;
+            }
+            fieldSettings.put(index, settings);
+        }
+//        LAUNCH EXPERIMENTS ON THE WORKERS
+        int nbThreads = Math.max(1, Math.min(options.getNbWorkers(), fieldsToRun.size()));
+        IJ.log("experiments are computed on " + nbThreads + " worker(s)");
+        ArrayList<Integer> usedChannels = new ArrayList<>();
+        if (!fieldsToRun.isEmpty()) {
+            ExperimentSettings settings = fieldSettings.get(fieldsToRun.get(0));
+            provider.setPlaneRanges(settings.getPlaneRanges());
+            for (int c : settings.getUsedChannels()) {
+                if (!settings.isStreamed(c)) usedChannels.add(c); /*projected while read, not read ahead*/
+            }
+        }
+        FieldOfViewPrefetcher prefetcher = new FieldOfViewPrefetcher(provider, fieldsToRun, usedChannels, options.getPrefetchMemoryMB());
+        prefetcher.start();
+        ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+        int failed = 0;
+        try {
+            BackgroundWriter.start(2, 8 * nbThreads);
+            ArrayList<CompletableFuture<ExperimentResults>> futures = new ArrayList<>();
+            for (int index = 0; index < nbFields; index++) {
+                futures.add((!selected[index] || done[index]) ? null : new CompletableFuture<ExperimentResults>());
+            }
+            /*the fields are taken from the read ahead queue in order, each task completes the future of the field it got*/
+            for (int f = 0; f < fieldsToRun.size(); f++) {
+                executor.submit(() -> {
+                    int fieldIndex;
+                    try {
+                        fieldIndex = prefetcher.take();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    try {
+                        prefetcher.checkRead(fieldIndex);
+                        ExperimentResults fieldResults = runExperiment(fieldIndex, fieldSettings.get(fieldIndex));
+                        /*done for a resumed run only once its masks, ROIs and images queued to the writer are written*/
+                        fieldResults.getTimings().whenWritten(() ->
+                                checkpoint.save(provider.getFieldOfView(fieldIndex), fieldIndex, fieldResults));
+                        futures.get(fieldIndex).complete(fieldResults);
+                    } catch (Throwable t) {
+                        futures.get(fieldIndex).completeExceptionally(t);
+                    }
+                });
+            }
+            executor.shutdown();
+//        MERGE RESULTS IN FIELD OF VIEW ORDER
+            for (int index = 0; index < nbFields; index++) {
+                if (!selected[index]) continue;
+                listener.merging(index, nbFields);
+                ExperimentResults fieldResults = null;
+                if (done[index]) {
+                    IJ.log("field of view " + (index + 1) + " was analysed by the previous run");
+                    fieldResults = checkpoint.load(provider.getFieldOfView(index), allResults.getNbSpotChannels());
+                } else {
+                    CompletableFuture<ExperimentResults> future = futures.get(index);
+                    try {
+                        while (!future.isDone()) {
+                            if (canceled || listener.isCanceled()) {
+                                canceled = true;
+                                for (Experiment exp : runningExperiments.values()) exp.interruptProcess();
+                                executor.shutdownNow();
+                                IJ.log("process canceled");
+                                return failed;
+                            }
+                            try {
+                                future.get(200, TimeUnit.MILLISECONDS);
+                            } catch (TimeoutException e) {
+                                //still running
+                            }
+                        }
+                        fieldResults = future.get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        IJ.log("experiment " + (index + 1) + " failed: " + e.getMessage());
+                        e.printStackTrace();
+                    }
+                }
+                if (fieldResults == null) {
+                    failedFields.add(fieldKey(provider.getFieldOfView(index)));
+                    failed++;
+                    continue;
+                }
+                allResults.append(fieldResults);
+                appendResults(fieldResults);
+                if (fieldResults.getTimings() != null) {
+                    try {
+                        fieldResults.getTimings().awaitWrites(); /*the saving time is complete once its files are written*/
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    fieldResults.getTimings().appendTo(resultDirectory + StageTimings.FILE, index, provider.getFieldOfView(index).getFieldname());
+                }
+                IJ.log("field of view " + (index + 1) + "/" + nbFields + " done");
+                listener.merged(index);
+            }
+        } finally {
+            /*also when canceled or failed: the read ahead and the writer must not outlive the analysis*/
+            executor.shutdownNow();
+            prefetcher.stop();
+            provider.setPlaneRanges(null);
+            BackgroundWriter.finish(); /*the masks, ROIs and images of the last fields of view are still being written*/
+        }
+        if (summary) writeSummary();
+        if (copyTables) writeTables();
+        if (failed > 0) IJ.log(failed + " field(s) of view could not be analysed");
+        return failed;
+    }
+
+    /**
+     * field of view identified by its files, the indexes change when the directory is parsed again
+     */
+    private static String fieldKey(FieldOfView fov) {
+        return fov.getFilePaths() + "\t" + fov.getSerieNb();
+    }
+
+    /**
+     * create and run the experiment of one field of view with its own results tables
+     * @param index index of field of view
+     * @param settings settings of the field of view
+     * @return the tables filled by the experiment
+     */
+    private ExperimentResults runExperiment(int index, ExperimentSettings settings) {
+        IJ.log("#############################");
+        IJ.log("##      run experiment " + IJ.pad(index + 1, 3) + "           ##");
+        IJ.log("#############################");
+        ExperimentResults fieldResults = new ExperimentResults(allResults.getNbSpotChannels());
+        StageTimings timings = StageTimings.start();
+        try {
+            Experiment exp = createExperiment(workingDirectory, settings, false, fieldResults, spotChannels);
+            runningExperiments.put(index, exp);
+            exp.run();
+            if (index == lastField) lastExperiment = exp;
+        } finally {
+            runningExperiments.remove(index);
+            provider.getFieldOfView(index).releaseChannels(); /*decoded images and channels read ahead but not used*/
+            timings.add(StageTimings.READ, provider.getFieldOfView(index).takeReadNanos());
+            timings.stop();
+        }
+        fieldResults.setTimings(timings);
+        return fieldResults;
+    }
+
+    /**
+     * create the experiment of a field of view, also used by the previews of the plugin
+     * @param workingDirectory directory of the images
+     * @param settings settings of the field of view
+     * @param preview true for a preview
+     * @param results tables filled by the experiment
+     * @param spotChannels channels with spots tables, by index of spot channel
+     * @return the experiment
+     */
+    public static Experiment createExperiment(String workingDirectory, ExperimentSettings settings, boolean preview,
+                                              ExperimentResults results, boolean[] spotChannels) {
+        boolean nucleus = settings.getNucleiSegmentationChannel() > 0;
+        boolean cell = settings.getCellSegmentationChannel() > 0;
+        results.prepareTables(nucleus, cell);
+        Experiment exp = settings.createExperiment(workingDirectory, settings.getFieldOfView(), results.getCellResults(), results.getNucleusResults(), preview);
+        for (int s = 0; s < spotChannels.length; s++) {
+            if (!spotChannels[s]) continue;
+            results.prepareSpotTables(s, nucleus, cell);
+            exp.setSpotsTables(s, results.getSpotsInNuclei()[s], results.getSpotsInCells()[s], results.getSpotsInCyto()[s]);
+        }
+        return exp;
+    }
+
+    /**
+     * write the rows of a field of view at the end of the results files
+     * @param fieldResults tables of the field of view, already appended to the tables of the run
+     */
+    private void appendResults(ExperimentResults fieldResults) {
+        appendRows(resultDirectory + "Results.xls", fieldResults.getCellResults(), allResults.getCellResults());
+        appendRows(resultDirectory + "Cells-Nuclei-Association.xls", fieldResults.getNucleusResults(), allResults.getNucleusResults());
+        for (int s = 0; s < spotFiles.length; s++) {
+            if (spotFiles[s] == null) continue;
+            if (fieldResults.getSpotsInNuclei() != null && allResults.getSpotsInNuclei() != null)
+                appendRows(resultDirectory + spotFiles[s] + "_SpotsInNuclei.xls", fieldResults.getSpotsInNuclei()[s], allResults.getSpotsInNuclei()[s]);
+            if (fieldResults.getSpotsInCells() != null && allResults.getSpotsInCells() != null)
+                appendRows(resultDirectory + spotFiles[s] + "_SpotsInCells.xls", fieldResults.getSpotsInCells()[s], allResults.getSpotsInCells()[s]);
+            if (fieldResults.getSpotsInCyto() != null && allResults.getSpotsInCyto() != null)
+                appendRows(resultDirectory + spotFiles[s] + "_SpotsInCytoplasms.xls", fieldResults.getSpotsInCyto()[s], allResults.getSpotsInCyto()[s]);
+        }
+    }
+
+    private void appendRows(String path, ResultsTable fieldRows, ResultsTable allRows) {
+        if (fieldRows == null || allRows == null) return;
+        IncrementalResultsWriter writer = resultsWriters.get(path);
+        if (writer == null) {
+            writer = new IncrementalResultsWriter(path);
+            resultsWriters.put(path, writer);
+        }
+        writer.append(fieldRows, allRows, true);
+        tables.put(new File(path).getName(), allRows);
+    }
+
+    /**
+     * write the summary of all the fields of view analysed so far, the fields of view of an experiment are aggregated
+     */
+    private void writeSummary() {
+        summaryTable = ExperimentResults.summarize(allResults.getNucleusResults(), allResults.getCellResults(), onlyPositive4Spots);
+        try {
+            new IncrementalResultsWriter(resultDirectory + ShardMerger.SUMMARY).rewrite(summaryTable, false);
+            if (copyTables) {
+                new File(resultDirectory + ShardMerger.TABLES).mkdirs();
+                ResultsTableFile.write(summaryTable, new File(resultDirectory + ShardMerger.TABLES, ShardMerger.tableName(ShardMerger.SUMMARY)), false);
+            }
+        } catch (IOException e) {
+            IJ.log("the summary could not be written in " + resultDirectory);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * copy the tables of the run with all their digits, to be merged (see {@link ShardMerger})
+     */
+    private void writeTables() {
+        File directory = new File(resultDirectory + ShardMerger.TABLES);
+        directory.mkdirs();
+        for (Map.Entry<String, ResultsTable> entry : tables.entrySet()) {
+            try {
+                ResultsTableFile.write(entry.getValue(), new File(directory, ShardMerger.tableName(entry.getKey())), true);
+            } catch (IOException e) {
+                IJ.log("the table " + entry.getKey() + " could not be copied in " + directory);
+                e.printStackTrace();
+            }
+        }
+    }
+}
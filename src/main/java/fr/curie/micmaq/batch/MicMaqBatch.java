@@ -0,0 +1,323 @@
+package fr.curie.micmaq.batch;
+
+import fr.curie.micmaq.config.ExperimentSettings;
+import fr.curie.micmaq.config.FieldOfView;
+import fr.curie.micmaq.config.FieldOfViewProvider;
+import fr.curie.micmaq.config.MeasureValue;
+import fr.curie.micmaq.config.ParametersFile;
+import fr.curie.micmaq.config.RunOptions;
+import fr.curie.micmaq.segment.SegmentationParameters;
+import ij.IJ;
+import ij.Macro;
+import ij.Prefs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * Batch analysis of a directory from the command line, without graphical interface
+ * - the analysis is defined by a Parameters.txt written by the plugin
+ * - options use the same keys as the macro recorded by the plugin, for example:
+ * <pre>
+ * java -Djava.awt.headless=true -cp ... fr.curie.micmaq.batch.MicMaqBatch parameterpath=/data/plate1/Results/Parameters.txt
+ *      directory=/data/plate1 filePattern=.tif patterns=[_w1][_w2] tileSize=512 tileOverlap=64 workers=4 summary
+ * </pre>
+ * - directory, file pattern, channel patterns, calibration and tiling default to the values of Parameters.txt
+ * - the results are written in directory/Results/ as with the plugin, by the same analysis (see {@link AnalysisRun})
+ * - with shard=i/N only the fields of view of shard i are analysed, their tables are written in directory/Results/shard_i_of_N/
+ * - with merge, the tables of the shards are merged in directory/Results/ (see {@link ShardMerger})
+ * - with watch, the directory is watched after the analysis: the fields of view of the new files are analysed as soon as
+ *   their files are complete and appended to the results files, until no file arrives during watchtimeout minutes
+ */
+public class MicMaqBatch {
+    static final String CELLPOSE_ENV = "ch.epfl.biop.wrappers.cellpose.Cellpose.envDirPath";
+
+    ParametersFile parameters;
+    FieldOfViewProvider provider;
+    String workingDirectory;
+    String resultDirectory;
+    String parameterPath;
+    String filePattern;
+    ArrayList<String> patterns;
+    boolean summary = false;
+    boolean onlyPositive4Spots = false;
+    RunOptions runOptions;
+    int shard = 1;
+    int nbShards = 1;
+    boolean watch = false;
+    int watchTimeoutMinutes = 30;
+    int settleSeconds = 10;
+
+    public static void main(String[] args) {
+        if (System.getProperty("java.awt.headless") == null) System.setProperty("java.awt.headless", "true");
+        if (args.length == 0) {
+            System.out.println("usage: MicMaqBatch parameterpath=<Parameters.txt> [directory=<images>] [filePattern=<pattern>]"
+                    + " [patterns=[<channel 1>][<channel 2>]...] [tileSize=<size> tileOverlap=<overlap> [tileProcesses=<n>]]"
+                    + " [workers=<n>] [readahead=<MB>] [readers=<n>] [streaming] [compressmasks] [spotarchive] [cellposeworker] [watch [watchtimeout=<minutes>] [settle=<seconds>]] [cellposeEnv=<path>] [shard=<i>/<N>] [summary] [positive] [resume]");
+            System.out.println("       MicMaqBatch merge directory=<images> [summary] [positive]");
+            System.exit(2);
+        }
+        String options = options(args);
+        boolean success;
+        if ((" " + options + " ").contains(" merge ")) {
+            success = merge(options);
+        } else {
+            MicMaqBatch batch = new MicMaqBatch();
+            success = batch.setOptions(options) && batch.run();
+        }
+        System.exit(success ? 0 : 1);
+    }
+
+    /**
+     * merge the tables written by the shards of a directory
+     * @param options directory (or parameterpath to take it from Parameters.txt), summary and positive
+     * @return false if nothing could be merged
+     */
+    static boolean merge(String options) {
+        String directory = Macro.getValue(options, "directory", null);
+        String parameterPath = Macro.getValue(options, "parameterpath", null);
+        if (directory == null && parameterPath != null) {
+            try {
+                directory = new ParametersFile(parameterPath).getDirectory();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (directory == null) {
+            IJ.log("the directory to merge is needed: directory=<images>");
+            return false;
+        }
+        return new ShardMerger(directory).merge((" " + options + " ").contains(" summary "),
+                (" " + options + " ").contains(" positive "));
+    }
+
+    /**
+     * join the command line arguments as macro options (values with spaces are put in brackets)
+     */
+    static String options(String[] args) {
+        StringBuilder options = new StringBuilder();
+        for (String arg : args) {
+            int equal = arg.indexOf('=');
+            if (equal > 0 && arg.contains(" ") && !arg.substring(equal + 1).startsWith("["))
+                arg = arg.substring(0, equal + 1) + "[" + arg.substring(equal + 1) + "]";
+            options.append(arg).append(' ');
+        }
+        return options.toString();
+    }
+
+    /**
+     * @param options options with the keys of the macro of the plugin
+     * @return false if the parameters cannot be read
+     */
+    public boolean setOptions(String options) {
+        parameterPath = Macro.getValue(options, "parameterpath", null);
+        if (parameterPath == null) {
+            IJ.log("a parameter file is needed: parameterpath=<Parameters.txt>");
+            return false;
+        }
+        try {
+            parameters = new ParametersFile(parameterPath);
+        } catch (IOException e) {
+            IJ.log("the parameter file " + parameterPath + " could not be read");
+            e.printStackTrace();
+            return false;
+        }
+        workingDirectory = Macro.getValue(options, "directory", parameters.getDirectory());
+        if (workingDirectory == null) {
+            IJ.log("no directory in parameters, it is needed: directory=<images>");
+            return false;
+        }
+        resultDirectory = workingDirectory + "/Results/";
+        String shardOption = Macro.getValue(options, "shard", null);
+        if (shardOption != null) {
+            String[] split = shardOption.split("/");
+            shard = Integer.parseInt(split[0].trim());
+            nbShards = (split.length > 1) ? Integer.parseInt(split[1].trim()) : 0;
+            if (nbShards < 1 || shard < 1 || shard > nbShards) {
+                IJ.log("shard should be i/N with i in range [1,N]: " + shardOption);
+                return false;
+            }
+            resultDirectory += ShardMerger.shardDirectory(shard, nbShards) + "/";
+            IJ.log("shard " + shard + "/" + nbShards + ", tables written in " + resultDirectory);
+        }
+        filePattern = Macro.getValue(options, "filePattern", parameters.getFilePattern());
+        patterns = parameters.getPatterns();
+        String tmp = Macro.getValue(options, "patterns", null);
+        if (tmp != null) {
+            tmp = tmp.replaceAll("\\[", "").replaceAll("\\]", "\t");
+            patterns = new ArrayList<>(Arrays.asList(tmp.split("\t")));
+        }
+
+        runOptions = RunOptions.parse(options);
+        if (Macro.getValue(options, "tileSize", null) == null)
+            runOptions.setTiling(parameters.getTileSize(), parameters.getTileOverlap(), runOptions.getTileProcesses());
+        String cellposeEnv = Macro.getValue(options, "cellposeEnv", null);
+        if (cellposeEnv != null) Prefs.set(CELLPOSE_ENV, cellposeEnv);
+        summary = (" " + options + " ").contains(" summary ");
+        onlyPositive4Spots = (" " + options + " ").contains(" positive ");
+        watch = (" " + options + " ").contains(" watch ");
+        watchTimeoutMinutes = Math.max(1, Integer.parseInt(Macro.getValue(options, "watchtimeout", "30")));
+        settleSeconds = Math.max(1, Integer.parseInt(Macro.getValue(options, "settle", "10")));
+
+        IJ.log("working directory : " + workingDirectory);
+        IJ.log("file pattern : " + filePattern);
+        IJ.log("channel patterns : " + patterns);
+        IJ.log("calibration : " + parameters.getCalibration());
+        provider = new FieldOfViewProvider(workingDirectory);
+        provider.setNbReaders(runOptions.getNbReaders());
+        if (watch) {
+            try {
+                provider.startWatching(settleSeconds * 1000L); /*before the first scan, the acquisition may be writing*/
+            } catch (IOException e) {
+                IJ.log("the directory " + workingDirectory + " cannot be watched: " + e.getMessage());
+                e.printStackTrace();
+                return false;
+            }
+        }
+        scanDirectory();
+        if (provider.getNbFielOfView() == 0 && !watch) {
+            IJ.log("no image found in " + workingDirectory);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * list the fields of view of the directory (the metadata of the files already known are read from the index)
+     */
+    private void scanDirectory() {
+        if (patterns != null && !patterns.isEmpty()) {
+            provider.reorganiseFiles(filePattern, patterns);
+        } else {
+            provider.parseDirectory(filePattern);
+        }
+    }
+
+    /**
+     * analyse all the fields of view and write the results files
+     * @return false if the analysis could not be done
+     */
+    public boolean run() {
+        Instant dateBegin = Instant.now();
+        for (int c = 1; c <= parameters.getNbChannels(); c++) {
+            int type = parameters.getType(c);
+            if ((type == ParametersFile.NUCLEI || type == ParametersFile.CELL)
+                    && parameters.createSegmentationParameters(c) == null) return false;
+        }
+        File resultDir = new File(resultDirectory);
+        if (!resultDir.exists()) resultDir.mkdirs();
+        File parametersCopy = new File(resultDir, "Parameters.txt");
+        if (!parametersCopy.getAbsoluteFile().equals(new File(parameterPath).getAbsoluteFile())) {
+            try {
+                Files.copy(new File(parameterPath).toPath(), parametersCopy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                IJ.log("the parameters could not be copied in " + resultDirectory);
+                e.printStackTrace();
+            }
+        }
+        AnalysisRun analysisRun = new AnalysisRun(provider, workingDirectory, resultDirectory, runOptions, this::createSettings, parameters.getNbChannels());
+        for (int c = 1; c <= parameters.getNbChannels(); c++) {
+            if (parameters.getType(c) != ParametersFile.SPOT) continue;
+            analysisRun.setSpotChannel(c - 1, parameters.createSpotMeasure(c).isSpotThreshold() ? "C" + c + "_" + parameters.getProteinName(c) : null);
+        }
+        analysisRun.setSummary(summary, onlyPositive4Spots);
+        analysisRun.setCopyTables(nbShards > 1);
+        /*only the fields of view of the shard*/
+        Predicate<FieldOfView> selection = fov -> nbShards == 1 || ShardMerger.shardOf(fov, nbShards) == shard;
+        analysisRun.start();
+        int failed;
+        try {
+            failed = analysisRun.analyse(selection, true);
+            if (watch && !analysisRun.isCanceled()) failed += watchDirectory(analysisRun, selection);
+        } finally {
+            analysisRun.close();
+        }
+        if (analysisRun.isCanceled()) return false;
+
+        long duration = Duration.between(dateBegin, Instant.now()).toMillis();
+        IJ.log("Analysis is done. It took " + duration / 1000 + " seconds");
+        return failed == 0;
+    }
+
+    /**
+     * analyse the new files of the directory while they are acquired, until no file arrives during watchtimeout
+     * @return number of fields of view that could not be analysed
+     */
+    private int watchDirectory(AnalysisRun analysisRun, Predicate<FieldOfView> selection) {
+        IJ.log("watching " + workingDirectory + " for new files (stops after " + watchTimeoutMinutes + " minutes without new file)");
+        int failed = 0;
+        try {
+            while (true) {
+                ArrayList<String> newFiles = provider.waitForNewFiles(watchTimeoutMinutes * 60000L, settleSeconds * 1000L);
+                if (newFiles.isEmpty()) break;
+                IJ.log(newFiles.size() + " new file(s): " + newFiles);
+                scanDirectory();
+                failed += analysisRun.analyse(selection, false);
+                if (analysisRun.isCanceled()) break;
+            }
+        } catch (IOException e) {
+            IJ.log("the directory " + workingDirectory + " cannot be watched: " + e.getMessage());
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            provider.stopWatching();
+        }
+        IJ.log("stopped watching " + workingDirectory);
+        return failed;
+    }
+
+    /**
+     * same settings as MicMaq_plugin.createSettings with the parameters read from Parameters.txt
+     * a projection missing for a 3D channel is taken from the quantification parameters
+     * @return settings of the experiment of the field of view, null if Cellpose is not configured
+     */
+    private ExperimentSettings createSettings(FieldOfView fov) {
+        ExperimentSettings settings = new ExperimentSettings(fov);
+        settings.setRunOptions(runOptions);
+        for (int c = 1; c <= parameters.getNbChannels(); c++) {
+            int type = parameters.getType(c);
+            if (type == ParametersFile.NONE) continue;
+            String name = "_C" + c + "_" + parameters.getProteinName(c);
+            if (type == ParametersFile.NUCLEI || type == ParametersFile.CELL) {
+                SegmentationParameters params = parameters.createSegmentationParameters(c);
+                if (params.getMethod() == SegmentationParameters.CELLPOSE && Prefs.get(CELLPOSE_ENV, null) == null) {
+                    IJ.log("Cellpose configuration error: the path to access Cellpose is not defined (option cellposeEnv=<path>)");
+                    return null;
+                }
+                MeasureValue tmp = parameters.createQuantificationMeasure(c, true);
+                params.getMeasurements().setName(name);
+                params.getMeasurements().setSummary(summary);
+                params.setPreprocessMacroQuantif(tmp.getPreprocessMacro());
+                if (!params.isZproject() && fov.getNSlices(c) > 1 && tmp.isZproject())
+                    params.setProjection(tmp.getProjectionMethod(), tmp.getProjectionSliceMin(), tmp.getProjectionSliceMax());
+                if (type == ParametersFile.NUCLEI) {
+                    settings.setSegmentationNuclei(c, params);
+                } else {
+                    settings.setSegmentationCell(c, params);
+                }
+            }
+            MeasureValue tmp = parameters.createQuantificationMeasure(c, false);
+            MeasureValue measureValue = (type == ParametersFile.SPOT) ? parameters.createSpotMeasure(c) : new MeasureValue(false);
+            if (!measureValue.isZproject() && fov.getNSlices(c) > 1 && tmp.isZproject()) {
+                measureValue.setProjection(tmp.getProjectionMethod());
+                measureValue.setProjectionSliceMin(tmp.getProjectionSliceMin());
+                measureValue.setProjectionSliceMax(tmp.getProjectionSliceMax());
+            }
+            measureValue.setMeasure(tmp.getMeasure());
+            measureValue.setSummary(summary);
+            measureValue.setName(name);
+            measureValue.setPreprocessMacroQuantif(tmp.getPreprocessMacro());
+            settings.setQuantification(c, measureValue);
+        }
+        settings.setCalibration(parameters.getCalibration());
+        return settings;
+    }
+}
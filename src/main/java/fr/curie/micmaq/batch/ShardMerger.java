@@ -0,0 +1,173 @@
+package fr.curie.micmaq.batch;
+
+import fr.curie.micmaq.config.FieldOfView;
+import fr.curie.micmaq.helpers.ExperimentResults;
+import fr.curie.micmaq.helpers.IncrementalResultsWriter;
+import fr.curie.micmaq.helpers.ResultsTableFile;
+import ij.IJ;
+import ij.measure.ResultsTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Merge of the results of a directory analysed by several batch jobs (shards)
+ * - each shard writes its tables in Results/shard_i_of_N/, and a copy of them in Results/shard_i_of_N/tables/ in the
+ *   format of {@link ResultsTableFile}
+ * - the copies are concatenated in Results/ in shard order: the .xls files have the precision displayed, the merged
+ *   tables would not be the ones of a run without shards
+ * - the summary is computed again over the merged tables (see {@link ExperimentResults#summarize})
+ */
+public class ShardMerger {
+    public static final String SUMMARY = "summary.xls";
+    public static final String TABLES = "tables";
+    private static final String TABLE_EXTENSION = ".txt";
+    private static final Pattern SHARD_DIRECTORY = Pattern.compile("shard_(\\d+)_of_(\\d+)");
+
+    private final String resultDirectory;
+
+    /**
+     * @param workingDirectory directory of the images (the shards are in its Results directory)
+     */
+    public ShardMerger(String workingDirectory) {
+        this.resultDirectory = workingDirectory + "/Results/";
+    }
+
+    /**
+     * @param shard shard in range [1,nbShards]
+     * @param nbShards number of shards
+     * @return name of the results directory of the shard
+     */
+    public static String shardDirectory(int shard, int nbShards) {
+        return "shard_" + shard + "_of_" + nbShards;
+    }
+
+    /**
+     * shard of a field of view, from the names of its files and its serie
+     * the assignment does not depend on the order of the files nor on where the directory is mounted
+     * @param fov field of view
+     * @param nbShards number of shards
+     * @return shard in range [1,nbShards]
+     */
+    public static int shardOf(FieldOfView fov, int nbShards) {
+        StringBuilder key = new StringBuilder();
+        for (String path : fov.getFilePaths().split(";")) key.append(new File(path).getName()).append(';');
+        key.append(fov.getSerieNb());
+        CRC32 crc = new CRC32();
+        crc.update(key.toString().getBytes(StandardCharsets.UTF_8));
+        return (int) (crc.getValue() % nbShards) + 1;
+    }
+
+    /**
+     * @param name name of a results table (.xls)
+     * @return name of its copy in the tables directory of a shard
+     */
+    public static String tableName(String name) {
+        return name.substring(0, name.length() - ".xls".length()) + TABLE_EXTENSION;
+    }
+
+    /**
+     * concatenate the tables of all shards then compute the summary again
+     * @param summary true to compute the summary even if the shards did not write one
+     * @param onlyPositive4Spots true to count the cells positive for spots in the summary (also set if the shards did)
+     * @return false if no shard was found
+     */
+    public boolean merge(boolean summary, boolean onlyPositive4Spots) {
+        TreeMap<Integer, File> shards = new TreeMap<>();
+        int nbShards = 0;
+        File[] dirs = new File(resultDirectory).listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                Matcher matcher = SHARD_DIRECTORY.matcher(dir.getName());
+                if (!dir.isDirectory() || !matcher.matches()) continue;
+                int n = Integer.parseInt(matcher.group(2));
+                if (nbShards > 0 && n != nbShards) {
+                    IJ.log("shards of different runs found (" + nbShards + " and " + n + " shards): " + dir.getName() + " is ignored");
+                    continue;
+                }
+                nbShards = n;
+                shards.put(Integer.parseInt(matcher.group(1)), dir);
+            }
+        }
+        if (shards.isEmpty()) {
+            IJ.log("no shard found in " + resultDirectory);
+            return false;
+        }
+        for (int s = 1; s <= nbShards; s++) {
+            if (!shards.containsKey(s)) IJ.log("WARNING: shard " + s + "/" + nbShards + " is missing, its fields of view are not in the merged results");
+        }
+        TreeSet<String> tableNames = new TreeSet<>();
+        for (File dir : shards.values()) {
+            String[] names = new File(dir, TABLES).list();
+            if (names == null) {
+                IJ.log("WARNING: " + dir.getName() + " has no " + TABLES + " directory (written by an older version), analyse this shard again to merge it");
+                continue;
+            }
+            for (String name : names) {
+                if (name.endsWith(TABLE_EXTENSION)) tableNames.add(name.substring(0, name.length() - TABLE_EXTENSION.length()) + ".xls");
+            }
+        }
+        if (tableNames.remove(SUMMARY)) summary = true;
+
+        ResultsTable cellResults = null;
+        ResultsTable nucleusResults = null;
+        for (String name : tableNames) {
+            ResultsTable merged = new ResultsTable();
+            for (File dir : shards.values()) {
+                File file = new File(new File(dir, TABLES), tableName(name));
+                if (!file.exists()) continue;
+                try {
+                    ExperimentResults.appendRows(ResultsTableFile.read(file, false), merged, false);
+                } catch (IOException e) {
+                    IJ.log("the table " + file + " could not be read");
+                    e.printStackTrace();
+                }
+            }
+            IJ.log("merge " + name + ": " + merged.size() + " rows from " + shards.size() + " shard(s)");
+            write(merged, name);
+            if (name.equals("Results.xls")) cellResults = merged;
+            if (name.equals("Cells-Nuclei-Association.xls")) nucleusResults = merged;
+        }
+        if (summary) {
+            onlyPositive4Spots |= hasPositiveCounts(shards);
+            write(ExperimentResults.summarize(nucleusResults, cellResults, onlyPositive4Spots), SUMMARY);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the summary of a shard counts the cells positive for spots
+     */
+    private boolean hasPositiveCounts(TreeMap<Integer, File> shards) {
+        for (File dir : shards.values()) {
+            File file = new File(new File(dir, TABLES), tableName(SUMMARY));
+            if (!file.exists()) continue;
+            try {
+                for (String heading : Arrays.asList(ResultsTableFile.read(file, false).getHeadings())) {
+                    if (heading.contains("positive maxima spots nr.") || heading.contains("positive threshold spots nr."))
+                        return true;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return false;
+    }
+
+    private void write(ResultsTable table, String name) {
+        if (table.getHeadings().length == 0) return;
+        try {
+            new IncrementalResultsWriter(resultDirectory + name).rewrite(table, false);
+        } catch (IOException e) {
+            IJ.log("the table " + name + " could not be written in " + resultDirectory);
+            e.printStackTrace();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package fr.curie.micmaq.config;
 
 import fr.curie.micmaq.detectors.*;
 import fr.curie.micmaq.helpers.MeasureCalibration;
+import fr.curie.micmaq.helpers.StreamingProjection;
 import fr.curie.micmaq.segment.Segmentation;
 import fr.curie.micmaq.segment.SegmentationParameters;
 import ij.IJ;
@@ -13,6 +14,7 @@ import ij.plugin.LutLoader;
 import java.awt.image.IndexColorModel;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 public class ExperimentSettings {
     FieldOfView imgs;
@@ -27,6 +29,7 @@ public class ExperimentSettings {
     ArrayList<MeasureValue> quantificationChannels;
     MeasureCalibration calibration;
     String resultsDir;
+    RunOptions options=new RunOptions();
 
 
     public ExperimentSettings(FieldOfView images){
@@ -67,6 +70,59 @@ public class ExperimentSettings {
 
 
 
+    /**
+     * @param options options of the run: projections while reading (see {@link FieldOfView#getProjectedImagePlus}),
+     *                savings and Cellpose tiling given to the detectors
+     */
+    public void setRunOptions(RunOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * @return true if the projections are streamed and all the uses of channel are projections: the stack of channel is never needed
+     */
+    public boolean isStreamed(int channel){
+        if(!options.isStreamProjections()) return false;
+        boolean used=false;
+        if(channel==nucleiSegmentationChannel){
+            if(!nucleiSegmentationParams.isZproject()) return false;
+            used=true;
+        }
+        if(channel==cellSegmentationChannel){
+            if(!cellSegmentationParams.isZproject()) return false;
+            used=true;
+        }
+        MeasureValue m=quantificationChannels.get(channel-1);
+        if(m!=null){
+            if(!m.isZproject()) return false;
+            used=true;
+        }
+        return used;
+    }
+
+    /**
+     * @return channels read by the experiment (segmented or quantified), in range [1,Nchannels]
+     */
+    public ArrayList<Integer> getUsedChannels(){
+        ArrayList<Integer> channels=new ArrayList<>();
+        for(int c=1;c<=quantificationChannels.size();c++){
+            if(c==nucleiSegmentationChannel || c==cellSegmentationChannel || quantificationChannels.get(c-1)!=null) channels.add(c);
+        }
+        return channels;
+    }
+
+    public FieldOfView getFieldOfView() {
+        return imgs;
+    }
+
+    public int getNucleiSegmentationChannel() {
+        return nucleiSegmentationChannel;
+    }
+
+    public int getCellSegmentationChannel() {
+        return cellSegmentationChannel;
+    }
+
     public void setQuantification(int channel, MeasureValue params){
         quantificationChannels.set(channel-1,params);
     }
@@ -101,7 +157,63 @@ public class ExperimentSettings {
         }*/
 
 
-        return new Experiment(nucl, cell, spots,finalResultsCellspot,finalResultsNuclei,calibration);
+        Experiment experiment = new Experiment(nucl, cell, spots,finalResultsCellspot,finalResultsNuclei,calibration);
+        experiment.setShowRois(preview);
+        return experiment;
+    }
+
+    /**
+     * planes needed per channel: a channel only projected on a range of slices (maximum or sum projection) does not
+     * need the other planes
+     * @return planes [first,last] per channel in range [1,Nchannels], channels needing all planes are not in the map
+     */
+    public HashMap<Integer, int[]> getPlaneRanges(){
+        HashMap<Integer, int[]> ranges=new HashMap<>();
+        for(int c=1;c<=quantificationChannels.size();c++){
+            int[] planes=null;
+            boolean all=false;
+            if(c==nucleiSegmentationChannel){
+                SegmentationParameters p=nucleiSegmentationParams;
+                planes=addPlanes(planes,p.isZproject(),p.getProjectionMethodAsString(),p.getProjectionSliceMin(),p.getProjectionSliceMax());
+                all=planes==null;
+            }
+            if(c==cellSegmentationChannel){
+                SegmentationParameters p=cellSegmentationParams;
+                planes=addPlanes(planes,p.isZproject(),p.getProjectionMethodAsString(),p.getProjectionSliceMin(),p.getProjectionSliceMax());
+                all|=planes==null;
+            }
+            MeasureValue m=quantificationChannels.get(c-1);
+            if(m!=null){
+                planes=addPlanes(planes,m.isZproject(),m.getProjectionMethodAsString(),m.getProjectionSliceMin(),m.getProjectionSliceMax());
+                all|=planes==null;
+            }
+            if(!all && planes!=null) ranges.put(c,planes);
+        }
+        return ranges;
+    }
+
+    /**
+     * @return union of planes and of the slices projected, null if all planes are needed
+     * - the best focal slices are searched in the whole stack (see Detector.projection)
+     */
+    private static int[] addPlanes(int[] planes, boolean zproject, String method, int sliceMin, int sliceMax){
+        if(!zproject || sliceMin<0 || sliceMax<sliceMin) return null;
+        if(!method.equals("Maximum projection") && !method.equals("Sum Slices")) return null;
+        if(planes==null) return new int[]{sliceMin,sliceMax};
+        return new int[]{Math.min(planes[0],sliceMin),Math.max(planes[1],sliceMax)};
+    }
+
+    /**
+     * image of a channel for a detector, projected while read if the projections are streamed
+     * the detector keeps its projection settings, the projection of an image with one slice only renames it
+     */
+    private ImagePlus readChannel(int channel, boolean zproject, String method, int sliceMin, int sliceMax){
+        if(options.isStreamProjections() && zproject && imgs.getNSlices(channel)>1){
+            int first=(sliceMin>=0)? sliceMin : 1;
+            int last=(sliceMin>=0)? sliceMax : imgs.getNSlices(channel);
+            return imgs.getProjectedImagePlus(channel, new StreamingProjection(method, first, last));
+        }
+        return imgs.getImagePlus(channel);
     }
 
     public NucleiDetector getNucleiDetector(boolean preview){
@@ -112,7 +224,10 @@ public class ExperimentSettings {
         }
         IJ.log("experiment settings get nuclei" + nucleiSegmentationParams.getSegmentationMacro());
         if(nucleiDetector!=null) return nucleiDetector;
-        nucleiDetector=new NucleiDetector(imgs.getImagePlus(nucleiSegmentationChannel),imgs.getFieldname(), resultsDir, preview);
+        SegmentationParameters p=nucleiSegmentationParams;
+        ImagePlus nucImp=readChannel(nucleiSegmentationChannel,p.isZproject(),p.getProjectionMethodAsString(),p.getProjectionSliceMin(),p.getProjectionSliceMax());
+        nucleiDetector=new NucleiDetector(nucImp,imgs.getFieldname(), resultsDir, preview);
+        int offset=imgs.getFirstPlane(nucleiSegmentationChannel)-1;
         System.out.println("###### Experiment settings : nuclei measures "+nucleiSegmentationParams.getMeasurements().measure);
         nucleiDetector.setMeasurements(nucleiSegmentationParams.getMeasurements().measure);
         nucleiDetector.setNameChannel(nucleiSegmentationParams.getMeasurements().name);
@@ -120,7 +235,7 @@ public class ExperimentSettings {
         if(nucleiSegmentationParams.isZproject()){
             if(nucleiSegmentationParams.getProjectionSliceMin()>=0){
                 //IJ.log("experiments setings nuclei is zproject");
-                nucleiDetector.setzStackParameters(nucleiSegmentationParams.getProjectionMethodAsString(),nucleiSegmentationParams.getProjectionSliceMin(), nucleiSegmentationParams.getProjectionSliceMax());
+                nucleiDetector.setzStackParameters(nucleiSegmentationParams.getProjectionMethodAsString(),nucleiSegmentationParams.getProjectionSliceMin()-offset, nucleiSegmentationParams.getProjectionSliceMax()-offset);
             }else {
                 //IJ.log("experiments setings nuclei is zproject");
                 nucleiDetector.setzStackParameters(nucleiSegmentationParams.getProjectionMethodAsString());
@@ -156,6 +271,8 @@ public class ExperimentSettings {
                     nucleiSegmentationParams.isExcludeOnEdge());
         }
         nucleiDetector.setSavings(nucleiSegmentationParams.isSaveMasks(),nucleiSegmentationParams.isSaveROIs(), nucleiSegmentationParams.isSavePreprocessed());
+        nucleiDetector.setCompressMasks(options.isCompressMasks());
+        nucleiDetector.setCellposeTiling(options.getTileSize(),options.getTileOverlap(),options.getTileProcesses());
         nucleiDetector.setSegmentation(nucleiSegmentationParams.isUserValidation(),preview);
         if(nucleiSegmentationParams.getExpansionRadius()>0) nucleiDetector.setExpandRadius(nucleiSegmentationParams.getExpansionRadius());
 
@@ -172,7 +289,10 @@ public class ExperimentSettings {
         if(cellDetector!=null) {
             return cellDetector;
         }
-        cellDetector = new CellDetector(imgs.getImagePlus(cellSegmentationChannel), imgs.getFieldname(), resultsDir, preview, preview, preview);
+        SegmentationParameters p = cellSegmentationParams;
+        ImagePlus cellImp = readChannel(cellSegmentationChannel, p.isZproject(), p.getProjectionMethodAsString(), p.getProjectionSliceMin(), p.getProjectionSliceMax());
+        cellDetector = new CellDetector(cellImp, imgs.getFieldname(), resultsDir, preview, preview, preview);
+        int offset = imgs.getFirstPlane(cellSegmentationChannel) - 1;
         cellDetector.setMeasurements(cellSegmentationParams.getMeasurements().measure);
         cellDetector.setNameChannel(cellSegmentationParams.getMeasurements().name);
 
@@ -180,7 +300,7 @@ public class ExperimentSettings {
 //        Projection ?
         if (cellSegmentationParams.isZproject()) {
             if (cellSegmentationParams.getProjectionSliceMin()>=0) {
-                cellDetector.setZStackParameters(cellSegmentationParams.getProjectionMethodAsString(), cellSegmentationParams.getProjectionSliceMin(), cellSegmentationParams.getProjectionSliceMax());
+                cellDetector.setZStackParameters(cellSegmentationParams.getProjectionMethodAsString(), cellSegmentationParams.getProjectionSliceMin() - offset, cellSegmentationParams.getProjectionSliceMax() - offset);
             } else {
                 cellDetector.setZStackParameters(cellSegmentationParams.getProjectionMethodAsString());
             }
@@ -222,6 +342,8 @@ public class ExperimentSettings {
 
         }
         cellDetector.setSavings(cellSegmentationParams.isSaveMasks(),cellSegmentationParams.isSaveROIs(), cellSegmentationParams.isSavePreprocessed());
+        cellDetector.setCompressMasks(options.isCompressMasks());
+        cellDetector.setCellposeTiling(options.getTileSize(),options.getTileOverlap(),options.getTileProcesses());
         return cellDetector;
     }
 
@@ -236,7 +358,8 @@ public class ExperimentSettings {
                     MeasureValue measureValue=quantificationChannels.get(i);
                     //IJ.log("exp settings getSpotDetector: macro: "+measureValue.getPreprocessMacro());
                     //IJ.log("exp settings getSpotDetector: macro quantif: "+measureValue.getPreprocessMacroQuantif());
-                    ImagePlus tmpchan=imgs.getImagePlus(i+1);
+                    ImagePlus tmpchan=readChannel(i+1,measureValue.isZproject(),measureValue.getProjectionMethodAsString(),measureValue.getProjectionSliceMin(),measureValue.getProjectionSliceMax());
+                    int offset=imgs.getFirstPlane(i+1)-1;
                     IJ.log("exp settings getSpotDetector: image: "+tmpchan.getNSlices()+" slices");
                     IJ.log("exp settings getSpotDetector: zproject: "+measureValue.isZproject());
                     //System.out.println(tmpchan.getTitle());
@@ -246,7 +369,7 @@ public class ExperimentSettings {
                     if (measureValue.isZproject()) {
                         IJ.log("exp settings getSpotDetector: zproject");
                         if (measureValue.getProjectionSliceMin()>=0) {
-                            tmp.setzStackParameters(measureValue.getProjectionMethodAsString(), measureValue.getProjectionSliceMin(), measureValue.getProjectionSliceMax());
+                            tmp.setzStackParameters(measureValue.getProjectionMethodAsString(), measureValue.getProjectionSliceMin()-offset, measureValue.getProjectionSliceMax()-offset);
                         } else {
                             tmp.setzStackParameters(measureValue.getProjectionMethodAsString());
                         }
@@ -273,6 +396,7 @@ public class ExperimentSettings {
                         tmp.setSaving(false,false, measureValue.isSavePreprocessed());
                     }
 
+                    tmp.setSingleSpotArchive(options.isSingleSpotArchive());
                     tmp.setMeasurements(measureValue.getMeasure());
                     tmp.setPreprocessingMacroQuantif(measureValue.getPreprocessMacroQuantif());
 
@@ -1,10 +1,13 @@
 package fr.curie.micmaq.config;
 
+import fr.curie.micmaq.helpers.StreamingProjection;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.process.ImageProcessor;
 import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
 import loci.formats.meta.IMetadata;
 import loci.plugins.in.ImagePlusReader;
 import loci.plugins.in.ImportProcess;
@@ -16,18 +19,41 @@ import java.io.IOException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 
 public class FieldOfView {
     ArrayList<ImportProcess> channelsImagePlus;
+    ArrayList<FileMetadataIndex.FileMetadata> channelsMetadata;
     ArrayList<Integer> originalChannelNb;
     String fieldname;
     boolean used=true;
     int serieNb=0;
 
     ArrayList<String> channelUserName;
+    HashMap<Integer, ImagePlus> prefetchedChannels;
+    /*images of the files of the field decoded once, all channels, until the channels are released*/
+    HashMap<ImportProcess, ImagePlus> decodedFiles = new HashMap<>();
+    HashSet<Integer> servedChannels = new HashSet<>();
+    /*planes [first,last] (in range [1,NSlices]) to read per channel, the other planes are not read*/
+    HashMap<Integer, int[]> planeRanges;
+    /*uncompressed TIFF files read without Bio-Formats, null for the files that need Bio-Formats*/
+    HashMap<ImportProcess, RawTiffFile> rawTiffFiles = new HashMap<>();
+
+    /**
+     * file read through {@link RawTiffReader}, with the title and dimensions given by Bio-Formats
+     */
+    private static class RawTiffFile {
+        RawTiffReader tiff;
+        String title;
+        int sizeZ;
+        int sizeT;
+    }
+    long readNanos=0;
 
     public FieldOfView(){
         channelsImagePlus=new ArrayList<ImportProcess>();
+        channelsMetadata=new ArrayList<>();
         originalChannelNb=new ArrayList<>();
         channelUserName = new ArrayList<>();
     }
@@ -61,6 +87,7 @@ public class FieldOfView {
             IJ.log("idname: "+process.getIdName()+"\nserieslabel: "+process.getSeriesLabel(serieNb));
             IJ.log("fieldname: "+fieldname);
             channelsImagePlus.add(process);
+            channelsMetadata.add(null);
             originalChannelNb.add(channelNb);
             channelUserName.add(userName);
             //IJ.log("add channel : "+path+"   serieNb:"+serieNb+"    channel:"+channelNb);
@@ -81,6 +108,7 @@ public class FieldOfView {
             IJ.log("getImageName(serieNb)"+importProcess.getOMEMetadata().getImageName(serieNb));
             //IJ.log("getImageName(channelNb)"+importProcess.getOMEMetadata().getImageName(channelNb-1));
             channelsImagePlus.add(importProcess);
+            channelsMetadata.add(null);
             originalChannelNb.add(channelNb);
             //IJ.log("add channel : "+path+"   serieNb:"+serieNb+"    channel:"+channelNb);
         } catch (Exception e) {
@@ -88,6 +116,31 @@ public class FieldOfView {
         }
     }
 
+    /**
+     * add all channels of a serie from the metadata of its file, the file is opened only when a channel is read
+     * @param metadata metadata of file (see {@link FileMetadataIndex})
+     * @param serieNb serie nb corresponding to field of view in file
+     */
+    public void addAllChannels(FileMetadataIndex.FileMetadata metadata, int serieNb){
+        IJ.log("add all channels for "+metadata.getPath()+" : "+serieNb);
+        if (serieNb >= metadata.getSeriesCount()) {
+            IJ.log("number of available series in file is not compatible with specification");
+            return;
+        }
+        this.serieNb=serieNb;
+        fieldname= "";
+        if(metadata.getSeriesCount()>1) fieldname+= metadata.idName+"#";
+        fieldname+=metadata.imageNames[serieNb];
+        fieldname=fieldname.replaceAll("[\\\\/:*?\"<>|]","_");
+        int nbChannels=metadata.getChannelCount(serieNb);
+        IJ.log("number of channels: "+nbChannels);
+        for(int c=1;c<=nbChannels;c++){
+            channelsImagePlus.add(null);
+            channelsMetadata.add(metadata);
+            originalChannelNb.add(c);
+        }
+    }
+
 
 
 
@@ -125,21 +178,47 @@ public class FieldOfView {
     }
 
     /**
-     *
+     * the file of the channel is decoded the first time one of its channels is read, the other channels are sliced
+     * from the decoded image until {@link #releaseChannels()}
+     * - the first image of a channel shares the pixels of the decoded image, next ones are copies so that an image
+     *   modified by a detector does not change the image of another detector
      * @param channel channel number in range [1,Nchannels]
      * @return
      */
     public ImagePlus getImagePlus(int channel){
         //IJ.log("FoV getImage "+channel);
+        ImagePlus prefetched = takePrefetchedChannel(channel);
+        if (prefetched != null) return prefetched;
+        long start=System.nanoTime();
         try {
-            ImportProcess process=getImportProcess(channel);
-            process.execute();
-            ImagePlusReader reader = new ImagePlusReader(process);
-            ImagePlus tmp = reader.openImagePlus()[0];
+            ImagePlus tmp;
+            ImportProcess process = openImportProcess(channel);
+            int[] planes = getPlaneRange(channel);
+            synchronized (process) { /*the channels of the field share the reader*/
+                RawTiffFile raw = getRawTiffFile(process, channel);
+                if (raw != null) {
+                    ImagePlus chanImg = readRawTiff(process, raw, channel, planes);
+                    chanImg.setTitle(chanImg.getTitle().replaceAll("[\\\\/:,;*?\"<>|]","_"));
+                    return chanImg;
+                }
+                tmp = getDecodedFile(process);
+                if (tmp == null && planes != null) {
+                    ImagePlus chanImg = reduce(readPlanes(process, channel, planes), 1, false, null);
+                    chanImg.setTitle(chanImg.getTitle().replaceAll("[\\\\/:,;*?\"<>|]","_"));
+                    return chanImg;
+                }
+                if (tmp == null) {
+                    getImportProcess(channel);
+                    process.execute();
+                    ImagePlusReader reader = new ImagePlusReader(process);
+                    tmp = reader.openImagePlus()[0];
+                    setDecodedFile(process, tmp);
+                }
+            }
             //tmp.show();
             //IJ.log("original channel "+originalChannelNb.get(channel-1));
             //IJ.log("nb channels: "+tmp.getNChannels());
-            ImagePlus chanImg=reduce(tmp,originalChannelNb.get(channel-1));
+            ImagePlus chanImg=reduce(tmp,originalChannelNb.get(channel-1),!firstServe(channel),planes);
             String title=chanImg.getTitle();
             title=title.replaceAll("[\\\\/:,;*?\"<>|]","_");
             //IJ.log(process.getOMEMetadata().getImageName(originalChannelNb.get(channel-1)));
@@ -147,70 +226,341 @@ public class FieldOfView {
             return chanImg;
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            addReadNanos(System.nanoTime()-start);
         }
         return null;
     }
 
-    private ImportProcess getImportProcess(int channel) throws FormatException,IOException {
-        ImportProcess result= channelsImagePlus.get(channel-1);
-        for(int s=0;s<result.getSeriesCount();s++){
-            result.getOptions().setSeriesOn(s,s==serieNb);
+    /**
+     * projection of a channel computed while its planes are read, the stack is never in memory
+     * - the planes are decoded one at a time from a virtual stack of the file
+     * - the planes already in memory (read ahead or decoded for another channel) are projected without reading
+     * - images with several time points are read entirely then projected
+     * @param channel channel number in range [1,Nchannels]
+     * @param projection projection to fill
+     * @return projection, with the title of the image of channel
+     */
+    public ImagePlus getProjectedImagePlus(int channel, StreamingProjection projection){
+        ImagePlus prefetched = takePrefetchedChannel(channel);
+        if (prefetched != null) return projection.project(prefetched, getFirstPlane(channel));
+        long start=System.nanoTime();
+        try {
+            ImportProcess process = openImportProcess(channel);
+            synchronized (process) {
+                RawTiffFile raw = getRawTiffFile(process, channel);
+                if (raw != null && raw.sizeT == 1) {
+                    int c = originalChannelNb.get(channel - 1) - 1;
+                    for (int z = 1; z <= raw.sizeZ; z++) {
+                        if (projection.needs(z)) projection.add(raw.tiff.getPlane(process.getReader().getIndex(z - 1, c, 0)), z);
+                    }
+                    ImagePlus result = projection.getResult(raw.title, raw.tiff.getWidth(), raw.tiff.getHeight());
+                    result.setTitle(result.getTitle().replaceAll("[\\\\/:,;*?\"<>|]","_"));
+                    return result;
+                }
+                if (getDecodedFile(process) == null) {
+                    getImportProcess(channel);
+                    process.getOptions().setVirtual(true);
+                    ImagePlus virtual;
+                    try {
+                        process.execute();
+                        virtual = new ImagePlusReader(process).openImagePlus()[0];
+                    } finally {
+                        process.getOptions().setVirtual(false);
+                    }
+                    if (virtual.getNFrames() == 1) {
+                        int c = originalChannelNb.get(channel - 1);
+                        for (int z = 1; z <= virtual.getNSlices(); z++) {
+                            if (projection.needs(z)) projection.add(virtual.getStack().getProcessor(virtual.getStackIndex(c, z, 1)), z);
+                        }
+                        ImagePlus result = projection.getResult(virtual.getTitle(), virtual.getWidth(), virtual.getHeight());
+                        result.setTitle(result.getTitle().replaceAll("[\\\\/:,;*?\"<>|]","_"));
+                        return result;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            addReadNanos(System.nanoTime()-start);
+        }
+        return projection.project(getImagePlus(channel), getFirstPlane(channel));
+    }
+
+    /**
+     * the file of a channel is read without Bio-Formats if it is an uncompressed TIFF with one serie whose planes
+     * are the images of Bio-Formats (see {@link RawTiffReader}), the test is done once per file
+     * @param process import process of the file of channel (locked by caller)
+     * @param channel channel number in range [1,Nchannels]
+     * @return the raw TIFF file or null if the file is read with Bio-Formats
+     */
+    private RawTiffFile getRawTiffFile(ImportProcess process, int channel) {
+        synchronized (this) {
+            if (rawTiffFiles.containsKey(process)) return rawTiffFiles.get(process);
+        }
+        RawTiffFile result = null;
+        RawTiffReader tiff = null;
+        try {
+            getImportProcess(channel);
+            IFormatReader reader = process.getReader();
+            int pixelType = reader.getPixelType();
+            boolean bitsMatch = (pixelType == FormatTools.UINT8 || pixelType == FormatTools.UINT16 || pixelType == FormatTools.FLOAT);
+            if (bitsMatch && reader.getSeriesCount() == 1 && reader.getRGBChannelCount() == 1 && reader.getUsedFiles().length == 1) {
+                tiff = RawTiffReader.open(reader.getCurrentFile());
+            }
+            if (tiff != null && tiff.getPlaneCount() == reader.getImageCount() && tiff.getWidth() == reader.getSizeX()
+                    && tiff.getHeight() == reader.getSizeY() && tiff.getBitDepth() == FormatTools.getBytesPerPixel(pixelType) * 8) {
+                result = new RawTiffFile();
+                result.tiff = tiff;
+                result.sizeZ = reader.getSizeZ();
+                result.sizeT = reader.getSizeT();
+                process.getOptions().setVirtual(true); /*title of Bio-Formats without reading the planes*/
+                try {
+                    process.execute();
+                    result.title = new ImagePlusReader(process).openImagePlus()[0].getTitle();
+                } finally {
+                    process.getOptions().setVirtual(false);
+                }
+                IJ.log("uncompressed TIFF read without Bio-Formats: " + reader.getCurrentFile());
+            }
+        } catch (Exception e) {
+            IJ.log("the file of channel " + channel + " is read with Bio-Formats: " + e.getMessage());
+            result = null;
+        }
+        if (result == null && tiff != null) {
+            try {
+                tiff.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        synchronized (this) {
+            rawTiffFiles.put(process, result);
         }
         return result;
     }
 
-    private ImagePlus reduce(ImagePlus fullChannels, int channel) {
-        ImagePlus imp2 = IJ.createImage(fullChannels.getTitle(), fullChannels.getBitDepth() + "-bit",
-                fullChannels.getWidth(), fullChannels.getHeight(), fullChannels.getNSlices() * fullChannels.getNFrames());
-        ((ImagePlus)imp2).setDimensions(1, fullChannels.getNSlices(), fullChannels.getNFrames());
-        ((ImagePlus)imp2).setOpenAsHyperStack(true);
-        int channels = 1;
-        int slices = imp2.getNSlices();
-        int frames = imp2.getNFrames();
-        int c = channel;
-        int z1 = fullChannels.getSlice();
-        int t1 = fullChannels.getFrame();
-        int n = channels * slices * frames;
-        ImageStack stack = fullChannels.getStack();
-        ImageStack stack2 = imp2.getStack();
+    /**
+     * @param raw raw TIFF file of channel
+     * @param channel channel number in range [1,Nchannels]
+     * @param planes first and last planes in range [1,NSlices], null for all planes
+     * @return image with one channel
+     */
+    private ImagePlus readRawTiff(ImportProcess process, RawTiffFile raw, int channel, int[] planes) throws IOException {
+        IFormatReader reader = process.getReader();
+        int c = originalChannelNb.get(channel - 1) - 1;
+        int first = (planes != null) ? planes[0] : 1;
+        int last = (planes != null) ? planes[1] : raw.sizeZ;
+        ImageStack stack = new ImageStack(raw.tiff.getWidth(), raw.tiff.getHeight());
+        for (int t = 0; t < raw.sizeT; t++) {
+            for (int z = first; z <= last; z++) {
+                stack.addSlice(null, raw.tiff.getPlane(reader.getIndex(z - 1, c, t)));
+            }
+        }
+        ImagePlus imp = new ImagePlus(raw.title, stack);
+        imp.setDimensions(1, last - first + 1, raw.sizeT);
+        imp.setOpenAsHyperStack(true);
+        imp.getProcessor().resetMinAndMax();
+        imp.setPosition(1, 1, 1);
+        return imp;
+    }
 
+    /**
+     * read only the planes of one channel, the ranges of the import process are set back to the whole image
+     * @param process import process of the file of channel (locked by caller)
+     * @param channel channel number in range [1,Nchannels]
+     * @param planes first and last planes in range [1,NSlices]
+     * @return image with one channel and the planes asked
+     */
+    private ImagePlus readPlanes(ImportProcess process, int channel, int[] planes) throws FormatException, IOException {
+        getImportProcess(channel);
+        ImporterOptions options = process.getOptions();
+        int c = originalChannelNb.get(channel - 1) - 1;
+        options.setSpecifyRanges(true);
+        options.setCBegin(serieNb, c);
+        options.setCEnd(serieNb, c);
+        options.setZBegin(serieNb, planes[0] - 1);
+        options.setZEnd(serieNb, planes[1] - 1);
+        try {
+            process.execute();
+            return new ImagePlusReader(process).openImagePlus()[0];
+        } finally {
+            FileMetadataIndex.FileMetadata metadata = channelsMetadata.get(channel - 1);
+            int nbChannels = (metadata != null) ? metadata.getChannelCount(serieNb) : process.getOMEMetadata().getChannelCount(serieNb);
+            options.setSpecifyRanges(false);
+            options.setCBegin(serieNb, 0);
+            options.setCEnd(serieNb, nbChannels - 1);
+            options.setZBegin(serieNb, 0);
+            options.setZEnd(serieNb, getNSlices(channel) - 1);
+        }
+    }
 
-        fullChannels.setPositionWithoutUpdate(c, 1, 1);
-        ImageProcessor ip = fullChannels.getProcessor();
-        double min = ip.getMin();
-        double max = ip.getMax();
+    /**
+     * @param ranges planes [first,last] to read per channel, the other channels are read entirely (null to read all planes)
+     */
+    public synchronized void setPlaneRanges(HashMap<Integer, int[]> ranges) {
+        planeRanges = ranges;
+    }
 
-        for(int z = 1; z <= slices; ++z) {
-            if (slices == 1) {
-                z = z1;
-            }
+    /**
+     * @param channel channel number in range [1,Nchannels]
+     * @return first plane of the images of channel given by {@link #getImagePlus(int)}, in range [1,NSlices]
+     */
+    public int getFirstPlane(int channel) {
+        int[] planes = getPlaneRange(channel);
+        return (planes != null) ? planes[0] : 1;
+    }
 
-            for(int t = 1; t <= frames; ++t) {
-                if (frames == 1) {
-                    t = t1;
-                }
+    /**
+     * @return planes to read for channel, null to read all planes
+     */
+    private synchronized int[] getPlaneRange(int channel) {
+        if (planeRanges == null || planeRanges.get(channel) == null) return null;
+        int[] planes = planeRanges.get(channel);
+        int nSlices = getNSlices(channel);
+        int first = Math.max(1, planes[0]);
+        int last = Math.min(nSlices, planes[1]);
+        if (first > last || (first == 1 && last == nSlices)) return null;
+        return new int[]{first, last};
+    }
 
-                int n1 = fullChannels.getStackIndex(c, z, t);
-                ip = stack.getProcessor(n1);
-                String label = stack.getSliceLabel(n1);
-                int n2 = imp2.getStackIndex(c, z, t);
-                if (stack2.getPixels(n2) != null) {
-                    stack2.getProcessor(n2).insert(ip, 0, 0);
-                } else {
-                    stack2.setPixels(ip.getPixels(), n2);
-                }
+    private synchronized ImagePlus getDecodedFile(ImportProcess process) {
+        return decodedFiles.get(process);
+    }
+
+    private synchronized void setDecodedFile(ImportProcess process, ImagePlus imp) {
+        decodedFiles.put(process, imp);
+    }
 
-                stack2.setSliceLabel(label, n2);
+    /**
+     * @return true the first time the channel is read since the channels were released
+     */
+    private synchronized boolean firstServe(int channel) {
+        return servedChannels.add(channel);
+    }
+
+    /**
+     * forget the decoded images of the field (all channels), to call when the experiment of the field is done
+     * the images given to the detectors are kept by them, next reads decode the files again
+     */
+    public synchronized void releaseChannels() {
+        prefetchedChannels = null;
+        for (RawTiffFile raw : rawTiffFiles.values()) {
+            if (raw == null) continue;
+            try {
+                raw.tiff.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
-        imp2.getProcessor().setMinAndMax(min, max);
+        rawTiffFiles.clear();
+        decodedFiles.clear();
+        servedChannels.clear();
+    }
+
+    /**
+     * @return memory used by the decoded images of the field, in bytes
+     */
+    public synchronized long getDecodedBytes() {
+        long bytes = 0;
+        for (ImagePlus imp : decodedFiles.values()) {
+            bytes += (long) imp.getWidth() * imp.getHeight() * imp.getStackSize() * ((imp.getBitDepth() == 24) ? 4 : imp.getBitDepth() / 8);
+        }
+        return bytes;
+    }
+
+    private synchronized void addReadNanos(long nanoseconds) {
+        readNanos+=nanoseconds;
+    }
+
+    /**
+     * time spent decoding the channels since the last call, whatever the thread that decoded them
+     * @return time in nanoseconds
+     */
+    public synchronized long takeReadNanos() {
+        long result=readNanos;
+        readNanos=0;
+        return result;
+    }
+
+    /**
+     * keep channels decoded in advance (see {@link FieldOfViewPrefetcher})
+     * @param images decoded images per channel in range [1,Nchannels]
+     */
+    public synchronized void setPrefetchedChannels(HashMap<Integer, ImagePlus> images) {
+        prefetchedChannels = images;
+    }
+
+    /**
+     * the image is given only once, next calls of {@link #getImagePlus(int)} give a copy of the channel
+     * @param channel channel number in range [1,Nchannels]
+     * @return image decoded in advance or null
+     */
+    private synchronized ImagePlus takePrefetchedChannel(int channel) {
+        if (prefetchedChannels == null) return null;
+        return prefetchedChannels.remove(channel);
+    }
+
+    /**
+     * the file of a channel added from its metadata is opened the first time the channel is read,
+     * the channels of the same file share its import process
+     * @param channel channel number in range [1,Nchannels]
+     */
+    private synchronized ImportProcess openImportProcess(int channel) throws FormatException,IOException {
+        ImportProcess result= channelsImagePlus.get(channel-1);
+        if(result!=null) return result;
+        FileMetadataIndex.FileMetadata metadata=channelsMetadata.get(channel-1);
+        for(int c=0;c<channelsImagePlus.size();c++){
+            if(channelsMetadata.get(c)==metadata && channelsImagePlus.get(c)!=null) result=channelsImagePlus.get(c);
+        }
+        if(result==null) result=FileMetadataIndex.open(metadata.getPath());
+        for(int c=0;c<channelsImagePlus.size();c++){
+            if(channelsMetadata.get(c)==metadata) channelsImagePlus.set(c,result);
+        }
+        return result;
+    }
 
+    private ImportProcess getImportProcess(int channel) throws FormatException,IOException {
+        ImportProcess result= channelsImagePlus.get(channel-1);
+        for(int s=0;s<result.getSeriesCount();s++){
+            result.getOptions().setSeriesOn(s,s==serieNb);
+        }
+        return result;
+    }
 
-        imp2.resetStack();
+    /**
+     * image of one channel, its stack uses the pixels of the multi-channel image without copying them
+     * @param fullChannels decoded image with all channels of file
+     * @param channel channel in range [1,Nchannels]
+     * @param copy true to copy the pixels
+     * @param planes first and last slices to keep, null to keep all slices
+     */
+    private ImagePlus reduce(ImagePlus fullChannels, int channel, boolean copy, int[] planes) {
+        int first = (planes != null) ? planes[0] : 1;
+        int slices = (planes != null) ? planes[1] - planes[0] + 1 : fullChannels.getNSlices();
+        int frames = fullChannels.getNFrames();
+        int z1 = fullChannels.getSlice();
+        int t1 = fullChannels.getFrame();
+        ImageStack stack = fullChannels.getStack();
+        ImageStack stack2 = new ImageStack(fullChannels.getWidth(), fullChannels.getHeight());
+        for (int t = 1; t <= frames; ++t) {
+            for (int z = 1; z <= slices; ++z) {
+                int n1 = fullChannels.getStackIndex(channel, (fullChannels.getNSlices() == 1) ? z1 : first + z - 1, (frames == 1) ? t1 : t);
+                Object pixels = copy ? stack.getProcessor(n1).duplicate().getPixels() : stack.getPixels(n1);
+                stack2.addSlice(stack.getSliceLabel(n1), pixels);
+            }
+        }
+        ImagePlus imp2 = new ImagePlus(fullChannels.getTitle(), stack2);
+        imp2.setDimensions(1, slices, frames);
+        imp2.setOpenAsHyperStack(true);
+        ImageProcessor ip = stack.getProcessor(fullChannels.getStackIndex(channel, 1, 1));
+        ip.resetMinAndMax();
+        imp2.getProcessor().setMinAndMax(ip.getMin(), ip.getMax());
         imp2.setPosition(1, 1, 1);
         return imp2;
-
     }
+
     public int getNbAvailableChannels() {
         return channelsImagePlus.size();
     }
@@ -223,6 +573,22 @@ public class FieldOfView {
         this.fieldname = fieldname;
     }
 
+    /**
+     * @return paths of the files of the channels (separated by ;)
+     */
+    public String getFilePaths() {
+        ArrayList<String> paths = new ArrayList<>();
+        for (int c = 0; c < channelsImagePlus.size(); c++) {
+            String path = (channelsMetadata.get(c) != null) ? channelsMetadata.get(c).getPath() : channelsImagePlus.get(c).getOptions().getId();
+            if (!paths.contains(path)) paths.add(path);
+        }
+        return String.join(";", paths);
+    }
+
+    public int getSerieNb() {
+        return serieNb;
+    }
+
     public boolean isUsed() {
         return used;
     }
@@ -238,6 +604,8 @@ public class FieldOfView {
      */
     public int getNSlices(int channel){
         //System.out.println("fov getNslices : channel "+channel);
+        FileMetadataIndex.FileMetadata metadata=channelsMetadata.get(channel-1);
+        if(metadata!=null) return metadata.sizeZ[serieNb];
         System.out.println("fov getNslices :  "+channelsImagePlus.get(channel-1).getImageReader().getSizeZ());
         System.out.println("fov getNslices (OME) :  "+channelsImagePlus.get(channel-1).getOMEMetadata().getPlaneCount(0));
         return channelsImagePlus.get(channel-1).getImageReader().getSizeZ();
@@ -249,21 +617,27 @@ public class FieldOfView {
      * @return
      */
     public String getChannelName(int channel){
-        String file=channelsImagePlus.get(channel-1).getImageReader().getCurrentFile();
+        FileMetadataIndex.FileMetadata metadata=channelsMetadata.get(channel-1);
+        String file=(metadata!=null)? metadata.currentFile : channelsImagePlus.get(channel-1).getImageReader().getCurrentFile();
         String result=file.substring(file.lastIndexOf(File.separator)+1);
         if(channel<channelsImagePlus.size()) {
-            return result + "#" + channelsImagePlus.get(channel - 1).getSeriesLabel(serieNb) + "#" + (originalChannelNb.get(channel - 1) + 1) + "_#_" + getChannelNameInFile(channel);
+            String serieLabel=(metadata!=null)? metadata.seriesLabels[serieNb] : channelsImagePlus.get(channel - 1).getSeriesLabel(serieNb);
+            return result + "#" + serieLabel + "#" + (originalChannelNb.get(channel - 1) + 1) + "_#_" + getChannelNameInFile(channel);
         }
         return result;
     }
 
     public double getPixelSize(int channel){
+        FileMetadataIndex.FileMetadata metadata=channelsMetadata.get(channel-1);
+        if(metadata!=null) return metadata.pixelSize;
         Length tmp=channelsImagePlus.get(channel-1).getOMEMetadata().getPixelsPhysicalSizeX(0);
         if(tmp!=null) return tmp.value().doubleValue();
         else return -1;
     }
 
     public String getCalibrationUnit(int channel){
+        FileMetadataIndex.FileMetadata metadata=channelsMetadata.get(channel-1);
+        if(metadata!=null) return metadata.unit;
         Length tmp=channelsImagePlus.get(channel-1).getOMEMetadata().getPixelsPhysicalSizeX(0);
         if (tmp!=null) return tmp.unit().getSymbol();
         else return null;
@@ -277,8 +651,10 @@ public class FieldOfView {
 //        }
         System.out.println("FoV getChannelName : channel="+channel+"   original="+originalChannelNb.get(channel-1));
         String tmp=null;
+        FileMetadataIndex.FileMetadata metadata=channelsMetadata.get(channel-1);
         try{
-            tmp=channelsImagePlus.get(channel-1).getOMEMetadata().getChannelName(0,originalChannelNb.get(channel-1)-1);
+            if(metadata!=null) tmp=metadata.channelNames[originalChannelNb.get(channel-1)-1];
+            else tmp=channelsImagePlus.get(channel-1).getOMEMetadata().getChannelName(0,originalChannelNb.get(channel-1)-1);
         }catch (Exception e){
             e.printStackTrace();
         }
@@ -0,0 +1,157 @@
+package fr.curie.micmaq.config;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Read-ahead of the fields of view to analyse
+ * - a background thread decodes the channels of the next fields of view while the previous ones are analysed
+ * - the decoded fields are handed to the experiments through a blocking queue, in field of view order
+ * - the images waiting in the queue are limited by a memory budget (at least one field is always read ahead)
+ * - a field that cannot be read is still handed, with its failure ({@link #checkRead(int)})
+ */
+public class FieldOfViewPrefetcher implements Runnable {
+    private final FieldOfViewProvider provider;
+    private final ArrayList<Integer> fields;
+    private final ArrayList<Integer> channels;
+    private final long memoryBudget;
+    private final BlockingQueue<Integer> queue;
+
+    private final Object lock = new Object();
+    private long queuedBytes = 0;
+    private final HashMap<Integer, Long> fieldBytes = new HashMap<>();
+    private final ConcurrentHashMap<Integer, Throwable> failures = new ConcurrentHashMap<>();
+    private volatile boolean stopped = false;
+    private Thread thread;
+
+    /**
+     * @param provider fields of view
+     * @param fields indexes of the fields of view to analyse, in the order of analysis
+     * @param channels channels to read in range [1,Nchannels]
+     * @param memoryBudgetMB maximum size of the decoded images waiting to be analysed, 0 to only hand the fields without reading ahead
+     */
+    public FieldOfViewPrefetcher(FieldOfViewProvider provider, ArrayList<Integer> fields, ArrayList<Integer> channels, int memoryBudgetMB) {
+        this.provider = provider;
+        this.fields = fields;
+        this.channels = channels;
+        this.memoryBudget = memoryBudgetMB * 1024L * 1024L;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, fields.size()));
+    }
+
+    public void start() {
+        thread = new Thread(this, "MIC-MAQ prefetch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * stops reading and frees the images not yet given to an experiment
+     */
+    public void stop() {
+        stopped = true;
+        if (thread != null) thread.interrupt();
+        synchronized (lock) {
+            for (Integer index : fieldBytes.keySet()) provider.getFieldOfView(index).releaseChannels();
+            fieldBytes.clear();
+            queuedBytes = 0;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * wait for the next field of view
+     * its channels are available through {@link FieldOfView#getImagePlus(int)} without decoding
+     * @return index of field of view
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int take() throws InterruptedException {
+        int index = queue.take();
+        synchronized (lock) {
+            Long bytes = fieldBytes.remove(index);
+            if (bytes != null) queuedBytes -= bytes;
+            lock.notifyAll();
+        }
+        return index;
+    }
+
+    /**
+     * @param index index of field of view given by {@link #take()}
+     * @throws ExecutionException if the field of view could not be read ahead, the experiment should not be run
+     */
+    public void checkRead(int index) throws ExecutionException {
+        Throwable failure = failures.get(index);
+        if (failure != null) throw new ExecutionException("field of view " + (index + 1) + " could not be read", failure);
+    }
+
+    @Override
+    public void run() {
+        long lastFieldBytes = 0;
+        try {
+            for (int index : fields) {
+                if (stopped) return;
+                if (memoryBudget > 0) {
+                    try {
+                        lastFieldBytes = readAhead(index, lastFieldBytes);
+                        if (lastFieldBytes < 0) return;
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Throwable t) {
+                        /*the field is still handed with its failure, so that the experiment waiting for it does not wait forever*/
+                        IJ.log("field of view " + (index + 1) + " could not be read ahead: " + t);
+                        t.printStackTrace();
+                        failures.put(index, t);
+                        provider.getFieldOfView(index).releaseChannels();
+                    }
+                }
+                queue.put(index);
+            }
+        } catch (InterruptedException e) {
+            //stopped
+        }
+    }
+
+    /**
+     * decode the channels of a field of view when the memory budget allows it
+     * @param lastFieldBytes size of the previous field of view read ahead
+     * @return size of the decoded images of the field of view, -1 if stopped
+     * @throws InterruptedException if interrupted while waiting for memory
+     */
+    private long readAhead(int index, long lastFieldBytes) throws InterruptedException {
+        FieldOfView fov = provider.getFieldOfView(index);
+        synchronized (lock) {
+            while (!stopped && queuedBytes > 0 && queuedBytes + lastFieldBytes > memoryBudget) lock.wait();
+        }
+        if (stopped) return -1;
+        Instant start = Instant.now();
+        HashMap<Integer, ImagePlus> images = new HashMap<>();
+        long channelBytes = 0;
+        for (int channel : channels) {
+            ImagePlus imp = fov.getImagePlus(channel);
+            if (imp == null) continue;
+            images.put(channel, imp);
+            channelBytes += (long) imp.getWidth() * imp.getHeight() * imp.getStackSize() * ((imp.getBitDepth() == 24) ? 4 : imp.getBitDepth() / 8);
+        }
+        /*the channels share the pixels of the decoded files, the channels of raw TIFF files are not decoded*/
+        long bytes = Math.max(fov.getDecodedBytes(), channelBytes);
+        fov.setPrefetchedChannels(images);
+        synchronized (lock) {
+            if (stopped) {
+                fov.releaseChannels();
+                return -1;
+            }
+            fieldBytes.put(index, bytes);
+            queuedBytes += bytes;
+        }
+        IJ.log("prefetch field of view " + (index + 1) + " (" + bytes / (1024 * 1024) + "MB): " + Duration.between(start, Instant.now()).toMillis() + "ms");
+        return bytes;
+    }
+}
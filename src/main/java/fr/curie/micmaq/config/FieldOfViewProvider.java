@@ -3,18 +3,29 @@ package fr.curie.micmaq.config;
 import fr.curie.micmaq.helpers.MeasureCalibration;
 import ij.IJ;
 import ij.ImagePlus;
-import loci.formats.FormatException;
-import loci.formats.meta.IMetadata;
-import loci.plugins.in.ImportProcess;
-import loci.plugins.in.ImporterMetadata;
-import loci.plugins.in.ImporterOptions;
 
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class FieldOfViewProvider {
     String directory;
@@ -25,6 +36,11 @@ public class FieldOfViewProvider {
     int validIndex=0;
 
     double completion=-10;
+    int nbReaders = 1;
+
+    WatchService watcher;
+    /*files created or modified in the directory that are not complete yet: name -> {size, last modified, time of last change}*/
+    HashMap<String, long[]> incompleteFiles = new HashMap<>();
 
     ArrayList<FieldOfView> fields;
     ArrayList<Integer> differentNumberOfChannels;
@@ -83,6 +99,18 @@ public class FieldOfViewProvider {
         this.previewImage = previewImage;
     }
 
+    /**
+     * @param nbReaders number of files opened at the same time when the directory is parsed
+     * - each file is opened with its own Bio-Formats reader, the fields of view keep the order of the files
+     */
+    public void setNbReaders(int nbReaders) {
+        this.nbReaders = Math.max(1, nbReaders);
+    }
+
+    public int getNbReaders() {
+        return nbReaders;
+    }
+
     public void parseDirectory(final String filePattern) {
         IJ.log("parse directory " + directory);
         completion=0;
@@ -92,6 +120,7 @@ public class FieldOfViewProvider {
         FilenameFilter filter = new FilenameFilter() {
             @Override
             public boolean accept(File dir, String name) {
+                if (name.startsWith(FileMetadataIndex.FILE) || incompleteFiles.containsKey(name)) return false;
                 return filePattern == null || filePattern.isEmpty() || name.contains(filePattern);
             }
         };
@@ -99,66 +128,45 @@ public class FieldOfViewProvider {
         File[] files = dir.listFiles(filter);
         if (files == null || files.length == 0) return;
         IJ.log("nb files "+files.length);
-        for (int f=0;f<files.length;f++){
-            File file =files[f];
-            if(completion<0) return;
-            if (!file.isDirectory()) {
-                System.out.println("########################################");
-                String path = file.getAbsolutePath();
-                IJ.showStatus("parsing " + path);
-                String args = "location[local machine] windowless=true groupFiles=true id=[" + path + "]";
-                try {
-
-                    Instant dateBegin = Instant.now();
-                    ImporterOptions options = new ImporterOptions();
-                    options.parseArg(args);
-                    options.setId(path);
-
-                    ImportProcess process = new ImportProcess(options);
-                    process.execute();
-
-                    Instant dateEnd = Instant.now();
-                    long duration = Duration.between(dateBegin, dateEnd).toMillis();
-                    IJ.log("first read of file" + file + ". It took " + duration / 1000.0 + " seconds");
-
-                    dateBegin = Instant.now();
-                    int nSeries = process.getSeriesCount();
-                    ImporterMetadata md = process.getOriginalMetadata();
-                    IMetadata imd = process.getOMEMetadata();
-                    System.out.println("\t"+path + " Nseries " + nSeries + " channels:" + process.getCCount(0));
-                    System.out.println("\t"+"nb dataset (metadata)=" + imd.getDatasetCount());
-                    System.out.println("\t"+"nb experiment (metadata)=" + imd.getExperimentCount());
-                    System.out.println("\t"+"nb image (metadata)=" + imd.getImageCount());
-                    dateEnd = Instant.now();
-                    duration = Duration.between(dateBegin, dateEnd).toMillis();
-                    IJ.log("\t"+"get infos from metadata " + duration / 1000.0 + " seconds");
-                    for (int i = 0; i < imd.getImageCount(); i++) {
-                        System.out.println("\t\t"+"nb channel (metadata)=" + imd.getChannelCount(i));
+        final FileMetadataIndex index = new FileMetadataIndex(directory);
+        ExecutorService readers = Executors.newFixedThreadPool(nbReaders);
+        ArrayList<Future<FileMetadataIndex.FileMetadata[]>> probes = new ArrayList<>();
+        for (File file : files) {
+            probes.add(file.isDirectory() ? null : readers.submit(probeTask(index, file.getAbsolutePath())));
+        }
+        try {
+            for (int f = 0; f < files.length; f++) {
+                File file = files[f];
+                if (probes.get(f) != null) {
+                    String path = file.getAbsolutePath();
+                    IJ.showStatus("parsing " + path);
+                    FileMetadataIndex.FileMetadata[] probed = waitFor(probes.get(f));
+                    if (completion < 0) {
+                        index.save();
+                        return;
                     }
-                    IJ.log("\t"+path + " Nseries " + nSeries + " channels:" + process.getCCount(0));
-                    for (int i = 0; i < nSeries; i++) {
-                        IJ.showStatus("adding file " + (i + 1) + "/" + nSeries);
-                        IJ.log("\t"+"adding field of view " + i);
-                        Instant dateBegin2 = Instant.now();
-                        FieldOfView fov = new FieldOfView();
-                        fov.addAllChannels(path, i);
-                        fields.add(fov);
-                        Instant dateEnd2 = Instant.now();
-                        long duration2 = Duration.between(dateBegin2, dateEnd2).toMillis();
-                        IJ.log("\t"+"adding field " + i + ":    " + duration2 / 1000.0 + " seconds");
+                    if (probed != null) {
+                        FileMetadataIndex.FileMetadata metadata = probed[0];
+                        int nSeries = metadata.getSeriesCount();
+                        IJ.log("\t"+path + " Nseries " + nSeries + ((nSeries > 0) ? " channels:" + metadata.getChannelCount(0) : ""));
+                        for (int i = 0; i < nSeries; i++) {
+                            IJ.showStatus("adding file " + (i + 1) + "/" + nSeries);
+                            IJ.log("\t"+"adding field of view " + i);
+                            FieldOfView fov = new FieldOfView();
+                            fov.addAllChannels(metadata, i);
+                            fields.add(fov);
+                        }
                     }
-
-                } catch (FormatException e) {
-
-                } catch (IOException e) {
-                    e.printStackTrace();
                 }
-            } else {
+                completion=(f+1.0)/ files.length;
+                System.out.flush();
             }
-            completion=(f+1.0)/ files.length;
-            System.out.flush();
+        } finally {
+            readers.shutdownNow();
         }
         completion=1.0;
+        index.save();
+        IJ.log(index.getNbProbed() + " file(s) opened, the others were known from " + FileMetadataIndex.FILE);
         IJ.log("total number of field of view: " + fields.size());
         if (fields.size() == 0) return;
         Instant dateTotalEnd = Instant.now();
@@ -222,6 +230,7 @@ public class FieldOfViewProvider {
 
     public void reorganiseFiles(final String filePattern, final ArrayList<String> patterns) {
         IJ.log("reorganise files " + directory);
+        completion=0;
         fields = new ArrayList<>();
         File dir = new File(directory);
         FilenameFilter filter = new FilenameFilter() {
@@ -233,53 +242,108 @@ public class FieldOfViewProvider {
         //System.out.println("filter " +fileExtension+" filter "+filter);
         File[] files = dir.listFiles(filter);
         IJ.log("nb files "+files.length);
-        for (int f=0;f<files.length;f++){
-            File file =files[f];
-            if(completion<0) return;
-            if (!file.isDirectory()) {
-                String path = file.getAbsolutePath();
-                IJ.log("############   opening"+file.getName());
-                String args = "location[local machine] windowless=true groupFiles=true id=[" + path + "]";
-                try {
-                    ImporterOptions options = new ImporterOptions();
-                    options.parseArg(args);
-                    options.setId(path);
-
-                    ImportProcess process = new ImportProcess(options);
-                    process.execute();
-                    int nSeries = process.getSeriesCount();
-                    IJ.log(path + " Nseries " + nSeries + " channels:" + process.getCCount(0));
-                    for (int i = 0; i < nSeries; i++) {
-                        IJ.log("\tadding field of view " + i);
-                        FieldOfView fov = new FieldOfView();
-                        fov.addAllChannels(path, i);
-                        //fov.addChannel(path, i, 1, patterns.get(0));
-                        for (int c = 1; c < patterns.size(); c++) {
-                            String name = file.getName();
-                            IJ.log("\t\toriginal name " + name);
-                            String f2 = name.replaceAll(patterns.get(0), patterns.get(c));
-                            IJ.log("\t\tafter pattern replacement --> " + f2);
-                            IJ.log("\t\tpath " + dir + File.separator + f2);
-                            //fov.addChannel(dir + File.separator + f2, i, 1, patterns.get(c));
-                            fov.addAllChannels(dir + File.separator + f2, i);
+        final FileMetadataIndex index = new FileMetadataIndex(directory);
+        ExecutorService readers = Executors.newFixedThreadPool(nbReaders);
+        ArrayList<Future<FileMetadataIndex.FileMetadata[]>> probes = new ArrayList<>();
+        for (File file : files) {
+            if (file.isDirectory()) {
+                probes.add(null);
+                continue;
+            }
+            String[] paths = new String[patterns.size()];
+            paths[0] = file.getAbsolutePath();
+            boolean complete = !incompleteFiles.containsKey(file.getName());
+            for (int c = 1; c < patterns.size(); c++) {
+                String name = file.getName().replaceAll(patterns.get(0), patterns.get(c));
+                paths[c] = dir + File.separator + name;
+                if (incompleteFiles.containsKey(name)) complete = false;
+            }
+            probes.add(complete ? readers.submit(probeTask(index, paths)) : null); /*added when all its files are complete*/
+        }
+        try {
+            for (int f = 0; f < files.length; f++) {
+                File file = files[f];
+                if (probes.get(f) != null) {
+                    IJ.log("############   opening"+file.getName());
+                    FileMetadataIndex.FileMetadata[] probed = waitFor(probes.get(f));
+                    if (completion < 0) {
+                        index.save();
+                        return;
+                    }
+                    if (probed != null) {
+                        int nSeries = probed[0].getSeriesCount();
+                        IJ.log(probed[0].getPath() + " Nseries " + nSeries + ((nSeries > 0) ? " channels:" + probed[0].getChannelCount(0) : ""));
+                        for (int i = 0; i < nSeries; i++) {
+                            IJ.log("\tadding field of view " + i);
+                            FieldOfView fov = new FieldOfView();
+                            for (int c = 0; c < probed.length; c++) {
+                                if (c > 0) IJ.log("\t\tafter pattern replacement --> " + probed[c].getPath());
+                                fov.addAllChannels(probed[c], i);
+                            }
+                            fov.setFieldname(file.getName().replaceAll(patterns.get(0), ""));
+                            fields.add(fov);
                         }
-                        fov.setFieldname(file.getName().replaceAll(patterns.get(0), ""));
-                        fields.add(fov);
                     }
-
-                } catch (FormatException e) {
-
-                } catch (IOException e) {
-                    e.printStackTrace();
                 }
-            } else {
+                completion=(f+1.0)/ files.length;
             }
-            completion=(f+1.0)/ files.length;
+        } finally {
+            readers.shutdownNow();
         }
+        completion=1.0;
+        index.save();
         IJ.log("total number of field of view: " + fields.size());
         checkChannels();
     }
 
+    /**
+     * task opening files on a reader thread
+     * @param paths files of a field of view (one per channel pattern)
+     * @return metadata of the files, in the order of paths
+     */
+    private static Callable<FileMetadataIndex.FileMetadata[]> probeTask(final FileMetadataIndex index, final String... paths) {
+        return new Callable<FileMetadataIndex.FileMetadata[]>() {
+            @Override
+            public FileMetadataIndex.FileMetadata[] call() throws IOException {
+                Instant dateBegin = Instant.now();
+                FileMetadataIndex.FileMetadata[] result = new FileMetadataIndex.FileMetadata[paths.length];
+                for (int p = 0; p < paths.length; p++) result[p] = index.probe(paths[p]);
+                long duration = Duration.between(dateBegin, Instant.now()).toMillis();
+                IJ.log("metadata of file " + paths[0] + ". It took " + duration / 1000.0 + " seconds");
+                return result;
+            }
+        };
+    }
+
+    /**
+     * wait for the metadata of a file, checking regularly if the loading was cancelled
+     * @return metadata of files, null if they could not be read or if the loading was cancelled
+     */
+    private <T> T waitFor(Future<T> probe) {
+        while (completion >= 0) {
+            try {
+                return probe.get(200, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                //check cancellation again
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancelLoading();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * planes read for all the fields of view (see {@link ExperimentSettings#getPlaneRanges()})
+     * @param ranges planes [first,last] to read per channel in range [1,Nchannels], null to read all planes
+     */
+    public void setPlaneRanges(HashMap<Integer, int[]> ranges) {
+        for (FieldOfView fov : fields) fov.setPlaneRanges(ranges);
+    }
+
     public ImagePlus getImagePlus(int index, int channel) {
         return fields.get(index).getImagePlus(channel);
     }
@@ -315,4 +379,88 @@ public class FieldOfViewProvider {
     public void cancelLoading() {
         this.completion = -1;
     }
+
+//        WATCHING OF THE DIRECTORY
+
+    /**
+     * wait for new files in the directory, written by the acquisition while the directory is analysed
+     * - a file is complete when its size and modification date did not change during settleMillis
+     * - the files not complete yet are ignored by {@link #parseDirectory(String)} and {@link #reorganiseFiles(String, ArrayList)}
+     *   (with channel patterns, a field of view is added when the files of all its channels are complete)
+     * - the directory is watched from {@link #startWatching(long)} (or the first call), until {@link #stopWatching()}
+     * @param timeoutMillis time without any change in the directory after which the acquisition is considered finished
+     * @param settleMillis time without change after which a file is complete
+     * @return names of the files completed since the last call, empty if nothing changed during timeoutMillis
+     */
+    public ArrayList<String> waitForNewFiles(long timeoutMillis, long settleMillis) throws IOException, InterruptedException {
+        startWatching(settleMillis);
+        ArrayList<String> completed = new ArrayList<>();
+        long lastChange = System.currentTimeMillis();
+        while (System.currentTimeMillis() - lastChange < timeoutMillis) {
+            WatchKey key = watcher.poll(Math.min(1000, settleMillis), TimeUnit.MILLISECONDS);
+            long now = System.currentTimeMillis();
+            if (key != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) continue;
+                    String name = ((Path) event.context()).getFileName().toString();
+                    if (name.startsWith(FileMetadataIndex.FILE)) continue; /*index saved while parsing*/
+                    File file = new File(directory, name);
+                    if (file.isDirectory()) continue;
+                    incompleteFiles.put(name, new long[]{file.length(), file.lastModified(), now});
+                    lastChange = now;
+                }
+                if (!key.reset()) throw new IOException("the directory " + directory + " cannot be watched anymore");
+            }
+            for (String name : new ArrayList<>(incompleteFiles.keySet())) {
+                long[] state = incompleteFiles.get(name);
+                File file = new File(directory, name);
+                if (!file.exists()) {
+                    incompleteFiles.remove(name); /*temporary file of the acquisition*/
+                } else if (file.length() != state[0] || file.lastModified() != state[1]) {
+                    incompleteFiles.put(name, new long[]{file.length(), file.lastModified(), now});
+                    lastChange = now;
+                } else if (now - state[2] >= settleMillis) {
+                    incompleteFiles.remove(name);
+                    completed.add(name);
+                }
+            }
+            if (!completed.isEmpty()) return completed;
+        }
+        return completed;
+    }
+
+    /**
+     * start watching the directory, to call before parsing it so that the files written during the analysis are not missed
+     * - the files modified less than settleMillis before are considered not complete, until they do not change
+     *   during settleMillis (see {@link #waitForNewFiles(long, long)})
+     * @param settleMillis time without change after which a file is complete
+     * @throws IOException if the directory cannot be watched
+     */
+    public void startWatching(long settleMillis) throws IOException {
+        if (watcher != null) return;
+        watcher = FileSystems.getDefault().newWatchService();
+        Paths.get(directory).register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        long now = System.currentTimeMillis();
+        File[] files = new File(directory).listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (file.isDirectory() || file.getName().startsWith(FileMetadataIndex.FILE)) continue;
+            if (now - file.lastModified() < settleMillis)
+                incompleteFiles.put(file.getName(), new long[]{file.length(), file.lastModified(), now});
+        }
+    }
+
+    /**
+     * stop watching the directory, the files not complete are forgotten
+     */
+    public void stopWatching() {
+        incompleteFiles.clear();
+        if (watcher == null) return;
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        watcher = null;
+    }
 }
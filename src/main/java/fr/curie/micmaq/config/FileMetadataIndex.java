@@ -0,0 +1,277 @@
+package fr.curie.micmaq.config;
+
+import ij.IJ;
+import loci.formats.FormatException;
+import loci.formats.IFormatReader;
+import loci.formats.meta.IMetadata;
+import loci.plugins.in.ImportProcess;
+import loci.plugins.in.ImporterOptions;
+import ome.units.quantity.Length;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+
+/**
+ * Index of the metadata of the image files of a working directory, saved in the directory
+ * - parsing a directory needs the series, channels, Z size and calibration of each file: opening a file with
+ *   Bio-Formats to get them is slow (especially on network shares)
+ * - the metadata are kept per file, keyed on its path, size and modification time: only new or modified files are opened
+ * - the images are opened later, when a field of view is read (see {@link FieldOfView#getImagePlus(int)})
+ * - files that cannot be read are kept in the index (no series) so that they are not opened again
+ * - files grouped with other files by Bio-Formats (groupFiles) are not kept: the dataset depends on the other files,
+ *   which can change or be added without the file itself changing
+ */
+public class FileMetadataIndex {
+    public static final String FILE = "MicMaq_index.txt";
+    private static final String HEADER = "MIC-MAQ file index 2";
+
+    private final File file;
+    private final HashMap<String, FileMetadata> entries = new HashMap<>();
+    private boolean changed = false;
+    private int probed = 0;
+
+    /**
+     * metadata of one file, as given by Bio-Formats
+     */
+    public static class FileMetadata {
+        final String path;
+        final long size;
+        final long lastModified;
+        String idName = "";
+        String currentFile = "";
+        double pixelSize = -1;
+        String unit = null;
+        String[] seriesLabels = new String[0];
+        String[] imageNames = new String[0];
+        int[] channelCounts = new int[0];
+        int[] sizeZ = new int[0];
+        String[] channelNames = new String[0];
+
+        FileMetadata(String path, long size, long lastModified) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public int getSeriesCount() {
+            return seriesLabels.length;
+        }
+
+        /**
+         * @param serie serie in range [0,Nseries-1]
+         */
+        public int getChannelCount(int serie) {
+            return channelCounts[serie];
+        }
+    }
+
+    /**
+     * @param directory working directory, where the index is read and saved
+     */
+    public FileMetadataIndex(String directory) {
+        file = new File(directory, FILE);
+        load();
+    }
+
+    /**
+     * open a file with the options used by MIC-MAQ
+     * @param path path of file
+     * @return the import process, already executed
+     */
+    public static ImportProcess open(String path) throws FormatException, IOException {
+        String args = "location[local machine] windowless=true groupFiles=true id=[" + path + "]";
+        ImporterOptions options = new ImporterOptions();
+        options.parseArg(args);
+        options.setId(path);
+        ImportProcess process = new ImportProcess(options);
+        process.execute();
+        return process;
+    }
+
+    /**
+     * metadata of a file, read from the index if the file did not change since it was indexed
+     * @param path path of file
+     * @return metadata of file, without series if the file cannot be read
+     * @throws IOException if the file cannot be opened
+     */
+    public FileMetadata probe(String path) throws IOException {
+        File f = new File(path);
+        synchronized (this) {
+            FileMetadata known = entries.get(path);
+            if (known != null && known.size == f.length() && known.lastModified == f.lastModified()) return known;
+        }
+        FileMetadata metadata = new FileMetadata(path, f.length(), f.lastModified());
+        boolean grouped = false;
+        try {
+            ImportProcess process = open(path);
+            IMetadata omeMetadata = process.getOMEMetadata();
+            IFormatReader reader = process.getImageReader();
+            String[] usedFiles = reader.getUsedFiles();
+            grouped = usedFiles != null && usedFiles.length > 1;
+            int nSeries = process.getSeriesCount();
+            metadata.idName = process.getIdName();
+            metadata.currentFile = reader.getCurrentFile();
+            metadata.seriesLabels = new String[nSeries];
+            metadata.imageNames = new String[nSeries];
+            metadata.channelCounts = new int[nSeries];
+            metadata.sizeZ = new int[nSeries];
+            int currentSerie = reader.getSeries();
+            for (int s = 0; s < nSeries; s++) {
+                metadata.seriesLabels[s] = process.getSeriesLabel(s);
+                metadata.imageNames[s] = omeMetadata.getImageName(s);
+                metadata.channelCounts[s] = omeMetadata.getChannelCount(s);
+                reader.setSeries(s);
+                metadata.sizeZ[s] = reader.getSizeZ();
+            }
+            reader.setSeries(currentSerie);
+            Length pixelSize = omeMetadata.getPixelsPhysicalSizeX(0);
+            if (pixelSize != null) {
+                metadata.pixelSize = pixelSize.value().doubleValue();
+                metadata.unit = pixelSize.unit().getSymbol();
+            }
+            metadata.channelNames = new String[(nSeries > 0) ? metadata.channelCounts[0] : 0];
+            for (int c = 0; c < metadata.channelNames.length; c++) {
+                metadata.channelNames[c] = omeMetadata.getChannelName(0, c);
+            }
+            process.getImageReader().close();
+        } catch (FormatException e) {
+            IJ.log(path + " is not an image that can be read: " + e.getMessage());
+            metadata.seriesLabels = new String[0];
+        }
+        synchronized (this) {
+            if (!grouped) {
+                entries.put(path, metadata);
+                changed = true;
+            } else if (entries.remove(path) != null) {
+                changed = true;
+            }
+            probed++;
+        }
+        return metadata;
+    }
+
+    /**
+     * @return number of files opened since the index was loaded
+     */
+    public synchronized int getNbProbed() {
+        return probed;
+    }
+
+    private synchronized void load() {
+        if (!file.exists()) return;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                IJ.log("the index " + file + " has another format, the files will be opened again");
+                return;
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                try {
+                    FileMetadata metadata = new FileMetadata(unescape(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+                    metadata.idName = unescape(fields[3]);
+                    metadata.currentFile = unescape(fields[4]);
+                    metadata.pixelSize = Double.parseDouble(fields[5]);
+                    metadata.unit = unescape(fields[6]);
+                    int nSeries = Integer.parseInt(fields[7]);
+                    int index = 8;
+                    metadata.seriesLabels = new String[nSeries];
+                    metadata.imageNames = new String[nSeries];
+                    metadata.channelCounts = new int[nSeries];
+                    metadata.sizeZ = new int[nSeries];
+                    for (int s = 0; s < nSeries; s++) {
+                        metadata.seriesLabels[s] = unescape(fields[index++]);
+                        metadata.imageNames[s] = unescape(fields[index++]);
+                        metadata.channelCounts[s] = Integer.parseInt(fields[index++]);
+                        metadata.sizeZ[s] = Integer.parseInt(fields[index++]);
+                    }
+                    metadata.channelNames = new String[Integer.parseInt(fields[index++])];
+                    for (int c = 0; c < metadata.channelNames.length; c++) metadata.channelNames[c] = unescape(fields[index++]);
+                    entries.put(metadata.path, metadata);
+                } catch (RuntimeException e) {
+                    IJ.log("line of index not read: " + line);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * save the index if files were opened since it was loaded
+     * the index is written in a temporary file then moved over the index so that an interrupted save does not lose it
+     */
+    public synchronized void save() {
+        if (!changed) return;
+        File tmp = new File(file.getParentFile(), FILE + ".tmp");
+        try (PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(tmp)))) {
+            pw.println(HEADER);
+            for (FileMetadata metadata : entries.values()) {
+                StringBuilder line = new StringBuilder();
+                line.append(escape(metadata.path)).append('\t').append(metadata.size).append('\t').append(metadata.lastModified);
+                line.append('\t').append(escape(metadata.idName)).append('\t').append(escape(metadata.currentFile));
+                line.append('\t').append(metadata.pixelSize).append('\t').append(escape(metadata.unit));
+                line.append('\t').append(metadata.getSeriesCount());
+                for (int s = 0; s < metadata.getSeriesCount(); s++) {
+                    line.append('\t').append(escape(metadata.seriesLabels[s])).append('\t').append(escape(metadata.imageNames[s]));
+                    line.append('\t').append(metadata.channelCounts[s]).append('\t').append(metadata.sizeZ[s]);
+                }
+                line.append('\t').append(metadata.channelNames.length);
+                for (String name : metadata.channelNames) line.append('\t').append(escape(name));
+                pw.println(line);
+            }
+        } catch (IOException e) {
+            IJ.log("the index of files could not be saved in " + file.getParent());
+            e.printStackTrace();
+            return;
+        }
+        try {
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            IJ.log("the index of files could not be saved in " + file);
+            e.printStackTrace();
+            return;
+        }
+        changed = false;
+    }
+
+    /**
+     * null is written as \0, tabs and new lines are escaped
+     */
+    private static String escape(String value) {
+        if (value == null) return "\\0";
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String value) {
+        if (value.equals("\\0")) return null;
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,387 @@
+package fr.curie.micmaq.config;
+
+import fr.curie.micmaq.helpers.MeasureCalibration;
+import fr.curie.micmaq.segment.SegmentationParameters;
+import ij.IJ;
+import ij.measure.Measurements;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parameters.txt written by the plugin, read without the graphical interface
+ * - same keys as the parameters panels (setParameters/setMeasures of the GUI classes)
+ * - the parameters are created again for each call so that experiments running in parallel do not share them
+ * - segmentation by macro is not written in Parameters.txt and cannot be read
+ */
+public class ParametersFile {
+    public static final int NONE = 0;
+    public static final int NUCLEI = 1;
+    public static final int CELL = 2;
+    public static final int SPOT = 3;
+    public static final int QUANTIFICATION = 4;
+
+    static final String[] PROJECTIONS = {"Maximum projection", "Standard Deviation projection", "Sum Slices",
+            "Best Focal slice", "Maximum of 3 best Focal slices"};
+    private static final Pattern CHANNEL_LINE = Pattern.compile("CHANNEL (\\d+) \\(.*\\):\\s*(used|NOT USED)");
+
+    String directory;
+    String filePattern = "";
+    ArrayList<String> patterns;
+    MeasureCalibration calibration = new MeasureCalibration();
+    int tileSize = -1;
+    int tileOverlap = 0;
+    int nbChannels = 0;
+    HashMap<Integer, String> names = new HashMap<>();
+    HashMap<Integer, Integer> types = new HashMap<>();
+    HashMap<Integer, ArrayList<String>> channelLines = new HashMap<>();
+
+    /**
+     * read a parameters file
+     * @param path path of Parameters.txt
+     * @throws IOException if the file cannot be read
+     */
+    public ParametersFile(String path) throws IOException {
+        ArrayList<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) lines.add(line.trim());
+        }
+        int channel = -1;
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            Matcher matcher = CHANNEL_LINE.matcher(line);
+            if (matcher.matches()) {
+                channel = Integer.parseInt(matcher.group(1));
+                nbChannels = Math.max(nbChannels, channel);
+                types.put(channel, matcher.group(2).equals("used") ? QUANTIFICATION : NONE);
+                channelLines.put(channel, new ArrayList<String>());
+                continue;
+            }
+            if (channel > 0) {
+                ArrayList<String> params = channelLines.get(channel);
+                if (line.startsWith("NAME:") && params.isEmpty()) {
+                    String[] split = line.split(":");
+                    names.put(channel, (split.length > 1) ? split[1].trim() : "");
+                    continue;
+                }
+                params.add(line);
+                if (params.size() == 1 && types.get(channel) != NONE) {
+                    if (line.startsWith("SEGMENTATION")) types.put(channel, line.endsWith("nuclei") ? NUCLEI : CELL);
+                }
+                if (line.startsWith("SPOT ") && types.get(channel) == QUANTIFICATION) types.put(channel, SPOT);
+                continue;
+            }
+//            HEADER
+            if (line.startsWith("Directory : ")) directory = line.substring("Directory : ".length());
+            if (line.startsWith("Filter by image filename pattern: "))
+                filePattern = line.substring("Filter by image filename pattern: ".length());
+            if (line.startsWith("Rearrange image file into channels with patterns:")) {
+                patterns = new ArrayList<>();
+                while (i + 1 < lines.size() && lines.get(i + 1).startsWith("CHANNEL ") && lines.get(i + 1).contains(": ")
+                        && !CHANNEL_LINE.matcher(lines.get(i + 1)).matches()) {
+                    i++;
+                    patterns.add(lines.get(i).substring(lines.get(i).indexOf(": ") + 2));
+                }
+            }
+            if (line.startsWith("CALIBRATION: ")) {
+                String calib = line.substring("CALIBRATION: ".length());
+                String[] split = calib.split("\\(x");
+                if (split.length > 1) {
+                    String[] value = split[1].split(" ");
+                    calibration = new MeasureCalibration(split[0], value[0], value[1].split("\\)")[0]);
+                }
+            }
+            if (line.startsWith("Cellpose tiling: size=")) {
+                String[] split = line.substring("Cellpose tiling: size=".length()).split("overlap=");
+                tileSize = Integer.parseInt(split[0].trim());
+                if (split.length > 1) tileOverlap = Integer.parseInt(split[1].trim());
+            }
+        }
+        if (getNucleiChannel() < 0 && getCellChannel() < 0) IJ.log("no segmentation found in " + path);
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public String getFilePattern() {
+        return filePattern;
+    }
+
+    /**
+     * @return patterns to rearrange files into channels, null if the images were not rearranged
+     */
+    public ArrayList<String> getPatterns() {
+        return patterns;
+    }
+
+    public MeasureCalibration getCalibration() {
+        return calibration;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getTileOverlap() {
+        return tileOverlap;
+    }
+
+    public int getNbChannels() {
+        return nbChannels;
+    }
+
+    public boolean isUsed(int channel) {
+        return types.containsKey(channel) && types.get(channel) != NONE;
+    }
+
+    /**
+     * @param channel channel in range [1,Nchannels]
+     * @return NONE, NUCLEI, CELL, SPOT or QUANTIFICATION
+     */
+    public int getType(int channel) {
+        return types.containsKey(channel) ? types.get(channel) : NONE;
+    }
+
+    public String getProteinName(int channel) {
+        return names.containsKey(channel) ? names.get(channel) : "";
+    }
+
+    public int getNucleiChannel() {
+        for (int c = 1; c <= nbChannels; c++) if (getType(c) == NUCLEI) return c;
+        return -1;
+    }
+
+    public int getCellChannel() {
+        for (int c = 1; c <= nbChannels; c++) if (getType(c) == CELL) return c;
+        return -1;
+    }
+
+    /**
+     * @param channel segmentation channel
+     * @return segmentation parameters (measurements from the quantification parameters of the channel)
+     */
+    public SegmentationParameters createSegmentationParameters(int channel) {
+        ArrayList<String> params = channelLines.get(channel);
+        SegmentationParameters result = null;
+        int projection = -1;
+        int sliceMin = -1;
+        int sliceMax = -1;
+        String macro = null;
+        boolean inMacro = false;
+        for (int i = 0; i < params.size(); i++) {
+            String line = params.get(i);
+            if (line.startsWith("Quantification  Parameters")) break;
+            if (line.startsWith("Use ")) inMacro = false;
+            if (inMacro) {
+                macro += line + "\n";
+                continue;
+            }
+            if (line.startsWith("Macro:")) {
+                macro = "";
+                inMacro = true;
+            }
+            if (line.startsWith("Projection: ")) projection = projectionIndex(value(line));
+            if (line.startsWith("Slices ")) {
+                String[] slices = line.substring("Slices ".length()).split("-");
+                sliceMin = Integer.parseInt(slices[0].trim());
+                sliceMax = Integer.parseInt(slices[1].trim());
+            }
+            if (line.equals("Use Cellpose:")) {
+                int offset = 1;
+                String model = value(params.get(i + offset++));
+                File modelPath = null;
+                if (params.get(i + offset).startsWith("Cellpose model path: ")) modelPath = new File(value(params.get(i + offset++)));
+                int diameter = Integer.parseInt(value(params.get(i + offset++)));
+                double proba = Double.parseDouble(value(params.get(i + offset)));
+                result = SegmentationParameters.createCellpose(model, diameter, proba);
+                if (model.equals("own_model") && modelPath != null) {
+                    result.setPathToModel(modelPath);
+                    result.setCellposeModel(modelPath.getAbsolutePath());
+                }
+            } else if (line.equals("Use StarDist:")) {
+                int offset = 1;
+                String model = value(params.get(i + offset++));
+                String modelPath = null;
+                if (params.get(i + offset).startsWith("StarDist model path: ")) modelPath = value(params.get(i + offset++));
+                double low = Double.parseDouble(value(params.get(i + offset++)));
+                double high = Double.parseDouble(value(params.get(i + offset++)));
+                double proba = Double.parseDouble(value(params.get(i + offset++)));
+                double nms = Double.parseDouble(value(params.get(i + offset++)));
+                double scale = Double.parseDouble(value(params.get(i + offset)));
+                result = SegmentationParameters.createStarDist(model, low, high, proba, nms, modelPath, scale);
+            } else if (line.equals("Use thresholding:")) {
+                String method = value(params.get(i + 1));
+                double minSize = Double.parseDouble(value(params.get(i + 2)));
+                result = SegmentationParameters.createThresholding(method, params.get(i + 3).endsWith("yes"));
+                result.setMinSize(minSize);
+            }
+        }
+        if (result == null) {
+            IJ.log("channel " + channel + ": segmentation method not found in parameters (segmentation by macro is not supported)");
+            return null;
+        }
+        if (projection >= 0) result.setProjection(projection, sliceMin, sliceMax);
+        if (macro != null) result.setPreprocessMacro(macro);
+        for (String line : params) {
+            if (line.startsWith("Quantification  Parameters")) break;
+            if (line.startsWith("Exclude on edges:")) result.setExcludeOnEdge(line.endsWith("yes"));
+            if (line.startsWith("Final user validation:") && line.endsWith("yes"))
+                IJ.log("channel " + channel + ": final user validation is not possible without interface, it is skipped");
+            if (line.startsWith("save Roi:")) result.setSaveROIs(line.endsWith("yes"));
+            if (line.startsWith("save mask:")) result.setSaveMasks(line.endsWith("yes"));
+            if (line.startsWith("save preprocessed:")) result.setSavePreprocessed(line.endsWith("yes"));
+            if (line.startsWith("min size overlap nucleus/cell:")) {
+                int next = params.indexOf(line) + 1;
+                double minCytoSize = (next < params.size() && params.get(next).startsWith("min size of cytoplasm:")) ? Double.parseDouble(value(params.get(next))) : 0;
+                result.setCytoplasmParameters(Double.parseDouble(value(line)), minCytoSize);
+            }
+            if (line.startsWith("expand radius:")) result.setExpansionRadius(Integer.parseInt(value(line)));
+        }
+        result.setUserValidation(false);
+        MeasureValue measures = new MeasureValue(true);
+        measures.setMeasure(getMeasure(channel, true));
+        result.setMeasurements(measures);
+        return result;
+    }
+
+    /**
+     * @param channel spot channel
+     * @return spot detection parameters of the channel
+     */
+    public MeasureValue createSpotMeasure(int channel) {
+        ArrayList<String> params = channelLines.get(channel);
+        MeasureValue measureValue = new MeasureValue(false);
+        measureValue.setMeasure(Measurements.MEAN + Measurements.INTEGRATED_DENSITY);
+        String macro = null;
+        for (int i = 0; i < params.size(); i++) {
+            String line = params.get(i);
+            if (line.startsWith("Quantification  Parameters")) break;
+            if (macro != null) {
+                if (line.startsWith("end Macro")) {
+                    measureValue.setPreprocessMacro(macro);
+                    macro = null;
+                } else {
+                    macro += line + "\n";
+                }
+                continue;
+            }
+            if (line.startsWith("Macro:")) macro = "";
+            if (line.startsWith("Projection: ")) measureValue.setProjection(projectionIndex(value(line)));
+            if (line.startsWith("Slices ")) {
+                String[] slices = line.substring("Slices ".length()).split("-");
+                measureValue.setProjectionSliceMin(Integer.parseInt(slices[0].trim()));
+                measureValue.setProjectionSliceMax(Integer.parseInt(slices[1].trim()));
+            }
+            if (line.startsWith("Subtract Background:"))
+                measureValue.setSubtractBGRadius(Double.parseDouble(value(line).split(" ")[1]));
+            if (line.endsWith("Local Maxima:")) measureValue.setSpotFindMaxima(Double.parseDouble(value(params.get(i + 1))));
+            if (line.endsWith("thresholding:")) {
+                int offset = 1;
+                String method = "user_defined";
+                double threshold = 0;
+                if (params.get(i + offset).startsWith("User defined threshold:")) {
+                    threshold = Double.parseDouble(value(params.get(i + offset++)));
+                } else {
+                    method = value(params.get(i + offset++));
+                }
+                boolean darkBg = params.get(i + offset++).endsWith("true");
+                int minSize = Integer.parseInt(value(params.get(i + offset++)));
+                boolean watershed = params.get(i + offset).endsWith("yes");
+                double minTh = darkBg ? threshold : -1.0E30D;
+                double maxTh = darkBg ? 1.0E30D : threshold;
+                measureValue.setSpotThreshold(method, minTh, maxTh, minSize, watershed, darkBg);
+            }
+        }
+        return measureValue;
+    }
+
+    /**
+     * @param channel used channel
+     * @param morphology true for a segmentation channel
+     * @return measurements and preprocessing of the quantification parameters of the channel
+     */
+    public MeasureValue createQuantificationMeasure(int channel, boolean morphology) {
+        MeasureValue measure = new MeasureValue(morphology);
+        measure.setMeasure(getMeasure(channel, morphology));
+        ArrayList<String> params = quantificationLines(channel);
+        String macro = null;
+        for (String line : params) {
+            if (line.startsWith("Measurements")) break;
+            if (macro != null) {
+                macro += line + "\n";
+                continue;
+            }
+            if (line.startsWith("Macro:")) macro = "";
+            if (line.startsWith("Projection: ")) measure.setProjection(projectionIndex(value(line)));
+            if (line.startsWith("Slices ")) {
+                String[] slices = line.substring("Slices ".length()).split("-");
+                measure.setProjectionSliceMin(Integer.parseInt(slices[0].trim()));
+                measure.setProjectionSliceMax(Integer.parseInt(slices[1].trim()));
+            }
+        }
+        if (macro != null) measure.setPreprocessMacro(macro);
+        return measure;
+    }
+
+    /**
+     * @param channel used channel
+     * @return preprocessing macro of the quantification of the channel, null if none
+     */
+    public String getQuantificationMacro(int channel) {
+        return createQuantificationMeasure(channel, false).getPreprocessMacro();
+    }
+
+    /**
+     * measurements listed in the quantification parameters of a channel (same values as QuantificationParametersGUI)
+     */
+    private int getMeasure(int channel, boolean morphology) {
+        int measure = Measurements.MEAN + Measurements.INTEGRATED_DENSITY;
+        if (morphology) measure += Measurements.AREA;
+        for (String line : quantificationLines(channel)) {
+            if (line.equals("median")) measure += Measurements.MEDIAN;
+            if (line.equals("std_dev")) measure += Measurements.STD_DEV;
+            if (line.equals("min_max")) measure += Measurements.MIN_MAX;
+            if (line.equals("skewness")) measure += Measurements.SKEWNESS;
+            if (line.equals("mode")) measure += Measurements.MODE;
+            if (line.equals("kurtosis")) measure += Measurements.KURTOSIS;
+            if (!morphology) continue;
+            if (line.equals("perimeter")) measure += Measurements.PERIMETER;
+            if (line.equals("bound_rectangle")) measure += Measurements.RECT;
+            if (line.equals("centroid")) measure += Measurements.CENTROID;
+            if (line.equals("center_of_mass")) measure += Measurements.CENTER_OF_MASS;
+            if (line.equals("area_fraction")) measure += Measurements.AREA_FRACTION;
+            if (line.equals("fit_ellipse")) measure += Measurements.ELLIPSE;
+            if (line.equals("shape_descriptor")) measure += Measurements.SHAPE_DESCRIPTORS;
+            if (line.equals("Feret's_diameter")) measure += Measurements.FERET;
+        }
+        return measure;
+    }
+
+    private ArrayList<String> quantificationLines(int channel) {
+        ArrayList<String> params = channelLines.get(channel);
+        ArrayList<String> result = new ArrayList<>();
+        boolean q = false;
+        for (String line : params) {
+            if (q) result.add(line);
+            if (line.startsWith("Quantification  Parameters")) q = true;
+        }
+        return result;
+    }
+
+    private static String value(String line) {
+        return line.substring(line.indexOf(": ") + 2).trim();
+    }
+
+    static int projectionIndex(String method) {
+        for (int p = 0; p < PROJECTIONS.length; p++) if (PROJECTIONS[p].equalsIgnoreCase(method)) return p;
+        return MeasureValue.PROJECTION_MAX;
+    }
+}
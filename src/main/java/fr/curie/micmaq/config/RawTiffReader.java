@@ -0,0 +1,232 @@
+package fr.curie.micmaq.config;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * Planes of an uncompressed TIFF file read directly from the file channel, without Bio-Formats
+ * - only the layouts read as is are accepted: classic TIFF, strips, one sample per pixel, no compression,
+ *   8 or 16 bits unsigned or 32 bits float, black is zero, same size for all planes
+ * - {@link #open(String)} gives null for the other files, which are read with Bio-Formats
+ * - the strips of a plane are read at their offsets into a buffer reused for all planes, then copied once into the
+ *   pixels of the processor (ImageJ needs arrays)
+ */
+public class RawTiffReader implements Closeable {
+    private final FileChannel channel;
+    private final ByteOrder order;
+    private final int width;
+    private final int height;
+    private final int bitDepth;
+    private final ArrayList<long[]> stripOffsets = new ArrayList<>();
+    private final ArrayList<long[]> stripByteCounts = new ArrayList<>();
+    private ByteBuffer buffer;
+
+    private RawTiffReader(FileChannel channel, ByteOrder order, int width, int height, int bitDepth) {
+        this.channel = channel;
+        this.order = order;
+        this.width = width;
+        this.height = height;
+        this.bitDepth = bitDepth;
+    }
+
+    /**
+     * @param path path of file
+     * @return the reader or null if the file is not an uncompressed TIFF that can be read as is
+     */
+    public static RawTiffReader open(String path) throws IOException {
+        String lower = path.toLowerCase();
+        if (!lower.endsWith(".tif") && !lower.endsWith(".tiff")) return null;
+        FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        RawTiffReader result = null;
+        try {
+            result = parse(channel);
+            return result;
+        } finally {
+            if (result == null) channel.close();
+        }
+    }
+
+    private static RawTiffReader parse(FileChannel channel) throws IOException {
+        ByteBuffer header = read(channel, 0, 8, ByteOrder.BIG_ENDIAN);
+        if (header == null) return null;
+        short magic = header.getShort(0);
+        ByteOrder order;
+        if (magic == 0x4949) order = ByteOrder.LITTLE_ENDIAN;
+        else if (magic == 0x4D4D) order = ByteOrder.BIG_ENDIAN;
+        else return null;
+        header.order(order);
+        if (header.getShort(2) != 42) return null; /*BigTIFF and others*/
+        long ifd = header.getInt(4) & 0xFFFFFFFFL;
+        RawTiffReader result = null;
+        while (ifd != 0) {
+            ByteBuffer count = read(channel, ifd, 2, order);
+            if (count == null) return null;
+            int nbEntries = count.getShort(0) & 0xFFFF;
+            ByteBuffer entries = read(channel, ifd + 2, nbEntries * 12 + 4, order);
+            if (entries == null) return null;
+            int width = -1, height = -1, bits = 1, compression = 1, samples = 1, planar = 1, format = 1, photometric = 1;
+            long rowsPerStrip = Long.MAX_VALUE;
+            long[] offsets = null, byteCounts = null;
+            for (int e = 0; e < nbEntries; e++) {
+                int base = e * 12;
+                int tag = entries.getShort(base) & 0xFFFF;
+                switch (tag) {
+                    case 256: width = (int) value(channel, entries, base, order)[0]; break;
+                    case 257: height = (int) value(channel, entries, base, order)[0]; break;
+                    case 258: bits = (int) value(channel, entries, base, order)[0]; break;
+                    case 259: compression = (int) value(channel, entries, base, order)[0]; break;
+                    case 262: photometric = (int) value(channel, entries, base, order)[0]; break;
+                    case 273: offsets = value(channel, entries, base, order); break;
+                    case 277: samples = (int) value(channel, entries, base, order)[0]; break;
+                    case 278: rowsPerStrip = value(channel, entries, base, order)[0]; break;
+                    case 279: byteCounts = value(channel, entries, base, order); break;
+                    case 284: planar = (int) value(channel, entries, base, order)[0]; break;
+                    case 339: format = (int) value(channel, entries, base, order)[0]; break;
+                    case 322: case 323: case 324: case 325: return null; /*tiles*/
+                    default:
+                }
+            }
+            if (compression != 1 || samples != 1 || planar != 1 || photometric != 1 || offsets == null || byteCounts == null) return null;
+            if (offsets.length != byteCounts.length || width <= 0 || height <= 0) return null;
+            for (int i = 0; i < offsets.length; i++) {
+                if (offsets[i] + byteCounts[i] > channel.size()) return null;
+            }
+            if (!((bits == 8 || bits == 16) && format == 1) && !(bits == 32 && format == 3)) return null;
+            long planeBytes = (long) width * height * (bits / 8);
+            long total = 0;
+            for (long b : byteCounts) total += b;
+            if (total < planeBytes || planeBytes > Integer.MAX_VALUE) return null;
+            if (rowsPerStrip < height && offsets.length < (height + rowsPerStrip - 1) / rowsPerStrip) return null;
+            if (result == null) result = new RawTiffReader(channel, order, width, height, bits);
+            else if (result.width != width || result.height != height || result.bitDepth != bits) return null;
+            result.stripOffsets.add(offsets);
+            result.stripByteCounts.add(byteCounts);
+            ifd = entries.getInt(nbEntries * 12) & 0xFFFFFFFFL;
+        }
+        return result;
+    }
+
+    /**
+     * values of an entry of IFD, read at their offset when they do not fit in the entry
+     */
+    private static long[] value(FileChannel channel, ByteBuffer entries, int base, ByteOrder order) throws IOException {
+        int type = entries.getShort(base + 2) & 0xFFFF;
+        int count = entries.getInt(base + 4);
+        int size = (type == 3) ? 2 : (type == 4) ? 4 : (type == 1) ? 1 : -1;
+        if (size < 0 || count <= 0) throw new IOException("unexpected type of TIFF entry " + type);
+        ByteBuffer values = entries;
+        int position = base + 8;
+        if ((long) size * count > 4) {
+            values = read(channel, entries.getInt(base + 8) & 0xFFFFFFFFL, size * count, order);
+            if (values == null) throw new IOException("TIFF entry outside of file");
+            position = 0;
+        }
+        long[] result = new long[count];
+        for (int i = 0; i < count; i++) {
+            int p = position + i * size;
+            result[i] = (size == 2) ? values.getShort(p) & 0xFFFF : (size == 4) ? values.getInt(p) & 0xFFFFFFFFL : values.get(p) & 0xFF;
+        }
+        return result;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length, ByteOrder order) throws IOException {
+        if (position + length > channel.size()) return null;
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(order);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) return null;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    public int getPlaneCount() {
+        return stripOffsets.size();
+    }
+
+    /**
+     * @param index index of plane (IFD) in range [0,NPlanes-1]
+     * @return pixels of plane
+     */
+    public synchronized ImageProcessor getPlane(int index) throws IOException {
+        int bytesPerPixel = bitDepth / 8;
+        int planeBytes = width * height * bytesPerPixel;
+        long[] offsets = stripOffsets.get(index);
+        long[] byteCounts = stripByteCounts.get(index);
+        if (buffer == null || buffer.capacity() < planeBytes) buffer = ByteBuffer.allocateDirect(planeBytes);
+        ByteBuffer plane = buffer;
+        plane.clear();
+        plane.limit(planeBytes);
+        if (contiguous(offsets, byteCounts)) {
+            readFully(plane, offsets[0], planeBytes);
+        } else {
+            for (int s = 0; s < offsets.length && plane.hasRemaining(); s++) {
+                readFully(plane, offsets[s], (int) Math.min(byteCounts[s], plane.remaining()));
+            }
+        }
+        plane.flip();
+        plane.order(order);
+        switch (bitDepth) {
+            case 8:
+                byte[] bytes = new byte[width * height];
+                plane.get(bytes);
+                return new ByteProcessor(width, height, bytes);
+            case 16:
+                short[] shorts = new short[width * height];
+                plane.asShortBuffer().get(shorts);
+                return new ShortProcessor(width, height, shorts, null);
+            default:
+                float[] floats = new float[width * height];
+                plane.asFloatBuffer().get(floats);
+                return new FloatProcessor(width, height, floats);
+        }
+    }
+
+    /**
+     * read length bytes of the file at position into the buffer, from its current position
+     */
+    private void readFully(ByteBuffer plane, long position, int length) throws IOException {
+        int end = plane.position() + length;
+        int limit = plane.limit();
+        plane.limit(end);
+        while (plane.hasRemaining()) {
+            if (channel.read(plane, position + length - (end - plane.position())) < 0) throw new IOException("end of TIFF file reached");
+        }
+        plane.limit(limit);
+    }
+
+    private boolean contiguous(long[] offsets, long[] byteCounts) {
+        for (int s = 1; s < offsets.length; s++) {
+            if (offsets[s] != offsets[s - 1] + byteCounts[s - 1]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer = null;
+        channel.close();
+    }
+}
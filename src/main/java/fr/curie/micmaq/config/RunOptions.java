@@ -0,0 +1,223 @@
+package fr.curie.micmaq.config;
+
+import ij.Macro;
+import ij.Prefs;
+import ij.plugin.frame.Recorder;
+
+/**
+ * Options of an analysis run, the same for the plugin and the batch (see fr.curie.micmaq.batch.AnalysisRun)
+ * - read from the options of a macro or of the command line with the keys recorded by the plugin ({@link #parse(String)})
+ * - the plugin keeps the choices of its Options menu in the ImageJ preferences ({@link #fromPreferences()})
+ * - the options of the detectors are given to each experiment by its settings (see {@link ExperimentSettings#setRunOptions})
+ */
+public class RunOptions {
+    private static final String PREFS = "MICMAQ.run.";
+
+    /**
+     * number of fields of view analysed at the same time
+     */
+    int nbWorkers = 1;
+    /**
+     * number of files opened at the same time when the working directory is parsed
+     */
+    int nbReaders = 1;
+    /**
+     * maximum size (MB) of the images read in advance while the fields of view are analysed (0 to disable)
+     */
+    int prefetchMemoryMB = 1024;
+    /**
+     * project the stacks while their planes are read instead of reading the whole stacks
+     */
+    boolean streamProjections = false;
+    /**
+     * skip the fields of view already analysed by the previous run with the same parameters
+     */
+    boolean resumeRun = false;
+    /**
+     * label masks written as deflate compressed TIFF with 32 bits labels
+     */
+    boolean compressMasks = false;
+    /**
+     * the spot ROIs of all the regions of an image are saved in one archive
+     */
+    boolean singleSpotArchive = false;
+    /**
+     * one Cellpose process keeps its model loaded during the run (see fr.curie.micmaq.detectors.CellposeWorker)
+     */
+    boolean cellposeWorkers = false;
+    /**
+     * Cellpose tiling, no tiling if the size is negative
+     */
+    int tileSize = -1;
+    int tileOverlap = -1;
+    /**
+     * maximum number of Cellpose processes segmenting the tiles of an image at the same time
+     */
+    int tileProcesses = 1;
+
+    /**
+     * @param options options of a macro or of the command line, the options not given keep their default value
+     * @return options of the run
+     */
+    public static RunOptions parse(String options) {
+        RunOptions result = new RunOptions();
+        String padded = " " + options + " ";
+        result.nbWorkers = Math.max(1, Integer.parseInt(Macro.getValue(options, "workers", "1")));
+        result.prefetchMemoryMB = Math.max(0, Integer.parseInt(Macro.getValue(options, "readahead", "1024")));
+        result.nbReaders = Math.max(1, Integer.parseInt(Macro.getValue(options, "readers", "1")));
+        String tileSize = Macro.getValue(options, "tileSize", null);
+        if (tileSize != null) {
+            result.tileSize = Integer.parseInt(tileSize);
+            result.tileOverlap = Integer.parseInt(Macro.getValue(options, "tileOverlap", "0"));
+        }
+        result.tileProcesses = Math.max(1, Integer.parseInt(Macro.getValue(options, "tileProcesses", "1")));
+        result.resumeRun = padded.contains(" resume ");
+        result.streamProjections = padded.contains(" streaming ");
+        result.compressMasks = padded.contains(" compressmasks ");
+        result.singleSpotArchive = padded.contains(" spotarchive ");
+        result.cellposeWorkers = padded.contains(" cellposeworker ");
+        return result;
+    }
+
+    /**
+     * record the options that are not the default ones, with the keys read by {@link #parse(String)}
+     */
+    public void record() {
+        if (tileSize > 0) {
+            Recorder.recordOption("tileSize", "" + tileSize);
+            Recorder.recordOption("tileOverlap", "" + tileOverlap);
+            if (tileProcesses > 1) Recorder.recordOption("tileProcesses", "" + tileProcesses);
+        }
+        if (nbWorkers > 1) Recorder.recordOption("workers", "" + nbWorkers);
+        if (prefetchMemoryMB != 1024) Recorder.recordOption("readahead", "" + prefetchMemoryMB);
+        if (nbReaders > 1) Recorder.recordOption("readers", "" + nbReaders);
+        if (streamProjections) Recorder.recordOption("streaming");
+        if (resumeRun) Recorder.recordOption("resume");
+        if (compressMasks) Recorder.recordOption("compressmasks");
+        if (singleSpotArchive) Recorder.recordOption("spotarchive");
+        if (cellposeWorkers) Recorder.recordOption("cellposeworker");
+    }
+
+    /**
+     * @return options chosen in the Options menu of the plugin
+     */
+    public static RunOptions fromPreferences() {
+        RunOptions result = new RunOptions();
+        result.nbWorkers = Math.max(1, (int) Prefs.get(PREFS + "workers", 1));
+        result.nbReaders = Math.max(1, (int) Prefs.get(PREFS + "readers", 1));
+        result.prefetchMemoryMB = Math.max(0, (int) Prefs.get(PREFS + "readahead", 1024));
+        result.streamProjections = Prefs.get(PREFS + "streaming", false);
+        result.resumeRun = Prefs.get(PREFS + "resume", false);
+        result.compressMasks = Prefs.get(PREFS + "compressmasks", false);
+        result.singleSpotArchive = Prefs.get(PREFS + "spotarchive", false);
+        result.cellposeWorkers = Prefs.get(PREFS + "cellposeworker", false);
+        result.tileSize = (int) Prefs.get(PREFS + "tileSize", -1);
+        result.tileOverlap = (int) Prefs.get(PREFS + "tileOverlap", -1);
+        result.tileProcesses = Math.max(1, (int) Prefs.get(PREFS + "tileProcesses", 1));
+        return result;
+    }
+
+    /**
+     * keep the options in the ImageJ preferences, for the next use of the plugin
+     */
+    public void savePreferences() {
+        Prefs.set(PREFS + "workers", nbWorkers);
+        Prefs.set(PREFS + "readers", nbReaders);
+        Prefs.set(PREFS + "readahead", prefetchMemoryMB);
+        Prefs.set(PREFS + "streaming", streamProjections);
+        Prefs.set(PREFS + "resume", resumeRun);
+        Prefs.set(PREFS + "compressmasks", compressMasks);
+        Prefs.set(PREFS + "spotarchive", singleSpotArchive);
+        Prefs.set(PREFS + "cellposeworker", cellposeWorkers);
+        Prefs.set(PREFS + "tileSize", tileSize);
+        Prefs.set(PREFS + "tileOverlap", tileOverlap);
+        Prefs.set(PREFS + "tileProcesses", tileProcesses);
+    }
+
+    public int getNbWorkers() {
+        return nbWorkers;
+    }
+
+    public void setNbWorkers(int nbWorkers) {
+        this.nbWorkers = Math.max(1, nbWorkers);
+    }
+
+    public int getNbReaders() {
+        return nbReaders;
+    }
+
+    public void setNbReaders(int nbReaders) {
+        this.nbReaders = Math.max(1, nbReaders);
+    }
+
+    public int getPrefetchMemoryMB() {
+        return prefetchMemoryMB;
+    }
+
+    public void setPrefetchMemoryMB(int prefetchMemoryMB) {
+        this.prefetchMemoryMB = Math.max(0, prefetchMemoryMB);
+    }
+
+    public boolean isStreamProjections() {
+        return streamProjections;
+    }
+
+    public void setStreamProjections(boolean streamProjections) {
+        this.streamProjections = streamProjections;
+    }
+
+    public boolean isResumeRun() {
+        return resumeRun;
+    }
+
+    public void setResumeRun(boolean resumeRun) {
+        this.resumeRun = resumeRun;
+    }
+
+    public boolean isCompressMasks() {
+        return compressMasks;
+    }
+
+    public void setCompressMasks(boolean compressMasks) {
+        this.compressMasks = compressMasks;
+    }
+
+    public boolean isSingleSpotArchive() {
+        return singleSpotArchive;
+    }
+
+    public void setSingleSpotArchive(boolean singleSpotArchive) {
+        this.singleSpotArchive = singleSpotArchive;
+    }
+
+    public boolean isCellposeWorkers() {
+        return cellposeWorkers;
+    }
+
+    public void setCellposeWorkers(boolean cellposeWorkers) {
+        this.cellposeWorkers = cellposeWorkers;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getTileOverlap() {
+        return tileOverlap;
+    }
+
+    public int getTileProcesses() {
+        return tileProcesses;
+    }
+
+    /**
+     * @param tileSize size of the tiles, negative for no tiling
+     * @param tileOverlap overlap of the tiles
+     * @param tileProcesses maximum number of Cellpose processes segmenting the tiles at the same time
+     */
+    public void setTiling(int tileSize, int tileOverlap, int tileProcesses) {
+        this.tileSize = tileSize;
+        this.tileOverlap = tileOverlap;
+        this.tileProcesses = Math.max(1, tileProcesses);
+    }
+}
@@ -1,6 +1,8 @@
 package fr.curie.micmaq.detectors;
 
+import fr.curie.micmaq.helpers.BackgroundWriter;
 import fr.curie.micmaq.helpers.MeasureCalibration;
+import fr.curie.micmaq.helpers.StageTimings;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -44,6 +46,7 @@ public class CellDetector {
     private boolean saveBinary;
     private boolean saveRois;
     private boolean savePreprocessed;
+    private boolean compressMasks = false;
     private boolean showBinaryImage;
 
     //    Parameters for cellpose
@@ -51,6 +54,9 @@ public class CellDetector {
     private double cellposeCellproba_threshold; /* threshold for cell probability in cellpose*/
     private String cellposeModel; /*model to be used by cellpose*/
     private boolean excludeOnEdges; /*exclude the cells on the edge*/
+    private int tileSize = -1; /*Cellpose tiling, no tiling if negative*/
+    private int tileOverlap = -1;
+    private int tileProcesses = 1;
 
     //    Cytoplasm parameters
     private NucleiDetector nucleiDetector; /*Object associated to nuclei images */
@@ -164,6 +170,24 @@ public class CellDetector {
         this.savePreprocessed=savePreprocessedImage;
     }
 
+    /**
+     * @param compressMasks true to write the label masks as deflate compressed TIFF with 32 bits labels
+     */
+    public void setCompressMasks(boolean compressMasks) {
+        this.compressMasks = compressMasks;
+    }
+
+    /**
+     * @param tileSize size of the tiles segmented by Cellpose, negative for no tiling
+     * @param tileOverlap overlap of the tiles
+     * @param tileProcesses maximum number of Cellpose processes segmenting the tiles at the same time
+     */
+    public void setCellposeTiling(int tileSize, int tileOverlap, int tileProcesses) {
+        this.tileSize = tileSize;
+        this.tileOverlap = tileOverlap;
+        this.tileProcesses = tileProcesses;
+    }
+
     /**
      * @param minSizeDLCell  : minimum size of cell to detect
      * @param cellposeModel  : model used by cellpose to segment
@@ -203,12 +227,7 @@ public class CellDetector {
         if (cellRois!=null && cellRois.length > 0) {
 //            Save Rois
             if (resultsDirectory != null && saveRois) {
-                RoiManager roiManager = RoiManager.getInstance();
-                if (roiManager == null) { /*if no instance of roiManager, creates one*/
-                    roiManager = new RoiManager();
-                } else { /*if already exists, empties it*/
-                    roiManager.reset();
-                }
+                RoiCollection roiManager = new RoiCollection();
                 /*Add to roiManager*/
                 for (int i = 0; i < modifiedCellRois.length; i++) {
                     Roi roi = modifiedCellRois[i];
@@ -284,24 +303,27 @@ public class CellDetector {
         preprocessed = prepareImageForSegmentation();
 
         if(preprocessed==null) return false;
-        RoiManager roiManagerCell;
+        RoiCollection roiManagerCell;
 
         if (macroSegmentation) {
-            labeledImage=runMacroSegmentation(preprocessed);
-            analysisType = "macro segmentation";
-            if (isMacroOutputImage && macroOutputRoiManager) {
-                roiManagerCell = RoiManager.getRoiManager();
-            } else if (macroOutputRoiManager){
-                roiManagerCell = RoiManager.getRoiManager();
-                labeledImage = detector.labeledImage(roiManagerCell.getRoisAsArray());
-            } else {
-                roiManagerCell = CellposeLauncher.label2Roi(labeledImage, 0, 0, 0);
+            synchronized (Detector.IMAGEJ_LOCK) { /*the RoiManager filled by the macro is read before another macro runs*/
+                if (macroOutputRoiManager) RoiManager.getRoiManager().reset(); /*only the ROIs of this macro*/
+                labeledImage=runMacroSegmentation(preprocessed);
+                analysisType = "macro segmentation";
+                if (isMacroOutputImage && macroOutputRoiManager) {
+                    roiManagerCell = new RoiCollection(RoiManager.getRoiManager().getRoisAsArray()); /*the macro outputs in the RoiManager*/
+                } else if (macroOutputRoiManager){
+                    roiManagerCell = new RoiCollection(RoiManager.getRoiManager().getRoisAsArray());
+                    labeledImage = detector.labeledImage(roiManagerCell.getRoisAsArray());
+                } else {
+                    roiManagerCell = CellposeLauncher.label2Roi(labeledImage, 0, 0, 0);
+                }
             }
         } else {
             analysisType = "Cellpose segmentation";
             ArrayList<Object> data= runCellposeSegmentation(preprocessed);
             labeledImage = (ImagePlus) data.get(0);
-            roiManagerCell = (RoiManager) data.get(1);
+            roiManagerCell = (RoiCollection) data.get(1);
             roi3D = (Objects3DIntPopulation) data.get(2);
             if(roiManagerCell==null) {
                 IJ.error("There is a problem with the cellpose segmentation 2 roi");
@@ -336,17 +358,21 @@ public class CellDetector {
         }
 //            Allow user to redefine the regions of interest
         if (finalValidation && !preview ) {
-            roiManagerCell.toFront();
-            ImagePlus tempImage = preprocessed.duplicate(); /*Need to duplicate, as closing the image nullify the ImageProcessor*/
-            tempImage.show();
-            IJ.selectWindow(tempImage.getID());
-            roiManagerCell.runCommand("Show All");
-            new WaitForUserDialog("Cell selection", "Delete cells : select the ROIs + delete").show();
-            if (!showBinaryImage) {
-                tempImage.close();
+            synchronized (Detector.IMAGEJ_LOCK) { /*one validation at a time in the RoiManager*/
+                RoiManager roiManager = roiManagerCell.toRoiManager();
+                roiManager.toFront();
+                ImagePlus tempImage = preprocessed.duplicate(); /*Need to duplicate, as closing the image nullify the ImageProcessor*/
+                tempImage.show();
+                IJ.selectWindow(tempImage.getID());
+                roiManager.runCommand("Show All");
+                new WaitForUserDialog("Cell selection", "Delete cells : select the ROIs + delete").show();
+                roiManagerCell = new RoiCollection(roiManager.getRoisAsArray());
+                if (!showBinaryImage) {
+                    tempImage.close();
+                }
+                /*Obtain new ROIs*/
+                labeledImage = detector.labeledImage(roiManagerCell.getRoisAsArray());
             }
-            /*Obtain new ROIs*/
-            labeledImage = detector.labeledImage(roiManagerCell.getRoisAsArray());
         }
 //            SAVINGS
         cellRois = roiManagerCell.getRoisAsArray();
@@ -394,7 +420,6 @@ public class CellDetector {
                 WindowManager.setWindow(WindowManager.getWindow("Log"));
             }
             String analysisType;
-            RoiManager roiManagerCell;
             ImagePlus labeledImage;
             ImagePlus imageToReturn = preprocessed; /*detector class does the projection if needed*/
             if (nucleiDetector != null) {
@@ -445,10 +470,7 @@ public class CellDetector {
         ImagePlus temp;
 //      MACRO : apply custom commands of user
 
-        imageToReturn.show();
-        IJ.selectWindow(imageToReturn.getID());
-        IJ.runMacro("//setBatchMode(true);\n" + segmentationMacro + "\n//setBatchMode(false);"); /*accelerates the treatment by displaying only the last image*/
-        temp = WindowManager.getCurrentImage();
+        temp = Detector.runMacro(imageToReturn, "//setBatchMode(true);\n" + segmentationMacro + "\n//setBatchMode(false);", StageTimings.SEGMENTATION); /*accelerates the treatment by displaying only the last image*/
         if(!showPreprocessedImage) imageToReturn.hide();
         //imageToReturn.setTitle("image to return");
         temp.changes = false;
@@ -473,13 +495,14 @@ public class CellDetector {
         } else {/*No nuclei channel*/
             cellposeLauncher = new CellposeLauncher(imageToReturn, minSizeCell, cellposeCellproba_threshold, cellposeModel, excludeOnEdges);
         }
+        cellposeLauncher.setTiling(tileSize, tileOverlap, tileProcesses);
 //            Launch Cellpose
         cellposeLauncher.analysis();
 //            Get cellpose mask and roiManager
         ImagePlus labeledImage = cellposeLauncher.getCellposeMask();
         detector.renameImage(labeledImage, "cellpose_Cells");
 
-        RoiManager roiManagerCell = cellposeLauncher.getCellposeRoiManager();
+        RoiCollection roiManagerCell = cellposeLauncher.getCellposeRoiManager();
         IJ.log("cellpose segmentation "+roiManagerCell.getCount()+" ROIs");
         ArrayList<Object> returndata = new ArrayList<>();
         returndata.add(labeledImage);
@@ -513,10 +536,7 @@ public class CellDetector {
 //      MACRO : apply custom commands of user
             if (macroText != null) {
                 //IJ.log("use macro: "+macroText);
-                imageToReturn.show();
-                IJ.selectWindow(imageToReturn.getID());
-                IJ.runMacro("setBatchMode(true);" + macroText + "setBatchMode(false);"); /*accelerates the treatment by displaying only the last image*/
-                temp = WindowManager.getCurrentImage();
+                temp = Detector.runMacro(imageToReturn, "setBatchMode(true);" + macroText + "setBatchMode(false);", StageTimings.PREPROCESSING_MACRO); /*accelerates the treatment by displaying only the last image*/
                 if(temp!=imageToReturn) {
                     imageToReturn.changes=false;
                     imageToReturn.hide();
@@ -627,11 +647,11 @@ public class CellDetector {
                 ImagePlus label=detector.labeledImage3D(labeledImage.getWidth(), labeledImage.getHeight(), labeledImage.getNSlices(), roi3D,nameExperiment);
                 detector.renameImage(label,analysisType+"_NucleiDetected_LabelMask3D");
                 detector.setLUT(label);
-                Detector.saveMasks(resultsDirectory,label,"Cell3D","AllDetected");
+                Detector.saveMasks(resultsDirectory,label,"Cell3D","AllDetected",compressMasks);
             }else{
                 detector.renameImage(labeledImage,analysisType+"_CellDetected_LabelMask");
                 detector.setLUT(labeledImage);
-                Detector.saveMasks(resultsDirectory,labeledImage,"Cell2D","AllDetected");
+                Detector.saveMasks(resultsDirectory,labeledImage,"Cell2D","AllDetected",compressMasks);
             }
         }else if (resultsDirectory==null && saveBinary){
             IJ.error("No directory given for the results");
@@ -640,11 +660,20 @@ public class CellDetector {
             Detector.saveROI(resultsDirectory,image,cellRois,analysisType,"CellDetectedROIs","Cell_","AllDetected");
 
             if(roi3D!=null) {
-                Detector.saveROI3D(resultsDirectory,image,roi3D,analysisType,"CellDetectedROIs_3D","AllDetected");
+                Detector.saveROI3D(resultsDirectory,image,roi3D,analysisType,"CellDetectedROIs_3D","AllDetected",compressMasks);
             }
         }
         if (resultsDirectory !=null && savePreprocessed){
-            IJ.saveAsTiff(preprocessed,resultsDirectory + "/Images/Preprocessed/"+image.getTitle()+"_Cell_Preprocessed.tif");
+            final ImagePlus toSave = BackgroundWriter.snapshot(preprocessed);
+            final String path = resultsDirectory + "/Images/Preprocessed/" + image.getTitle() + "_Cell_Preprocessed.tif";
+            BackgroundWriter.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (!IJ.saveAsTiff(toSave, path)) {
+                        BackgroundWriter.failed("The preprocessed image " + path + " could not be saved");
+                    }
+                }
+            });
         }
     }
 
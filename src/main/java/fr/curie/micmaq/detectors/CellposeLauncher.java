@@ -3,6 +3,7 @@ package fr.curie.micmaq.detectors;
 //import ch.epfl.biop.wrappers.cellpose.ij2commands.Cellpose;
 import ch.epfl.biop.wrappers.cellpose.CellposeTaskSettings;
 import ch.epfl.biop.wrappers.cellpose.DefaultCellposeTask;
+import fr.curie.micmaq.helpers.TileStitcher;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -13,7 +14,6 @@ import ij.gui.ShapeRoi;
 import ij.gui.Wand;
 import ij.io.FileSaver;
 import ij.plugin.RGBStackMerge;
-import ij.plugin.frame.RoiManager;
 import ij.process.*;
 import mcib3d.geom2.Objects3DIntPopulation;
 import mcib3d.image3d.ImageHandler;
@@ -24,9 +24,21 @@ import mcib_plugins.Manager3D.RoiManager3D_3;
 import mcib_plugins.tools.RoiManager3D_2;
 
 import java.awt.*;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.IntStream;
 
 /**
@@ -49,10 +61,18 @@ public class CellposeLauncher {
     private final int cytoChannel;
     private final boolean excludeOnEdges;
     private ImagePlus cellposeMask;
-    private RoiManager cellposeRoiManager;
+    private RoiCollection cellposeRoiManager = new RoiCollection();
 
-    public static int tileSize = -1;
-    public static int tileOverlap = -1;
+    private int tileSize = -1;
+    private int tileOverlap = -1;
+    /**
+     * maximum number of Cellpose processes segmenting the tiles of an image at the same time
+     */
+    private int tileProcesses = 1;
+    /**
+     * memory needed by a Cellpose process (Python, model), limits the number of processes started for the tiles
+     */
+    private static final long CELLPOSE_PROCESS_MB = 2048;
 
     Objects3DIntPopulation roi3D=null;
 //    CONSTRUCTOR
@@ -92,6 +112,17 @@ public class CellposeLauncher {
     }
 
 
+    /**
+     * @param tileSize size of the tiles, negative for no tiling (the image is segmented at once)
+     * @param tileOverlap overlap of the tiles
+     * @param tileProcesses maximum number of Cellpose processes segmenting the tiles at the same time
+     */
+    public void setTiling(int tileSize, int tileOverlap, int tileProcesses) {
+        this.tileSize = tileSize;
+        this.tileOverlap = tileOverlap;
+        this.tileProcesses = Math.max(1, tileProcesses);
+    }
+
     /**
      * @return binary mask
      */
@@ -100,9 +131,9 @@ public class CellposeLauncher {
     }
 
     /**
-     * @return RoiManager associated to cellpose output
+     * @return ROIs associated to cellpose output
      */
-    public RoiManager getCellposeRoiManager() {
+    public RoiCollection getCellposeRoiManager() {
         return cellposeRoiManager;
     }
 
@@ -111,12 +142,13 @@ public class CellposeLauncher {
     }
 
     /**
-     * Launching of cellpose resulting with a binary mask and a RoiManager
+     * Launching of cellpose resulting with a binary mask and the corresponding ROIs
+     * @throws IllegalStateException if Cellpose gave no mask: the field of view is not quantified
      */
     public void analysis() {
         cellposeMask = runCellpose();
+        if (cellposeMask == null) throw new IllegalStateException("Cellpose gave no mask for " + imagePlus.getTitle());
         //cellposeRoiManager=label2Roi(cellposeMask);
-        cellposeRoiManager = RoiManager.getRoiManager();
         cellposeMask = Detector.labeledImage(cellposeMask.getWidth(), cellposeMask.getHeight(),cellposeMask.getNSlices(), cellposeRoiManager.getRoisAsArray());
         cellposeMask.setTitle(imagePlus.getShortTitle() + "-cellpose");
 
@@ -139,7 +171,7 @@ public class CellposeLauncher {
      * @see CellposeLauncher#runCellposeTiled(ImagePlus)
      */
     public ImagePlus runCellpose() {
-        RoiManager.getRoiManager().reset();
+        cellposeRoiManager = new RoiCollection();
         if (tileSize < 0 || (tileSize >= imagePlus.getWidth() && tileSize >= imagePlus.getHeight())) {
             return runCellposeImage(imagePlus);
         } else {
@@ -153,8 +185,72 @@ public class CellposeLauncher {
      * @return
      */
     public ImagePlus runCellposeImage(ImagePlus input) {
+        ImagePlus cellposeMask = runCellposeWorker(input);
+        if (cellposeMask == null) {
+//            Show debug mode while launching to display the info written by cellpose on the stdout to the log window
+            IJ.setDebugMode(true);
+            try {
+                cellposeMask = runCellposeTask(input);
+            } finally {
+                IJ.setDebugMode(false);
+            }
+        }
+        if (cellposeMask == null) return null;
+        if(input.getNSlices()>1){
+            IJ.log("convert to ROI_3D and measure");
+            label2Roi3D(cellposeMask,input);
+            IJ.log("should display measures");
+            label2Roi(cellposeMask);
+        }else {
+            label2Roi(cellposeMask);
+        }
+        cellposeMask.setTitle(cellposeMask.getTitle() + "-"+model);
+
+        IJ.log("number of ROIs: "+cellposeRoiManager.getCount());
+        return cellposeMask;
+    }
+
+    /**
+     * segment the image with the Cellpose worker of the run (see {@link CellposeWorker})
+     * @param input image to segment
+     * @return label mask, null if no worker is available
+     */
+    private ImagePlus runCellposeWorker(ImagePlus input) {
+        CellposeWorker worker = borrowWorker(input);
+        if (worker == null) return null;
+        try {
+            return worker.segment(input);
+        } finally {
+            worker.release();
+        }
+    }
+
+    /**
+     * @param input image to segment, gives the 3D setting
+     * @return worker of the run for the settings of this launcher, null if no worker is available
+     */
+    private CellposeWorker borrowWorker(ImagePlus input) {
+        int[] channels = getChannels();
+        return CellposeWorker.borrow(Prefs.get("ch.epfl.biop.wrappers.cellpose.Cellpose.envType", "conda"), getEnvPath(),
+                model, minSizeNucleus, cellproba_threshold, channels[0], Math.max(0, channels[1]),
+                Prefs.get("ch.epfl.biop.wrappers.cellpose.Cellpose.useGpu", false), input.getNSlices() > 1);
+    }
+
+    /**
+     * run Cellpose once on the image (new Python process)
+     * @param input image to segment
+     * @return label mask, null if Cellpose failed
+     */
+    private ImagePlus runCellposeTask(ImagePlus input) {
         DefaultCellposeTask cellposeTask = new DefaultCellposeTask();
-        File cellposeTempDir = getCellposeTempDir();
+        File cellposeTempDir;
+        try {
+            cellposeTempDir = getCellposeTempDir();
+        } catch (IOException e) {
+            IJ.log("Cellpose is not run on " + input.getTitle() + ": " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
         setSettings(cellposeTask, cellposeTempDir, input);
         try {
 //              Save image in CellposeTempDir
@@ -168,36 +264,18 @@ public class CellposeLauncher {
 
 //              Prepare path for mask output
             File cellpose_imp_path = new File(cellposeTempDir, input.getShortTitle() + "_cp_masks.tif");
-//              Prepare path for additional text file created by Cellpose
-            File cellpose_outlines_path = new File(cellposeTempDir, input.getShortTitle() + "_cp_outlines.txt");
-
-//            Show debug mode while launching to display the info written by cellpose on the stdout to the log window
-            IJ.setDebugMode(true);
             cellposeTask.run();
-            IJ.setDebugMode(false);
 
 //              Open output mask file
             ImagePlus cellposeMask = IJ.openImage(cellpose_imp_path.toString());
 //
 
-//            Delete images and temp directory
-            cellpose_imp_path.delete();
-            cellpose_outlines_path.delete();
-            cellposeTempDir.delete();
-            if(input.getNSlices()>1){
-                IJ.log("convert to ROI_3D and measure");
-                label2Roi3D(cellposeMask,input);
-                IJ.log("should display measures");
-                label2Roi(cellposeMask);
-            }else {
-                label2Roi(cellposeMask);
-            }
-            cellposeMask.setTitle(cellposeMask.getTitle() + "-"+model);
-
-            IJ.log("RoiManager size: "+RoiManager.getInstance().getCount());
             return cellposeMask;
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+//            Delete images and temp directory
+            deleteCellposeTempDir(cellposeTempDir);
         }
         return null;
     }
@@ -205,7 +283,8 @@ public class CellposeLauncher {
     /**
      * run Cellpose after tiling image and recombine the tiles at the end of computation
      * @param input
-     * @return
+     * @return label mask of the whole image
+     * @throws IllegalStateException if a tile has no mask, even segmented again alone (the mask would have a hole)
      */
     public ImagePlus runCellposeTiled(ImagePlus input) {
         ImagePlus tiles = null;
@@ -217,22 +296,23 @@ public class CellposeLauncher {
         ImageStack masks = new ImageStack(tileSize, tileSize);
         //tiles.show();
 
+        ImagePlus[] tileImages = new ImagePlus[tiles.getNSlices()];
         for (int slice = 1; slice <= tiles.getNSlices(); slice++) {
-            IJ.log("run cellpose on tile #" + slice + " / " + tiles.getNSlices());
             if (input.getNChannels() == 1) {
-                tiles.setSlice(slice);
-                ImageProcessor tmp = tiles.getProcessor();
-
-                masks.addSlice(runCellposeImage(new ImagePlus("tmp" + slice, tmp)).getProcessor());
+                tileImages[slice - 1] = new ImagePlus("tmp" + slice, tiles.getStack().getProcessor(slice));
             } else {
                 tiles.setPosition(1, slice, 1);
                 ImageProcessor c1 = tiles.getProcessor().duplicate();
                 tiles.setPosition(2, slice, 1);
                 ImageProcessor c2 = tiles.getProcessor().duplicate();
-                ImagePlus composite = RGBStackMerge.mergeChannels(new ImagePlus[]{new ImagePlus("c1", c1), new ImagePlus("c2", c2)}, true);
-                masks.addSlice(runCellposeImage(composite).getProcessor());
+                tileImages[slice - 1] = RGBStackMerge.mergeChannels(new ImagePlus[]{new ImagePlus("c1", c1), new ImagePlus("c2", c2)}, true);
             }
-            IJ.showProgress(slice, tiles.getNSlices());
+        }
+        ImagePlus[] tileMasks = runCellposeBatch(tileImages);
+        for (int t = 0; t < tileMasks.length; t++) {
+            if (tileMasks[t] == null)
+                throw new IllegalStateException("Cellpose gave no mask for tile #" + (t + 1) + " of " + input.getTitle());
+            masks.addSlice("", tileMasks[t].getProcessor());
         }
         //IJ.log("show masks");
         IJ.showStatus("combine masks");
@@ -243,6 +323,180 @@ public class CellposeLauncher {
         return result;
     }
 
+    /**
+     * run Cellpose on several images (tiles) of same size and channels
+     * - the images are shared between {@link #tileProcesses} groups segmented at the same time, each group by its own
+     *   Cellpose process (see {@link #getTileProcesses(int)})
+     * - with the Cellpose worker of the run, the images of a group are given one by one to a worker
+     * - otherwise all the images of a group are written in one directory and Cellpose is run once on the directory:
+     *   Python and the model are loaded once for all the images of the group
+     * - an image without mask in the output of Cellpose is segmented again alone
+     * - the output of Cellpose is shown in the log window (debug mode) during the whole batch
+     * @param inputs images to segment
+     * @return label masks, in the order of the images (null if Cellpose failed on the image)
+     * @throws IllegalStateException if a group failed or the thread was interrupted
+     */
+    private ImagePlus[] runCellposeBatch(final ImagePlus[] inputs) {
+        final ImagePlus[] result = new ImagePlus[inputs.length];
+        if (inputs.length == 0) return result;
+        final int nbProcesses = getTileProcesses(inputs.length);
+        IJ.setDebugMode(true);
+        try {
+            if (nbProcesses == 1) {
+                runCellposeGroup(inputs, result, 0, 1);
+            } else {
+                IJ.log("run cellpose on " + inputs.length + " tiles with " + nbProcesses + " processes");
+                ExecutorService exec = Executors.newFixedThreadPool(nbProcesses);
+                try {
+                    ArrayList<Future<?>> futures = new ArrayList<>();
+                    for (int g = 0; g < nbProcesses; g++) {
+                        final int group = g;
+                        futures.add(exec.submit(() -> runCellposeGroup(inputs, result, group, nbProcesses)));
+                    }
+                    for (Future<?> f : futures) f.get();
+                } catch (InterruptedException e) {
+                    exec.shutdownNow();
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Cellpose interrupted on the tiles of " + inputs[0].getTitle(), e);
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Cellpose failed on the tiles of " + inputs[0].getTitle(), e.getCause());
+                } finally {
+                    exec.shutdown();
+                }
+            }
+            for (int i = 0; i < inputs.length; i++) {
+                if (result[i] == null) {
+                    IJ.log("run cellpose again on tile #" + (i + 1));
+                    result[i] = runCellposeTask(inputs[i]);
+                }
+            }
+        } finally {
+            IJ.setDebugMode(false);
+        }
+        return result;
+    }
+
+    /**
+     * run Cellpose on the images first, first + step, first + 2 * step...
+     * @param inputs all the images
+     * @param result label masks of all the images, the ones of the group are set
+     */
+    private void runCellposeGroup(ImagePlus[] inputs, ImagePlus[] result, int first, int step) {
+        ImagePlus[] group = new ImagePlus[(inputs.length - first + step - 1) / step];
+        for (int i = 0; i < group.length; i++) group[i] = inputs[first + i * step];
+        ImagePlus[] masks = new ImagePlus[group.length];
+        CellposeWorker worker = borrowWorker(group[0]);
+        int segmented = 0;
+        if (worker != null) {
+            try {
+                while (segmented < group.length) {
+                    IJ.log("run cellpose on tile #" + (first + segmented * step + 1) + " / " + inputs.length);
+                    masks[segmented] = worker.segment(group[segmented]);
+                    if (masks[segmented] == null) break; /*worker failed or stopped: the other tiles are run at once*/
+                    segmented++;
+                }
+            } finally {
+                worker.release();
+            }
+        }
+        if (segmented < group.length) {
+            ImagePlus[] remaining = Arrays.copyOfRange(group, segmented, group.length);
+            ImagePlus[] remainingMasks = new ImagePlus[remaining.length];
+            runCellposeTaskBatch(remaining, remainingMasks);
+            System.arraycopy(remainingMasks, 0, masks, segmented, remaining.length);
+        }
+        for (int i = 0; i < group.length; i++) result[first + i * step] = masks[i];
+    }
+
+    /**
+     * number of Cellpose processes to segment the tiles: {@link #tileProcesses} limited by the number of processors
+     * and the available memory
+     * @param nbTiles number of tiles
+     */
+    int getTileProcesses(int nbTiles) {
+        int result = Math.min(tileProcesses, Runtime.getRuntime().availableProcessors());
+        if (result > 1) {
+            long availableMB = getAvailableMemoryMB();
+            if (availableMB >= 0) result = (int) Math.min(result, availableMB / CELLPOSE_PROCESS_MB);
+        }
+        return Math.max(1, Math.min(result, nbTiles));
+    }
+
+    /**
+     * memory that can be given to new processes
+     * - on Linux MemAvailable of /proc/meminfo: the free memory of the system does not count the page cache, which is
+     *   given back when needed and is most of the memory after reading large images
+     * - elsewhere the free physical memory
+     * @return available memory in MB, -1 if unknown (the number of processes set by the user is kept)
+     */
+    static long getAvailableMemoryMB() {
+        File meminfo = new File("/proc/meminfo");
+        if (meminfo.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(meminfo))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.startsWith("MemAvailable:")) continue;
+                    String[] fields = line.substring("MemAvailable:".length()).trim().split("\\s+");
+                    return Long.parseLong(fields[0]) / 1024; /*in kB*/
+                }
+            } catch (IOException | NumberFormatException e) {
+                e.printStackTrace();
+            }
+            return -1;
+        }
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getFreePhysicalMemorySize() / (1024 * 1024);
+        }
+        return -1;
+    }
+
+    /**
+     * run Cellpose once on a directory containing all the images
+     * @param inputs images to segment
+     * @param result label masks read back, null for the images without mask
+     */
+    private void runCellposeTaskBatch(ImagePlus[] inputs, ImagePlus[] result) {
+        DefaultCellposeTask cellposeTask = new DefaultCellposeTask();
+        File cellposeTempDir;
+        try {
+            cellposeTempDir = getCellposeTempDir();
+        } catch (IOException e) {
+            IJ.log("Cellpose is not run on " + inputs.length + " tiles: " + e.getMessage());
+            e.printStackTrace();
+            return;
+        }
+        setSettings(cellposeTask, cellposeTempDir, inputs[0]);
+        try {
+//              Save images in CellposeTempDir, named by their index as the titles of the tiles can be the same
+            for (int i = 0; i < inputs.length; i++) {
+                File t_imp_path = new File(cellposeTempDir, batchName(i) + ".tif");
+                FileSaver fs = new FileSaver(inputs[i]);
+                if (inputs[i].getStackSize() > 1) {
+                    fs.saveAsTiffStack(t_imp_path.getAbsolutePath());
+                } else {
+                    fs.saveAsTiff(t_imp_path.getAbsolutePath());
+                }
+            }
+            IJ.log("run cellpose on " + inputs.length + " tiles");
+            cellposeTask.run();
+
+            for (int i = 0; i < inputs.length; i++) {
+                File cellpose_imp_path = new File(cellposeTempDir, batchName(i) + "_cp_masks.tif");
+                if (cellpose_imp_path.exists()) result[i] = IJ.openImage(cellpose_imp_path.toString());
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+//            Delete images and temp directory
+            deleteCellposeTempDir(cellposeTempDir);
+        }
+    }
+
+    private static String batchName(int index) {
+        return String.format("tile%05d", index + 1);
+    }
+
     /**
      * split an image with multiple channels using tileSize and tileOverlap
      * @param imp image to split
@@ -279,29 +533,17 @@ public class CellposeLauncher {
 
     /**
      * combine tiles after computation of cellpose on all tiles
+     * - the labels of the tiles are stitched (see {@link TileStitcher}), two labels are the same object when their
+     *   intersection over union in the overlap of the tiles is at least {@link TileStitcher#MIN_IOU}
+     * - the ROIs are extracted once from the stitched image
      * @param is cellpose masks
      * @return combined image
      */
     ImageProcessor combineTileImage(ImageStack is) {
         IJ.log("combine tiles image");
-        RoiManager.getRoiManager().reset();
-        int step = is.getWidth() - tileOverlap;
-        ImageProcessor result = is.getProcessor(1).createProcessor(imagePlus.getWidth(), imagePlus.getHeight());
-        int index = 1;
-        ImageProcessor tmp = is.getProcessor(1).createProcessor(imagePlus.getWidth(), imagePlus.getHeight());
-        ImageProcessor eraser = is.getProcessor(1).createProcessor(is.getWidth(), is.getHeight());
-        for (int y = 0; y < result.getHeight() - tileOverlap; y += step) {
-            for (int x = 0; x < result.getWidth() - tileOverlap; x += step) {
-                tmp.copyBits(is.getProcessor(index), x, y, Blitter.MAX);
-                //new ImagePlus("combinedtile ("+index+", "+x+", "+y+")",tmp.duplicate()).show();
-                label2Roi(new ImagePlus("", is.getProcessor(index)), x, y,20);
-                tmp.copyBits(eraser, x, y, Blitter.COPY);
-                index++;
-            }
-        }
-        checkDuplicates(RoiManager.getRoiManager());
-        if(RoiManager.getRoiManager().getCount()>Short.MAX_VALUE) result = new FloatProcessor(imagePlus.getWidth(),imagePlus.getHeight());
-        rois2Labels(result);
+        cellposeRoiManager.reset();
+        ImageProcessor result = TileStitcher.stitch(is, imagePlus.getWidth(), imagePlus.getHeight(), tileOverlap, TileStitcher.MIN_IOU);
+        label2Roi(new ImagePlus("", result), 0, 0, 20, cellposeRoiManager);
         return result;
     }
 
@@ -318,28 +560,9 @@ public class CellposeLauncher {
         //settings.setFromPrefs(); /* get info on if to use GPU or CPU and other particularities*/
         setSettingsFromPrefs(settings);
         System.out.println("cellpose model:" + model);
-        switch (model) {
-            case "nuclei":
-                settings.setChannel1(nucleiChannel);
-                //settings.setChannel2(-1) ;
-                break;
-            case "bact_omni":
-                settings.setChannel1(cytoChannel);
-                break;
-            case "cyto":
-            case "cyto2":
-            case "cyto2_omni":
-            case "cyto2_cp3":
-            case "cyto3":
-                System.out.println("cyto_channel:" + cytoChannel + ";nuclei_channel:" + nucleiChannel);
-                settings.setChannel1(cytoChannel);
-                settings.setChannel2(nucleiChannel);
-                break;
-            default:
-                settings.setChannel1(cytoChannel);
-                settings.setChannel2(nucleiChannel);
-                break;
-        }
+        int[] channels = getChannels();
+        settings.setChannel1(channels[0]);
+        if (channels[1] >= 0) settings.setChannel2(channels[1]);
         settings.setModel(model);
         settings.setDatasetDir(cellposeTempDir.toString());
         settings.setDiameter(minSizeNucleus);
@@ -354,15 +577,43 @@ public class CellposeLauncher {
     }
     private void setSettingsFromPrefs(CellposeTaskSettings settings){
         settings.setEnvType(Prefs.get("ch.epfl.biop.wrappers.cellpose.Cellpose.envType","conda"));
+        settings.setEnvPath(getEnvPath());
+    }
+
+    /**
+     * @return environment of Cellpose for the model (Cellpose-SAM models have their own environment)
+     */
+    private String getEnvPath() {
         switch (model) {
             case "cpsam":
             case "cpsam_v2":
             case "cpdino":
             case "cpdino-vitb":
-                settings.setEnvPath(Prefs.get("ch.epfl.biop.wrappers.cellpose.CellposeSAM.envDirPath",null));
-                break;
+                return Prefs.get("ch.epfl.biop.wrappers.cellpose.CellposeSAM.envDirPath",null);
             default:
-                settings.setEnvPath(Prefs.get("ch.epfl.biop.wrappers.cellpose.Cellpose.envDirPath",null));
+                return Prefs.get("ch.epfl.biop.wrappers.cellpose.Cellpose.envDirPath",null);
+        }
+    }
+
+    /**
+     * channels given to Cellpose for the model
+     * @return {channel1, channel2}, channel2 is -1 when not used
+     */
+    private int[] getChannels() {
+        switch (model) {
+            case "nuclei":
+                return new int[]{nucleiChannel, -1};
+            case "bact_omni":
+                return new int[]{cytoChannel, -1};
+            case "cyto":
+            case "cyto2":
+            case "cyto2_omni":
+            case "cyto2_cp3":
+            case "cyto3":
+                System.out.println("cyto_channel:" + cytoChannel + ";nuclei_channel:" + nucleiChannel);
+                return new int[]{cytoChannel, nucleiChannel};
+            default:
+                return new int[]{cytoChannel, nucleiChannel};
         }
     }
 
@@ -380,36 +631,53 @@ public class CellposeLauncher {
 
 
     /**
-     * Created temporary directory to give to cellpose
+     * Created temporary directory to give to cellpose, a new directory for each run of Cellpose so that several runs
+     * can be done at the same time
      *
      * @return temporary directory {@link File}
+     * @throws IOException if the directory cannot be created (the Temp directory of ImageJ is never used instead: its
+     *                     files would be given to Cellpose and deleted afterwards)
      */
-    private File getCellposeTempDir() {
+    private File getCellposeTempDir() throws IOException {
         String tempDir = IJ.getDirectory("Temp");
-        File cellposeTempDir = new File(tempDir, "cellposeTemp");
-        if (cellposeTempDir.exists()) {
-            File[] contents = cellposeTempDir.listFiles();
-            if (contents != null) for (File f : contents) {
-                boolean delete = f.delete();
-                if (!delete) IJ.error("Files could not be deleted from temp directory");
-            }
-        } else {
-            boolean cellposeMkdir = cellposeTempDir.mkdir();
-            if (!cellposeMkdir) {
-                IJ.error("The temp directory could not be created");
-            }
+        try {
+            return Files.createTempDirectory(Paths.get(tempDir), "cellposeTemp").toFile();
+        } catch (IOException e) {
+            throw new IOException("the temp directory for Cellpose could not be created in " + tempDir, e);
+        }
+    }
+
+    /**
+     * delete the files of a temporary directory created by {@link #getCellposeTempDir()} and the directory
+     */
+    private static void deleteCellposeTempDir(File cellposeTempDir) {
+        if (!cellposeTempDir.getName().startsWith("cellposeTemp")) return;
+        File[] contents = cellposeTempDir.listFiles();
+        if (contents != null) for (File f : contents) {
+            if (!f.delete()) IJ.log("Files could not be deleted from temp directory " + cellposeTempDir);
         }
-        return cellposeTempDir;
+        cellposeTempDir.delete();
     }
 
     /**
      * Based on <a href="https://github.com/BIOP/ijp-LaRoMe/blob/master/src/main/java/ch/epfl/biop/ij2command/Labels2Rois.java">...</a>
      * Simplified for only one frame, one slice and 1 channel
      * Can exclude on edges
-     * Creates the RoiManager containing all particle Rois
+     * Adds all particle Rois to the ROIs of this launcher
+     */
+    public RoiCollection label2Roi(ImagePlus cellposeIP) {
+        return label2Roi(cellposeIP, 0, 0,20, cellposeRoiManager);
+    }
+
+    /***
+     * convert label image into a new collection of Rois
+     * @param cellposeIP
+     * @param xoffset
+     * @param yoffset
+     * @return
      */
-    public RoiManager label2Roi(ImagePlus cellposeIP) {
-        return label2Roi(cellposeIP, 0, 0,20);
+    public static RoiCollection label2Roi(ImagePlus cellposeIP, int xoffset, int yoffset,int minSize) {
+        return label2Roi(cellposeIP, xoffset, yoffset, minSize, new RoiCollection());
     }
 
     /***
@@ -417,13 +685,12 @@ public class CellposeLauncher {
      * @param cellposeIP
      * @param xoffset
      * @param yoffset
+     * @param cellposeRoiManager collection where the Rois are added
      * @return
      */
-    public static RoiManager label2Roi(ImagePlus cellposeIP, int xoffset, int yoffset,int minSize) {
+    public static RoiCollection label2Roi(ImagePlus cellposeIP, int xoffset, int yoffset,int minSize, RoiCollection cellposeRoiManager) {
         if (cellposeIP == null) System.out.println("error cellposeIP is null!");
-        //Set RoiManager
-        RoiManager cellposeRoiManager = RoiManager.getRoiManager();
-        IJ.log("RoiManager size: "+cellposeRoiManager.getCount());
+        IJ.log("number of ROIs: "+cellposeRoiManager.getCount());
 
         for(int slice=0;slice<cellposeIP.getNSlices();slice++){
             ImageProcessor cellposeProc = cellposeIP.getProcessor().duplicate();
@@ -482,7 +749,6 @@ public class CellposeLauncher {
         }
 
         IJ.log("label2Roi ("+xoffset+", "+yoffset+") nb roi end: "+cellposeRoiManager.getCount());
-        IJ.log("RoiManager size: "+cellposeRoiManager.getCount());
         return cellposeRoiManager;
     }
 
@@ -507,7 +773,7 @@ public class CellposeLauncher {
      * @param toCheckRoi rois that are inside overlap areas
      * @param toKeepRoi rois that are outside overlap areas
      */
-    protected void dispatchRoisToCheck(RoiManager roiManager, ArrayList<Roi> toCheckRoi, ArrayList<Roi> toKeepRoi) {
+    protected void dispatchRoisToCheck(RoiCollection roiManager, ArrayList<Roi> toCheckRoi, ArrayList<Roi> toKeepRoi) {
         ArrayList<Rectangle> overlaps = new ArrayList<>();
         int step = tileSize - tileOverlap;
         for (int y = step; y < imagePlus.getHeight() - tileOverlap; y += step) {
@@ -553,7 +819,7 @@ public class CellposeLauncher {
      * check duplicates in ROIs detected during tiling
      * @param roiManager ROIs to check
      */
-    public void checkDuplicates(RoiManager roiManager) {
+    public void checkDuplicates(RoiCollection roiManager) {
         int nRois = roiManager.getCount();
         IJ.log("check duplicates : starting nb rois=" + nRois);
         long debut = System.nanoTime();
@@ -608,9 +874,8 @@ public class CellposeLauncher {
                 toCheckRoi.set(i, null);
             }
         }
-        IJ.log(toKeepRoi.size() + " rois to be set into RoiManager");
+        IJ.log(toKeepRoi.size() + " rois to be kept");
         roiManager.reset();
-        IJ.log("size of RoiManager: " + roiManager.getCount());
         for (Roi r : toKeepRoi) roiManager.addRoi(r);
 
         IJ.log("end nb rois=" + roiManager.getCount());
@@ -624,10 +889,10 @@ public class CellposeLauncher {
     /**
      * convert ROIs into an Image
      * @param result
+     * @param rm ROIs to draw
      * @return
      */
-    public static ImageProcessor rois2Labels(ImageProcessor result) {
-        RoiManager rm = RoiManager.getRoiManager();
+    public static ImageProcessor rois2Labels(ImageProcessor result, RoiCollection rm) {
         IJ.log("rois2labels : " + rm.getCount());
         for (int r = 0; r < rm.getCount(); r++) {
             Roi roi = rm.getRoi(r);
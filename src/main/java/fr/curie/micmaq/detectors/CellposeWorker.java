@@ -0,0 +1,432 @@
+package fr.curie.micmaq.detectors;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cellpose process kept running during a run: the Python environment and the model are loaded once
+ * - a worker is started for a session: environment, model, diameter, cell probability threshold, channels, GPU and 3D
+ *   are fixed for the worker (see {@link #borrow(String, String, String, double, double, int, int, boolean, boolean)})
+ * - the images are given as raw pixels in the temporary directory of the worker, one request per line on the standard
+ *   input of the process (script cellpose_worker.py), the label masks are read back as raw labels when the worker
+ *   answers: no TIFF encoding, the directory is in memory (/dev/shm) when it is available (RGB images are given as TIFF)
+ * - a worker segments one image at a time: the workers of a session are pooled, the experiments running in parallel
+ *   borrow their own
+ * - the workers exist only between {@link #startSessions()} and {@link #closeSessions()}, outside of a run (previews)
+ *   and when the worker cannot be started, CellposeLauncher runs Cellpose once per image as before
+ */
+public class CellposeWorker {
+    private static final String SCRIPT = "cellpose_worker.py";
+    private static final String ANSWER = "MICMAQ ";
+    /**
+     * minimum free space of /dev/shm to exchange the images in memory
+     */
+    private static final long SHM_MIN_SPACE = 1024L * 1024 * 1024;
+    /**
+     * time given to the worker to load its model or segment an image, after which it is considered hung
+     */
+    private static final long ANSWER_TIMEOUT_MINUTES = 60;
+    private static final String PROCESS_ENDED = "process ended";
+
+    private static HashMap<String, ArrayDeque<CellposeWorker>> idleWorkers = null;
+    private static final ArrayList<CellposeWorker> allWorkers = new ArrayList<>();
+    private static final HashMap<String, Boolean> failedSessions = new HashMap<>();
+    private static File script;
+
+    private final String session;
+    private final Process process;
+    private final LinkedBlockingQueue<String> answers = new LinkedBlockingQueue<>();
+    private final BufferedWriter requests;
+    private final File tempDir;
+    private final AtomicInteger count = new AtomicInteger();
+    private volatile boolean dead = false;
+
+    private CellposeWorker(String session, Process process, File tempDir) {
+        this.session = session;
+        this.process = process;
+        this.tempDir = tempDir;
+        requests = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * allow workers to be started until {@link #closeSessions()}
+     */
+    public static synchronized void startSessions() {
+        if (idleWorkers == null) idleWorkers = new HashMap<>();
+        failedSessions.clear();
+    }
+
+    /**
+     * stop all the workers
+     */
+    public static void closeSessions() {
+        ArrayList<CellposeWorker> workers;
+        synchronized (CellposeWorker.class) {
+            idleWorkers = null;
+            workers = new ArrayList<>(allWorkers);
+            allWorkers.clear();
+        }
+        for (CellposeWorker worker : workers) worker.close();
+    }
+
+    /**
+     * worker of a session, started if no worker of this session is idle
+     * @param envType type of environment (conda or venv)
+     * @param envPath directory of environment
+     * @param model model of Cellpose (name or path)
+     * @param useGpu use the GPU
+     * @param do3D segment the stacks in 3D
+     * @return the worker, to give back with {@link #release()}, or null if no session is started or the worker cannot be started
+     */
+    public static CellposeWorker borrow(String envType, String envPath, String model, double diameter, double cellprob,
+                                        int channel1, int channel2, boolean useGpu, boolean do3D) {
+        String session = envType + "|" + envPath + "|" + model + "|" + diameter + "|" + cellprob + "|" + channel1 + "|" + channel2
+                + "|" + useGpu + "|" + do3D;
+        synchronized (CellposeWorker.class) {
+            if (idleWorkers == null || failedSessions.containsKey(session)) return null;
+            ArrayDeque<CellposeWorker> idle = idleWorkers.get(session);
+            if (idle != null && !idle.isEmpty()) return idle.pop();
+        }
+        String python = python(envType, envPath);
+        if (python == null) {
+            synchronized (CellposeWorker.class) {
+                failedSessions.put(session, true);
+            }
+            return null;
+        }
+        try {
+            File tempDir = Files.createTempDirectory(exchangeRoot(), "micmaq_cellpose_worker").toFile();
+            ArrayList<String> command = new ArrayList<>();
+            command.add(python);
+            command.add(script().getAbsolutePath());
+            command.add(model);
+            command.add("" + diameter);
+            command.add("" + cellprob);
+            command.add("" + channel1);
+            command.add("" + channel2);
+            command.add(useGpu ? "1" : "0");
+            command.add(do3D ? "1" : "0");
+            IJ.log("start Cellpose worker: " + String.join(" ", command));
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.directory(tempDir);
+            Process process = builder.start();
+            CellposeWorker worker = new CellposeWorker(session, process, tempDir);
+            worker.readOutputs();
+            String ready = worker.waitAnswer();
+            if (!"READY".equals(ready)) {
+                IJ.log("the Cellpose worker could not be started (" + ready + "), Cellpose is run for each image");
+                worker.close();
+                synchronized (CellposeWorker.class) {
+                    failedSessions.put(session, true);
+                }
+                return null;
+            }
+            synchronized (CellposeWorker.class) {
+                if (idleWorkers == null) { /*sessions closed while starting*/
+                    worker.close();
+                    return null;
+                }
+                allWorkers.add(worker);
+            }
+            return worker;
+        } catch (IOException e) {
+            IJ.log("the Cellpose worker could not be started, Cellpose is run for each image");
+            e.printStackTrace();
+            synchronized (CellposeWorker.class) {
+                failedSessions.put(session, true);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * give back the worker to its session
+     */
+    public void release() {
+        synchronized (CellposeWorker.class) {
+            if (idleWorkers != null && !dead && process.isAlive()) {
+                ArrayDeque<CellposeWorker> idle = idleWorkers.get(session);
+                if (idle == null) {
+                    idle = new ArrayDeque<>();
+                    idleWorkers.put(session, idle);
+                }
+                idle.push(this);
+                return;
+            }
+            allWorkers.remove(this);
+        }
+        close();
+    }
+
+    /**
+     * segment an image
+     * @param input image (channels and slices as given to Cellpose by CellposeLauncher)
+     * @return label mask, null if the worker could not segment the image
+     */
+    public ImagePlus segment(ImagePlus input) {
+        if (input.getBitDepth() == 24) return segmentTiff(input);
+        int index = count.incrementAndGet();
+        File source = new File(tempDir, "image" + index + ".raw");
+        File destination = new File(tempDir, "image" + index + "_cp_masks.raw");
+        try {
+            writeRaw(input.getStack(), source);
+            requests.write(source.getAbsolutePath() + "\t" + destination.getAbsolutePath() + "\t" + input.getNChannels() + "\t" + input.getNSlices()
+                    + "\t" + input.getWidth() + "\t" + input.getHeight() + "\t" + (input.getBitDepth() == 8 ? "u1" : input.getBitDepth() == 16 ? "u2" : "f4"));
+            requests.newLine();
+            requests.flush();
+            String answer = waitAnswer();
+            if (!answer.startsWith("OK ")) {
+                IJ.log("Cellpose worker: " + answer);
+                return null;
+            }
+            ImageStack labels = readRaw(destination, input.getWidth(), input.getHeight(), Integer.parseInt(answer.substring(3).trim()));
+            ImagePlus mask = new ImagePlus(input.getShortTitle() + "_cp_masks.tif", labels);
+            if (labels.getSize() > 1) mask.setDimensions(1, labels.getSize(), 1);
+            return mask;
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            source.delete();
+            destination.delete();
+        }
+    }
+
+    /**
+     * segment an image given as TIFF (RGB images)
+     */
+    private ImagePlus segmentTiff(ImagePlus input) {
+        int index = count.incrementAndGet();
+        File source = new File(tempDir, "image" + index + ".tif");
+        File destination = new File(tempDir, "image" + index + "_cp_masks.tif");
+        try {
+            FileSaver fs = new FileSaver(input);
+            boolean saved = (input.getStackSize() > 1) ? fs.saveAsTiffStack(source.getAbsolutePath()) : fs.saveAsTiff(source.getAbsolutePath());
+            if (!saved) return null;
+            requests.write(source.getAbsolutePath() + "\t" + destination.getAbsolutePath() + "\t" + input.getNChannels() + "\t" + input.getNSlices());
+            requests.newLine();
+            requests.flush();
+            String answer = waitAnswer();
+            if (!"OK".equals(answer)) {
+                IJ.log("Cellpose worker: " + answer);
+                return null;
+            }
+            ImagePlus mask = IJ.openImage(destination.getAbsolutePath());
+            if (mask != null) mask.setTitle(input.getShortTitle() + "_cp_masks.tif");
+            return mask;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            source.delete();
+            destination.delete();
+        }
+    }
+
+    /**
+     * write the planes of the stack as little endian pixels, in the order of the stack
+     */
+    private static void writeRaw(ImageStack stack, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = null;
+            for (int p = 1; p <= stack.getSize(); p++) {
+                Object pixels = stack.getPixels(p);
+                if (pixels instanceof byte[]) {
+                    buffer = ByteBuffer.wrap((byte[]) pixels);
+                } else {
+                    int size = stack.getWidth() * stack.getHeight() * ((pixels instanceof short[]) ? 2 : 4);
+                    if (buffer == null || buffer.capacity() != size) buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+                    buffer.clear();
+                    if (pixels instanceof short[]) buffer.asShortBuffer().put((short[]) pixels);
+                    else buffer.asFloatBuffer().put((float[]) pixels);
+                }
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * read the labels written by the worker: 16 bits labels in ShortProcessors, 32 bits labels in FloatProcessors
+     * @param bytes bytes per label (2 or 4)
+     */
+    private static ImageStack readRaw(File file, int width, int height, int bytes) throws IOException {
+        ImageStack stack = new ImageStack(width, height);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            int planeSize = width * height * bytes;
+            long nbPlanes = channel.size() / planeSize;
+            ByteBuffer buffer = ByteBuffer.allocateDirect(planeSize).order(ByteOrder.LITTLE_ENDIAN);
+            for (long p = 0; p < nbPlanes; p++) {
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) throw new EOFException("mask of Cellpose worker incomplete: " + file);
+                }
+                buffer.flip();
+                if (bytes == 2) {
+                    short[] pixels = new short[width * height];
+                    buffer.asShortBuffer().get(pixels);
+                    stack.addSlice("", new ShortProcessor(width, height, pixels, null));
+                } else {
+                    IntBuffer labels = buffer.asIntBuffer();
+                    float[] pixels = new float[width * height];
+                    for (int i = 0; i < pixels.length; i++) pixels[i] = labels.get(i);
+                    stack.addSlice("", new FloatProcessor(width, height, pixels));
+                }
+            }
+        }
+        if (stack.getSize() == 0) throw new EOFException("empty mask of Cellpose worker: " + file);
+        return stack;
+    }
+
+    /**
+     * wait for the next answer of the script, at most {@link #ANSWER_TIMEOUT_MINUTES}
+     * - when the worker does not answer in time, its process is destroyed and its session is not used anymore:
+     *   CellposeLauncher runs Cellpose once per image instead
+     * @return answer of the script without prefix, or a description of the end of the process
+     */
+    private String waitAnswer() {
+        try {
+            String answer = answers.poll(ANSWER_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+            if (answer != null) return answer;
+            IJ.log("the Cellpose worker did not answer in " + ANSWER_TIMEOUT_MINUTES + " minutes, it is stopped and Cellpose is run for each image");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        dead = true;
+        process.destroyForcibly();
+        synchronized (CellposeWorker.class) {
+            failedSessions.put(session, true);
+        }
+        return "no answer";
+    }
+
+    /**
+     * read the outputs of the process on threads, so that the process never blocks and the answers can be waited with a timeout
+     * - the answers of the script are queued, the other lines of the standard output are printed
+     * - the messages of Cellpose (progress, warnings) are written on the error output and printed
+     */
+    private void readOutputs() {
+        final InputStream output = process.getInputStream();
+        Thread answerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(output, StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.startsWith(ANSWER)) answers.add(line.substring(ANSWER.length()));
+                        else System.out.println("cellpose: " + line);
+                    }
+                } catch (IOException e) {
+                    //process ended
+                }
+                answers.add(PROCESS_ENDED);
+            }
+        }, "Cellpose worker answers");
+        answerThread.setDaemon(true);
+        answerThread.start();
+        final InputStream errors = process.getErrorStream();
+        Thread errorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(errors, StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) System.out.println("cellpose: " + line);
+                } catch (IOException e) {
+                    //process ended
+                }
+            }
+        }, "Cellpose worker output");
+        errorThread.setDaemon(true);
+        errorThread.start();
+    }
+
+    private void close() {
+        try {
+            requests.write("QUIT");
+            requests.newLine();
+            requests.flush();
+        } catch (IOException e) {
+            //process already ended
+        }
+        try {
+            if (!dead && !process.waitFor(10, TimeUnit.SECONDS)) process.destroyForcibly();
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+        File[] files = tempDir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        tempDir.delete();
+    }
+
+    /**
+     * @return directory of the files exchanged with the workers: in memory (/dev/shm) when available with enough space
+     */
+    private static Path exchangeRoot() {
+        File shm = new File("/dev/shm");
+        if (shm.isDirectory() && shm.canWrite() && shm.getUsableSpace() > SHM_MIN_SPACE) return shm.toPath();
+        return Paths.get(System.getProperty("java.io.tmpdir"));
+    }
+
+    /**
+     * python of the environment as configured for the Cellpose wrappers
+     * @return path of python, null if not found
+     */
+    static String python(String envType, String envPath) {
+        if (envPath == null) return null;
+        String[] candidates = IJ.isWindows()
+                ? new String[]{"python.exe", "Scripts" + File.separator + "python.exe"}
+                : new String[]{"bin" + File.separator + "python", "bin" + File.separator + "python3"};
+        if ("venv".equals(envType) && IJ.isWindows()) candidates = new String[]{"Scripts" + File.separator + "python.exe"};
+        for (String candidate : candidates) {
+            File python = new File(envPath, candidate);
+            if (python.exists()) return python.getAbsolutePath();
+        }
+        IJ.log("no python found in the Cellpose environment " + envPath);
+        return null;
+    }
+
+    /**
+     * @return script of the worker, copied from the resources in the temporary directory
+     */
+    private static synchronized File script() throws IOException {
+        if (script != null && script.exists()) return script;
+        try (InputStream in = CellposeWorker.class.getResourceAsStream("/" + SCRIPT)) {
+            if (in == null) throw new IOException(SCRIPT + " not found in the plugin");
+            File file = File.createTempFile("micmaq_", "_" + SCRIPT);
+            file.deleteOnExit();
+            Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            script = file;
+        }
+        return script;
+    }
+}
@@ -9,7 +9,6 @@ import ij.gui.ShapeRoi;
 import ij.measure.Measurements;
 import ij.measure.ResultsTable;
 import ij.plugin.filter.Analyzer;
-import ij.plugin.frame.RoiManager;
 import ij.process.ByteProcessor;
 import ij.process.ShortProcessor;
 import mcib3d.geom2.*;
@@ -196,12 +195,7 @@ public class CytoDetector {
             }
             if (saveRois){
                 if(cytoplasmRois!=null && cytoplasmRois.length>1) {/*need to put Rois in roimanager to save*/
-                    RoiManager roiManager = RoiManager.getInstance();
-                    if (roiManager == null) { /*if no instance of roiManager, creates one*/
-                        roiManager = new RoiManager();
-                    } else { /*if already exists, empties it*/
-                        roiManager.reset();
-                    }
+                    RoiCollection roiManager = new RoiCollection();
                     for (int i = 0; i < cytoplasmRois.length; i++) {
                         Roi roi = cytoplasmRois[i];
                         if (roi != null) {
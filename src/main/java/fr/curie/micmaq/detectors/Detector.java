@@ -1,18 +1,22 @@
 package fr.curie.micmaq.detectors;
 
+import fr.curie.micmaq.helpers.BackgroundWriter;
+import fr.curie.micmaq.helpers.LabelTiffWriter;
 import fr.curie.micmaq.helpers.MeasureCalibration;
+import fr.curie.micmaq.helpers.StageTimings;
+import fr.curie.micmaq.helpers.StreamingProjection;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.WindowManager;
 import ij.gui.NewImage;
 import ij.gui.Roi;
+import ij.macro.Interpreter;
 import ij.measure.ResultsTable;
 import ij.plugin.LutLoader;
 import ij.plugin.ZProjector;
 import ij.plugin.filter.EDM;
 import ij.plugin.filter.ParticleAnalyzer;
-import ij.plugin.frame.RoiManager;
 import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
 import ij.process.ShortProcessor;
@@ -41,6 +45,12 @@ import java.util.Comparator;
  * - Set results
  */
 public class Detector {
+    /**
+     * lock of the sections using the global state of ImageJ (current image, RoiManager, macro interpreter)
+     * - the experiments running on several workers take it one at a time
+     */
+    public static final Object IMAGEJ_LOCK = new Object();
+
     private ImagePlus image;
     private final String nameImage;
     private final String nameObject;
@@ -101,7 +111,12 @@ public class Detector {
         this.zStackLastSlice = zStackLastSlice;
         IJ.log("detector : zStack folowed by projection");
         isProjection = true;
-        projection();
+        StageTimings.push(StageTimings.PROJECTION);
+        try {
+            projection();
+        } finally {
+            StageTimings.pop();
+        }
     }
 
     public boolean isProjection() {
@@ -159,10 +174,7 @@ public class Detector {
             ImagePlus imageToReturn = image.duplicate(); /*detector class does the projection if needed*/
             ImagePlus temp;
 //      MACRO : apply custom commands of user
-            imageToReturn.show();
-            IJ.selectWindow(imageToReturn.getID());
-            IJ.runMacro("setBatchMode(true);" + quantifMacro + "setBatchMode(false);"); /*accelerates the treatment by displaying only the last image*/
-            temp = WindowManager.getCurrentImage();
+            temp = runMacro(imageToReturn, "setBatchMode(true);" + quantifMacro + "setBatchMode(false);", StageTimings.PREPROCESSING_MACRO); /*accelerates the treatment by displaying only the last image*/
             if(temp!=imageToReturn) {
                 imageToReturn.changes=false;
                 imageToReturn.close();
@@ -178,6 +190,37 @@ public class Detector {
         return image.duplicate();
     }
 
+    /**
+     * run a macro of the user on an image
+     * - with a display, the image is shown and selected so that the macro works on it as the current image
+     * - headless (batch), there are no windows: the macro is run in batch mode on the hidden image
+     * - the macros run one at a time ({@link #IMAGEJ_LOCK}), as they work on the current image
+     * @param image image on which the macro is applied
+     * @param macro macro text
+     * @param stage stage of {@link StageTimings} timing the macro
+     * @return the current image at the end of the macro (the image itself if the macro works in place)
+     */
+    public static ImagePlus runMacro(ImagePlus image, String macro, int stage) {
+        synchronized (IMAGEJ_LOCK) {
+            StageTimings.push(stage);
+            try {
+                ImagePlus result;
+                if (GraphicsEnvironment.isHeadless()) {
+                    result = new Interpreter().runBatchMacro(macro, image);
+                } else {
+                    image.show();
+                    IJ.selectWindow(image.getID());
+                    IJ.runMacro(macro);
+                    result = WindowManager.getCurrentImage();
+                }
+                if (result == null) throw new IllegalStateException("the macro gave no image:\n" + macro);
+                return result;
+            } finally {
+                StageTimings.pop();
+            }
+        }
+    }
+
     public String getQuantifMacro() {
         return quantifMacro;
     }
@@ -209,6 +252,8 @@ public class Detector {
                 bestFocus(1);
             }
             renameImage(this.image, "projection");
+        } else if (this.image.getProperty(StreamingProjection.PROPERTY) != null) {
+            renameImage(this.image, "projection"); /*projected while read (see FieldOfView.getProjectedImagePlus)*/
         } else {
             //IJ.log("The image "+ this.image+" is not a stack.");
         }
@@ -248,29 +293,18 @@ public class Detector {
      * The scan ends when the end of image or selection is reached
      *
      * @param threshold_IP : binary image with particles to find
-     * @return RoiManager that contains the Rois corresponding to the particles found
+     * @return collection that contains the Rois corresponding to the particles found
      */
-    public RoiManager analyzeParticles(ImagePlus threshold_IP) {
-//        Get RoiManager
-        RoiManager roiManager = RoiManager.getInstance();
-        if (roiManager == null) { /*if no instance of roiManager, creates one*/
-            roiManager = new RoiManager();
-        } else { /*if already exists, empties it*/
-            roiManager.reset();
-        }
-
+    public RoiCollection analyzeParticles(ImagePlus threshold_IP) {
 //        Set options for particle analyzer
-        ParticleAnalyzer.setRoiManager(roiManager); /*precise with RoiManager to use*/
-        int analyzer_option = ParticleAnalyzer.SHOW_OVERLAY_MASKS + ParticleAnalyzer.ADD_TO_MANAGER;
+        int analyzer_option = ParticleAnalyzer.SHOW_OVERLAY_MASKS;
         if (excludeOnEdges) analyzer_option += ParticleAnalyzer.EXCLUDE_EDGE_PARTICLES;
-        ParticleAnalyzer particleAnalyzer = new ParticleAnalyzer(analyzer_option, 0, null, minSizeParticle, Integer.MAX_VALUE);
 
 //        Analyze
         ImageProcessor threshold_proc = threshold_IP.getProcessor();
         threshold_proc.setAutoThreshold("Default dark");
 //        threshold_proc.setThreshold(128,255); /*Needs to set threshold for the binary image*/
-        particleAnalyzer.analyze(threshold_IP); /*adds particles found to RoiManager and add overlay (see options)*/
-        return roiManager;
+        return RoiCollection.analyzeParticles(threshold_IP, analyzer_option, minSizeParticle, Integer.MAX_VALUE); /*collects particles found and add overlay (see options)*/
     }
 
     /**
@@ -293,19 +327,10 @@ public class Detector {
         }
 //        GET BINARY MASK OF THRESHOLD IMAGE THROUGH PARTICLE ANALYZER
 //        Set options
-        RoiManager roiManager = RoiManager.getInstance();
-        if (roiManager == null) {
-            roiManager = new RoiManager();
-        } else {
-            roiManager.reset();
-        }
-        int analyzer_option = /*ParticleAnalyzer.SHOW_MASKS+*/ParticleAnalyzer.ADD_TO_MANAGER;
+        int analyzer_option = 0;
         if (excludeOnEdges) analyzer_option += ParticleAnalyzer.EXCLUDE_EDGE_PARTICLES;
 //        Analyze
-        ParticleAnalyzer.setRoiManager(roiManager);
-        ParticleAnalyzer particleAnalyzer = new ParticleAnalyzer(analyzer_option, 0, null, minSizeParticle, Integer.MAX_VALUE);
-        particleAnalyzer.analyze(threshold_IP);
-        thresholdRois = roiManager.getRoisAsArray();
+        thresholdRois = RoiCollection.analyzeParticles(threshold_IP, analyzer_option, minSizeParticle, Integer.MAX_VALUE).getRoisAsArray();
 //        Get binary mask output and renames it
         ImagePlus mask_IP = binaryImage(image);
         renameImage(mask_IP, "binary_mask");
@@ -313,7 +338,7 @@ public class Detector {
     }
 
     /**
-     * same as Detector#getThresholdMask(ImagePlus) without RoiManager stuff
+     * same as Detector#getThresholdMask(ImagePlus) without keeping the ROIs
      * @param image
      * @return
      * @see Detector#getThresholdMask(ImagePlus)
@@ -333,23 +358,13 @@ public class Detector {
         }
 //        GET BINARY MASK OF THRESHOLD IMAGE THROUGH PARTICLE ANALYZER
 //        Set options
-        RoiManager roiManager = RoiManager.getInstance();
-        if (roiManager == null) {
-            roiManager = new RoiManager(false);
-        } else {
-            roiManager.reset();
-        }
-        int analyzer_option = /*ParticleAnalyzer.SHOW_MASKS+*/ParticleAnalyzer.ADD_TO_MANAGER;
+        int analyzer_option = 0;
         if (excludeOnEdges) analyzer_option += ParticleAnalyzer.EXCLUDE_EDGE_PARTICLES;
 //        Analyze
-        ParticleAnalyzer.setRoiManager(roiManager);
-        ParticleAnalyzer particleAnalyzer = new ParticleAnalyzer(analyzer_option, 0, null, minSizeParticle, Integer.MAX_VALUE);
-        particleAnalyzer.analyze(threshold_IP);
-        thresholdRois = roiManager.getRoisAsArray();
+        thresholdRois = RoiCollection.analyzeParticles(threshold_IP, analyzer_option, minSizeParticle, Integer.MAX_VALUE).getRoisAsArray();
 //        Get binary mask output and renames it
         ImagePlus mask_IP = binaryImage(image);
         thresholdRois = null;
-        roiManager.reset();
         renameImage(mask_IP, "binary_mask");
         return mask_IP;
     }
@@ -440,7 +455,7 @@ public class Detector {
         return binaryMask;
     }
 
-    public static boolean excludeOnEdgesRois(ImagePlus image,RoiManager roiManager){
+    public static boolean excludeOnEdgesRois(ImagePlus image,RoiCollection roiManager){
         boolean removed=false;
         Roi[] keep = new Roi[roiManager.getCount()];
         for (int r=roiManager.getCount()-1; r>=0;r--){
@@ -674,24 +689,32 @@ public class Detector {
      * @param resultsDirectory
      * @param labeledImage
      * @param type to signal the compartment
+     * @param compress true to write a deflate compressed TIFF with 32 bits labels (see {@link LabelTiffWriter})
      */
-    public static void saveMasks(String resultsDirectory, ImagePlus labeledImage,String type, String step){
+    public static void saveMasks(final String resultsDirectory, ImagePlus labeledImage, final String type, final String step, final boolean compress){
         IJ.log("save mask "+ labeledImage.getNSlices());
         File dir=new File(resultsDirectory + "/Images/"+step+"/");
         if(!dir.exists()) dir.mkdirs();
-        IJ.saveAsTiff(labeledImage,resultsDirectory + "/Images/"+step+"/" + type +"_" +labeledImage.getTitle()+".tif");
-
-        IJ.log("The "+type+" segmentation mask "+labeledImage.getTitle() + " was saved in "+ resultsDirectory+"/Images/"+step+"/");
+        final ImagePlus toSave = BackgroundWriter.snapshot(labeledImage);
+        final String title = labeledImage.getTitle();
+        BackgroundWriter.submit(new Runnable() {
+            @Override
+            public void run() {
+                String path = resultsDirectory + "/Images/" + step + "/" + type + "_" + title + ".tif";
+                boolean saved = compress ? LabelTiffWriter.write(toSave, path) : IJ.saveAsTiff(toSave, path);
+                if (saved) {
+                    IJ.log("The " + type + " segmentation mask " + title + " was saved in " + resultsDirectory + "/Images/" + step + "/");
+                } else {
+                    BackgroundWriter.failed("The " + type + " segmentation mask " + title + " could not be saved in " + resultsDirectory + "/Images/" + step + "/");
+                }
+            }
+        });
 
     }
 
-    public static void saveROI(String resultsDirectory, ImagePlus image, Roi[] rois, String analysisType, String compartiment, String roiPrefix, String step){
-        RoiManager roiManagerNuclei = new RoiManager(true);
-        if(rois!=null) {
-            for (int i = 0; i < rois.length; i++) {
-                roiManagerNuclei.add(rois[i],i);
-            }
-        } else return;
+    public static void saveROI(final String resultsDirectory, ImagePlus image, Roi[] rois, String analysisType, final String compartiment, String roiPrefix, final String step){
+        if(rois==null) return;
+        RoiCollection roiManagerNuclei = new RoiCollection(rois);
 
         if (resultsDirectory!=null ) {
 
@@ -702,11 +725,20 @@ public class Detector {
                 String extension=(roiManagerNuclei.getCount()==1)?".roi":".zip";
                 File dir=new File(resultsDirectory + "/ROI/"+step+"/");
                 if(!dir.exists()) dir.mkdirs();
-                if (roiManagerNuclei.save(resultsDirectory + "/ROI/"+step+"/" + image.getTitle() + "_" + analysisType + compartiment+extension)) {
-                    IJ.log("The "+compartiment+" ROIs of " + image.getTitle() + " were saved in " + resultsDirectory + "/ROI/"+step+"/");
-                } else {
-                    IJ.log("The "+compartiment+" ROIs of " + image.getTitle() + " could not be saved in " + resultsDirectory + "/ROI/"+step+"/");
-                }
+                /*the ROIs are renamed again by the next saving of the same ROIs: the writer saves copies*/
+                final RoiCollection toSave = new RoiCollection(BackgroundWriter.snapshot(roiManagerNuclei.getRoisAsArray()));
+                final String title = image.getTitle();
+                final String path = resultsDirectory + "/ROI/" + step + "/" + title + "_" + analysisType + compartiment + extension;
+                BackgroundWriter.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (toSave.save(path)) {
+                            IJ.log("The " + compartiment + " ROIs of " + title + " were saved in " + resultsDirectory + "/ROI/" + step + "/");
+                        } else {
+                            BackgroundWriter.failed("The " + compartiment + " ROIs of " + title + " could not be saved in " + resultsDirectory + "/ROI/" + step + "/");
+                        }
+                    }
+                });
             }
         }
         else if (resultsDirectory==null){
@@ -714,9 +746,8 @@ public class Detector {
         }
     }
 
-    public static void saveROI3D(String resultsDirectory, ImagePlus image, Objects3DIntPopulation rois3D, String analysisType, String compartiment,String step){
-
+    public static void saveROI3D(String resultsDirectory, ImagePlus image, Objects3DIntPopulation rois3D, String analysisType, String compartiment,String step, boolean compress){
         ImagePlus mask=Detector.labeledImage3D(image.getWidth(), image.getHeight(), image.getNSlices(),rois3D,image.getTitle()+analysisType+compartiment);
-        saveMasks(resultsDirectory, mask,compartiment,step);
+        saveMasks(resultsDirectory, mask,compartiment,step,compress);
     }
 }
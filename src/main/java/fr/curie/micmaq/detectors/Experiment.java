@@ -1,6 +1,7 @@
 package fr.curie.micmaq.detectors;
 
 import fr.curie.micmaq.helpers.MeasureCalibration;
+import fr.curie.micmaq.helpers.StageTimings;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.Roi;
@@ -9,6 +10,7 @@ import ij.plugin.frame.RoiManager;
 import mcib3d.geom2.Object3DInt;
 import org.checkerframework.checker.units.qual.A;
 
+import java.awt.*;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
@@ -33,6 +35,7 @@ public class Experiment {
     private ArrayList<ResultsTable> spotsInCytoplasmsTable;
 
     private boolean interrupt = false;
+    private boolean showRois = false; /*only the preview fills the RoiManager, a run shows the ROIs of its last field*/
 
     private  MeasureCalibration measureCalibration;
 
@@ -128,6 +131,13 @@ public class Experiment {
         if(spotsInCytoplasmsTable!=null) IJ.log("spots in nuclei size:"+spotsInCytoplasmsTable.size());
     }
 
+    /**
+     * @param showRois true to put the ROIs in the RoiManager at the end of {@link #run()}
+     */
+    public void setShowRois(boolean showRois) {
+        this.showRois = showRois;
+    }
+
     public void setSummaryTable(ResultsTable summary,boolean onlyPositive4Spots) {
         this.summary = summary;
         this.onlyPositive4Spots=onlyPositive4Spots;
@@ -160,19 +170,56 @@ public class Experiment {
         IJ.log("measurements launch");
         MeasureRois measureRois=new MeasureRois(nuclei,cell,cytoDetector,spots);
         measureRois.setSpotsTables(spotsInNucleiTable,spotsInCellsTable, spotsInCytoplasmsTable);
-        measureRois.measureAll(finalResultsNuclei,finalResultsCellSpot, experimentName, measureCalibration);
+        StageTimings.push(StageTimings.MEASUREMENT);
+        try {
+            measureRois.measureAll(finalResultsNuclei,finalResultsCellSpot, experimentName, measureCalibration);
+        } finally {
+            StageTimings.pop();
+        }
         if(nuclei!=null) nuclei.saveAll(nuclei.getAnalysisType());
         if(cell!=null) cell.saveAll(cell.getAnalysisType());
+        if (spots != null) {
+            for (SpotDetector spot : spots) {
+                if (spot != null) spot.saveSpotArchive();
+            }
+        }
         //perform summary
         if(summary!=null) {
-            if(finalResultsNuclei!=null && finalResultsCellSpot!=null) measureRois.summary(summary,finalResultsNuclei, finalResultsCellSpot,experimentName, onlyPositive4Spots);
-            else if(finalResultsNuclei!=null) measureRois.summary(summary,finalResultsNuclei,experimentName);
-            else if(finalResultsCellSpot!=null) measureRois.summary(summary,finalResultsCellSpot,experimentName);
+            StageTimings.push(StageTimings.MEASUREMENT);
+            try {
+                if(finalResultsNuclei!=null && finalResultsCellSpot!=null) measureRois.summary(summary,finalResultsNuclei, finalResultsCellSpot,experimentName, onlyPositive4Spots);
+                else if(finalResultsNuclei!=null) measureRois.summary(summary,finalResultsNuclei,experimentName);
+                else if(finalResultsCellSpot!=null) measureRois.summary(summary,finalResultsCellSpot,experimentName);
+            } finally {
+                StageTimings.pop();
+            }
         }
         //set the correct rois in the Roi manager
+        if (showRois) showRois();
+
+//        TIMING OF EXPERIENCE
+        Instant dateEnd = Instant.now();
+        long duration = Duration.between(dateBegin,dateEnd).toMillis();
+        IJ.log("Experiment "+experimentName+" is done in :" +duration/1000+" seconds");
+        return true;
+    }
+
+    /**
+     * put the ROIs of the experiment in the RoiManager, on the event dispatch thread (no RoiManager without display, in batch)
+     */
+    public void showRois() {
+        if (GraphicsEnvironment.isHeadless()) return;
+        if (EventQueue.isDispatchThread()) fillRoiManager();
+        else EventQueue.invokeLater(this::fillRoiManager); /*the experiments run on workers, the RoiManager is a window*/
+    }
+
+    /**
+     * put the ROIs of the experiment in the RoiManager: cells if any, otherwise nuclei
+     */
+    private void fillRoiManager() {
         if(cytoDetector!=null) {
             Roi[] roisCell= cytoDetector.getCellRois();
-            RoiManager rm=RoiManager.getInstance();
+            RoiManager rm=RoiManager.getRoiManager();
             rm.reset();
             if(roisCell!=null) for (int i = 0; i < roisCell.length; i++) {
                 roisCell[i].setName("Cell_"+(i+1));
@@ -180,7 +227,7 @@ public class Experiment {
             }
         }else if(cell!=null) {
             Roi[] roisCell= cell.getRoiArray();
-            RoiManager rm=RoiManager.getInstance();
+            RoiManager rm=RoiManager.getRoiManager();
             rm.reset();
             if(roisCell!=null) for (int i = 0; i < roisCell.length; i++) {
                 roisCell[i].setName("Cell_"+(i+1));
@@ -189,7 +236,7 @@ public class Experiment {
         }else if(nuclei!=null) {
             if(nuclei.isExpand4Cells()){
                 Roi[] roisCell= nuclei.getExpandedRois().get(1);
-                RoiManager rm=RoiManager.getInstance();
+                RoiManager rm=RoiManager.getRoiManager();
                 rm.reset();
                 if(roisCell!=null) for (int i = 0; i < roisCell.length; i++) {
                     roisCell[i].setName("ExpandedCell_"+(i+1));
@@ -197,7 +244,7 @@ public class Experiment {
                 }
             }else{
                 Roi[] roisNuclei= nuclei.getRoiArray();
-                RoiManager rm=RoiManager.getInstance();
+                RoiManager rm=RoiManager.getRoiManager();
                 rm.reset();
                 if(roisNuclei!=null) for (int i = 0; i < roisNuclei.length; i++) {
                     roisNuclei[i].setName("Nuclei_"+(i+1));
@@ -205,12 +252,6 @@ public class Experiment {
                 }
             }
         }
-
-//        TIMING OF EXPERIENCE
-        Instant dateEnd = Instant.now();
-        long duration = Duration.between(dateBegin,dateEnd).toMillis();
-        IJ.log("Experiment "+experimentName+" is done in :" +duration/1000+" seconds");
-        return true;
     }
 
     public boolean preprocess(){
@@ -218,7 +259,14 @@ public class Experiment {
         if (cell !=null && !interrupt){
             IJ.log("Cell/Cytoplasm image: "+ cell.getImageTitle());
             cell.setMeasureCalibration(measureCalibration);
-            if (!cell.prepare()) {
+            boolean prepared;
+            StageTimings.push(StageTimings.SEGMENTATION);
+            try {
+                prepared = cell.prepare();
+            } finally {
+                StageTimings.pop();
+            }
+            if (!prepared) {
                 interrupt=true;
                 return false;
             }
@@ -228,7 +276,14 @@ public class Experiment {
         if (nuclei!=null && !interrupt){
             IJ.log("Nuclei image: "+nuclei.getImageTitle());
             nuclei.setMeasureCalibration(measureCalibration);
-            if (!nuclei.prepare()) {
+            boolean prepared;
+            StageTimings.push(StageTimings.SEGMENTATION);
+            try {
+                prepared = nuclei.prepare();
+            } finally {
+                StageTimings.pop();
+            }
+            if (!prepared) {
                 interrupt=true;
                 return false;
             }
@@ -240,7 +295,14 @@ public class Experiment {
                 SpotDetector spot = spots.get(i);
                 IJ.log("Quantification channel "+(i+1)+ " image:" + spot.getImageTitle());
                 spot.setMeasureCalibration(measureCalibration);
-                if (!spot.prepare()) {
+                boolean prepared;
+                StageTimings.push(StageTimings.SPOT_DETECTION);
+                try {
+                    prepared = spot.prepare();
+                } finally {
+                    StageTimings.pop();
+                }
+                if (!prepared) {
                     interrupt=true;
                     return false;
                 }
@@ -260,7 +322,12 @@ public class Experiment {
             cytoDetector.setNucleiRois(nuclei.getRoiArray());
             if(nuclei.getRoi3D()!=null) cytoDetector.setNucleiRois3D(nuclei.getRoi3D().getObjects3DInt().toArray(new Object3DInt[0]));
             cytoDetector.setMeasureCalibration(measureCalibration);
-            cytoDetector.prepare();
+            StageTimings.push(StageTimings.ASSOCIATION);
+            try {
+                cytoDetector.prepare();
+            } finally {
+                StageTimings.pop();
+            }
             if(cytoDetector.is3D()){
                 Object3DInt[] validcell3D = cytoDetector.getCellRois3D();
                 cell.setCellRois(validcell3D);
@@ -319,7 +386,7 @@ public class Experiment {
         cellRois = cell.getRoiArray();
         numberOfObject = cellRois.length;
         IJ.log("(cell"+((nuclei!=null)?"/nuclei":"")+")number of objects: "+numberOfObject);
-        RoiManager rm = RoiManager.getInstance();
+        RoiManager rm = RoiManager.getRoiManager();
         rm.reset();
         for (int i = 0; i < cellRois.length; i++) {
             cellRois[i].setName("Cell_" + (i + 1));
@@ -329,7 +396,7 @@ public class Experiment {
 
         /*CytoDetector cyto=prepareCytoplams();
         if(cyto!=null) {
-            RoiManager rm = RoiManager.getInstance();
+            RoiManager rm = RoiManager.getRoiManager();
             rm.reset();
             Roi[] cytoRois = cyto.get();
             for (int i = 0; i < cytoRois.length; i++) {
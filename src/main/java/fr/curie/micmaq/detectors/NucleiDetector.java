@@ -1,7 +1,9 @@
 package fr.curie.micmaq.detectors;
 
+import fr.curie.micmaq.helpers.BackgroundWriter;
 import fr.curie.micmaq.helpers.ExpandMask;
 import fr.curie.micmaq.helpers.MeasureCalibration;
+import fr.curie.micmaq.helpers.StageTimings;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -68,6 +70,10 @@ public class NucleiDetector {
     private boolean saveMask;
     private boolean saveRois;
     private boolean savePreprocessed;
+    private boolean compressMasks = false;
+    private int tileSize = -1;
+    private int tileOverlap = -1;
+    private int tileProcesses = 1;
     private boolean showBinaryImage;
     private int measurements;
 
@@ -122,12 +128,7 @@ public class NucleiDetector {
         this.nucleiRois=associatedToCellNucleiRois;
         if (associatedToCellNucleiRois.length>0){
             if (resultsDirectory!=null && saveRois) {
-                RoiManager roiManager = RoiManager.getInstance();
-                if (roiManager == null) { /*if no instance of roiManager, creates one*/
-                    roiManager = new RoiManager();
-                } else { /*if already exists, empties it*/
-                    roiManager.reset();
-                }
+                RoiCollection roiManager = new RoiCollection();
                 for (int i = 0; i < associatedToCellNucleiRois.length; i++) {
                     Roi roi = associatedToCellNucleiRois[i];
                     if (roi!=null){
@@ -224,6 +225,24 @@ public class NucleiDetector {
         this.savePreprocessed = savePreprocessed;
     }
 
+    /**
+     * @param compressMasks true to write the label masks as deflate compressed TIFF with 32 bits labels
+     */
+    public void setCompressMasks(boolean compressMasks) {
+        this.compressMasks = compressMasks;
+    }
+
+    /**
+     * @param tileSize size of the tiles segmented by Cellpose, negative for no tiling
+     * @param tileOverlap overlap of the tiles
+     * @param tileProcesses maximum number of Cellpose processes segmenting the tiles at the same time
+     */
+    public void setCellposeTiling(int tileSize, int tileOverlap, int tileProcesses) {
+        this.tileSize = tileSize;
+        this.tileOverlap = tileOverlap;
+        this.tileProcesses = tileProcesses;
+    }
+
     /**
      * Set parameters for thresholding
      * @param thresholdMethod : method of thresholding
@@ -339,7 +358,7 @@ public class NucleiDetector {
         prepare(true);
         if(isExpand4Cells()){
             ArrayList<Roi[]> expanded=getExpandedRois();
-            RoiManager rm=RoiManager.getInstance();
+            RoiManager rm=RoiManager.getRoiManager();
             rm.reset();
             Roi[] cellRois=expanded.get(1);
             for (int i = 0; i < cellRois.length; i++) {
@@ -375,7 +394,7 @@ public class NucleiDetector {
             labeledImage = (ImagePlus) segtmp.get(0);
             IJ.log("label image max "+new StackStatistics(labeledImage).max);
             IJ.log("label image nslices "+labeledImage.getNSlices());
-            RoiManager roiManagerNuclei = (RoiManager) segtmp.get(1);
+            RoiCollection roiManagerNuclei = (RoiCollection) segtmp.get(1);
             roi3Ds = (Objects3DIntPopulation) segtmp.get(2);
             if(roi3Ds!=null) IJ.log("nucleidetector analyse cellpose roi3D:"+roi3Ds.getNbObjects());
             String analysisType = (String) segtmp.get(3);
@@ -406,21 +425,25 @@ public class NucleiDetector {
             }
 //            User can redefine ROIs if option selected
             if (finalValidation){
-                roiManagerNuclei.toFront();
-                ImagePlus tempImage = detector.getImageQuantification().duplicate(); /*Need to duplicate, as closing the image nullify the ImageProcessor*/
-               /* if (showBinaryImage){
-                    IJ.selectWindow(imageToMeasure.getID());
-                }else {
+                synchronized (Detector.IMAGEJ_LOCK) { /*one validation at a time in the RoiManager*/
+                    RoiManager roiManager = roiManagerNuclei.toRoiManager();
+                    roiManager.toFront();
+                    ImagePlus tempImage = detector.getImageQuantification().duplicate(); /*Need to duplicate, as closing the image nullify the ImageProcessor*/
+                   /* if (showBinaryImage){
+                        IJ.selectWindow(imageToMeasure.getID());
+                    }else {
+                        tempImage.show();
+                    }*/
                     tempImage.show();
-                }*/
-                tempImage.show();
-                IJ.selectWindow(tempImage.getID());
-                roiManagerNuclei.runCommand("Show All");
-                new WaitForUserDialog("Nuclei selection", "Delete nuclei : select the ROIs + delete").show();
-                if (!showBinaryImage){
-                    tempImage.close();
+                    IJ.selectWindow(tempImage.getID());
+                    roiManager.runCommand("Show All");
+                    new WaitForUserDialog("Nuclei selection", "Delete nuclei : select the ROIs + delete").show();
+                    roiManagerNuclei = new RoiCollection(roiManager.getRoisAsArray());
+                    if (!showBinaryImage){
+                        tempImage.close();
+                    }
+                    labeledImage = detector.labeledImage(roiManagerNuclei.getRoisAsArray());
                 }
-                labeledImage = detector.labeledImage(roiManagerNuclei.getRoisAsArray());
             }
             nucleiRois = roiManagerNuclei.getRoisAsArray();
             if(imageToMeasure==null) imageToMeasure=detector.getImageQuantification();
@@ -436,14 +459,15 @@ public class NucleiDetector {
                 preprocessed.show();
                 WindowManager.getWindow("Log").toFront();
             }
-            RoiManager roiManagerNuclei;
+            RoiCollection roiManagerNuclei;
             ImagePlus labeledImage;
 //            SEGMENTATION
             if (cellpose){
-                WindowManager.getWindow("Log").toFront();
+                if (WindowManager.getWindow("Log") != null) WindowManager.getWindow("Log").toFront();
                 IJ.log("run Cellpose");
                 analysisType = "cellpose";
                 CellposeLauncher cellposeLauncher = new CellposeLauncher(preprocessed, cellposeDiameter, cellposeCellproba_threshold,cellposeModel, excludeOnEdges);
+                cellposeLauncher.setTiling(tileSize, tileOverlap, tileProcesses);
                 cellposeLauncher.analysis();
                 ImagePlus tmp = cellposeLauncher.getCellposeMask();
                 IJ.log("seg label image max "+new StackStatistics(tmp).max);
@@ -477,25 +501,24 @@ public class NucleiDetector {
                 ImagePlus temp;
 //      MACRO : apply custom commands of user
 
-                imageToReturn.show();
-                IJ.selectWindow(imageToReturn.getID());
-                IJ.runMacro("//setBatchMode(true);\n"+segmentationMacro+"\n//setBatchMode(false);"); /*accelerates the treatment by displaying only the last image*/
-                temp = WindowManager.getCurrentImage();
-                if(!showPreprocessingImage) imageToReturn.hide();
-                //imageToReturn.setTitle("image to return");
-                temp.changes=false;
-                temp.setTitle("temp");
-                temp.hide();
-                if(isMacroOutputImage && macroOutputRoiManager){
-                    labeledImage = temp;
-                    roiManagerNuclei = RoiManager.getRoiManager();
-                }else if(isMacroOutputImage){
-                    labeledImage = temp;
-                    RoiManager.getRoiManager().reset();
-                    roiManagerNuclei = CellposeLauncher.label2Roi(temp,0,0,0);
-                } else {
-                    roiManagerNuclei = RoiManager.getRoiManager();
-                    labeledImage = detector.labeledImage(roiManagerNuclei.getRoisAsArray());
+                synchronized (Detector.IMAGEJ_LOCK) { /*the RoiManager filled by the macro is read before another macro runs*/
+                    if (macroOutputRoiManager || !isMacroOutputImage) RoiManager.getRoiManager().reset(); /*only the ROIs of this macro*/
+                    temp = Detector.runMacro(imageToReturn, "//setBatchMode(true);\n"+segmentationMacro+"\n//setBatchMode(false);", StageTimings.SEGMENTATION); /*accelerates the treatment by displaying only the last image*/
+                    if(!showPreprocessingImage) imageToReturn.hide();
+                    //imageToReturn.setTitle("image to return");
+                    temp.changes=false;
+                    temp.setTitle("temp");
+                    temp.hide();
+                    if(isMacroOutputImage && macroOutputRoiManager){
+                        labeledImage = temp;
+                        roiManagerNuclei = new RoiCollection(RoiManager.getRoiManager().getRoisAsArray()); /*the macro outputs in the RoiManager*/
+                    }else if(isMacroOutputImage){
+                        labeledImage = temp;
+                        roiManagerNuclei = CellposeLauncher.label2Roi(temp,0,0,0);
+                    } else {
+                        roiManagerNuclei = new RoiCollection(RoiManager.getRoiManager().getRoisAsArray()); /*the macro outputs in the RoiManager*/
+                        labeledImage = detector.labeledImage(roiManagerNuclei.getRoisAsArray());
+                    }
                 }
             }else {//threshold
                 IJ.log("run threshold");
@@ -557,11 +580,7 @@ public class NucleiDetector {
             ImagePlus temp;
 //      MACRO : apply custom commands of user
             if (useMacro){
-                imageToReturn.show();
-                //IJ.log("macro: nslices:"+imageToReturn.getNSlices());
-                IJ.selectWindow(imageToReturn.getID());
-                IJ.runMacro("setBatchMode(true);"+macroText+"setBatchMode(false);"); /*accelerates the treatment by displaying only the last image*/
-                temp = WindowManager.getCurrentImage();
+                temp = Detector.runMacro(imageToReturn, "setBatchMode(true);"+macroText+"setBatchMode(false);", StageTimings.PREPROCESSING_MACRO); /*accelerates the treatment by displaying only the last image*/
                 if(temp!=imageToReturn) {
                     imageToReturn.changes=false;
                     imageToReturn.hide();
@@ -677,23 +696,20 @@ public class NucleiDetector {
         expandedIP= new ImagePlus("expanded",expanded);
         //expandedIP.show();
         IJ.log("nb cells expanded(mask): "+expanded.getStats().max);
-        RoiManager.getRoiManager().reset();
-        RoiManager cells = label2Roi(expandedIP,0,0,0, "Cell ");
+        RoiCollection cells = label2Roi(expandedIP,0,0,0, "Cell ");
         Roi[] cellRois=cells.getRoisAsArray();
         roisExpanded.add(cellRois);
         //xor
         //ImagePlus cytoIP=expandedIP.duplicate();
         //cytoIP.setTitle("cyto mask");
         //cytoIP.getProcessor().copyBits(mask.getProcessor(), 0,0, Blitter.SUBTRACT);
-        RoiManager.getRoiManager().reset();
-        //RoiManager cyto = label2Roi(cytoIP,0,0,0, "Cyto ");
+        //RoiCollection cyto = label2Roi(cytoIP,0,0,0, "Cyto ");
         Roi[] cytoRois = new Roi[cellRois.length];
         for(int r=0;r<cellRois.length;r++){
             ShapeRoi roiCyto=new ShapeRoi(cellRois[r]);
             roiCyto.xor(new ShapeRoi(nucleiRois[r]));
             roiCyto.setName("Cyto "+(r+1));
             cytoRois[r]=roiCyto;
-            RoiManager.getRoiManager().addRoi(roiCyto);
         }
         //cytoIP.show();
         roisExpanded.add(cytoRois);
@@ -707,15 +723,14 @@ public class NucleiDetector {
      * @param yoffset
      * @return
      */
-    public static RoiManager label2Roi(ImagePlus cellposeIP, int xoffset, int yoffset,int minSize, String prefix) {
+    public static RoiCollection label2Roi(ImagePlus cellposeIP, int xoffset, int yoffset,int minSize, String prefix) {
         if (cellposeIP == null) System.out.println("error cellposeIP is null!");
         ImageProcessor cellposeProc = cellposeIP.getProcessor().duplicate();
         //cellposeIP.duplicate().show();
         Wand wand = new Wand(cellposeProc);
 
-//        Set RoiManager
-        RoiManager cellposeRoiManager = RoiManager.getRoiManager();
-        //cellposeRoiManager.reset();
+//        Set collection of ROIs
+        RoiCollection cellposeRoiManager = new RoiCollection();
 
 
         /*
@@ -731,7 +746,7 @@ public class NucleiDetector {
         ImageStatistics statistics=cellposeProc.getStatistics();
         for(int i=0;i<statistics.max;i++) {
             tmp.setName(prefix+(i+1));
-            cellposeRoiManager.addRoi(tmp);
+            cellposeRoiManager.addRoi((Roi) tmp.clone());
         }
 
         for (int y_coord=0;y_coord<cellposeProc.getHeight();y_coord++) {
@@ -821,16 +836,16 @@ public class NucleiDetector {
                 ImagePlus label=detector.labeledImage3D(labeledImage.getWidth(), labeledImage.getHeight(), labeledImage.getNSlices(), roi3Ds,nameExperiment);
                 detector.renameImage(label,analysisType+"_NucleiDetected_LabelMask3D");
                 detector.setLUT(label);
-                Detector.saveMasks(resultsDirectory,label,"Nuclei3D","AllDetected");
+                Detector.saveMasks(resultsDirectory,label,"Nuclei3D","AllDetected",compressMasks);
             }else{
                 detector.renameImage(labeledImage,analysisType+"_NucleiDetected_LabelMask");
                 detector.setLUT(labeledImage);
-                Detector.saveMasks(resultsDirectory,labeledImage,"Nuclei2D","AllDetected");
+                Detector.saveMasks(resultsDirectory,labeledImage,"Nuclei2D","AllDetected",compressMasks);
             }
             if(expand4Cells && roisExpanded!=null) {
                 detector.renameImage(expandedIP,analysisType+"_NucleiExpanded_LabelMask");
                 detector.setLUT(expandedIP);
-                Detector.saveMasks(resultsDirectory,expandedIP, "NucleiExpanded","AllDetected");
+                Detector.saveMasks(resultsDirectory,expandedIP, "NucleiExpanded","AllDetected",compressMasks);
             }
         }else if (resultsDirectory==null && saveMask){
             IJ.error("No directory given for the results");
@@ -843,15 +858,24 @@ public class NucleiDetector {
                Detector.saveROI(resultsDirectory,image, roisExpanded.get(2),  analysisType,"_NucleiDetectedROIs_ExpandedCyto", "ExpandedCyto_","AllDetected");
            }
            if(roi3Ds!=null) {
-               Detector.saveROI3D(resultsDirectory,image,roi3Ds,analysisType,"NucleiDetectedROIs_3D","AllDetected");
+               Detector.saveROI3D(resultsDirectory,image,roi3Ds,analysisType,"NucleiDetectedROIs_3D","AllDetected",compressMasks);
                if(expand4Cells){
-                   if(expandedRois3D!=null)Detector.saveROI3D(resultsDirectory,image,expandedRois3D,analysisType,"_NucleiDetectedROIs_ExpandedCell","AllDetected");
-                   if(cytoRois3D!=null)Detector.saveROI3D(resultsDirectory,image,cytoRois3D,analysisType,"NucleiDetectedROIs_ExpandedCyto","AllDetected");
+                   if(expandedRois3D!=null)Detector.saveROI3D(resultsDirectory,image,expandedRois3D,analysisType,"_NucleiDetectedROIs_ExpandedCell","AllDetected",compressMasks);
+                   if(cytoRois3D!=null)Detector.saveROI3D(resultsDirectory,image,cytoRois3D,analysisType,"NucleiDetectedROIs_ExpandedCyto","AllDetected",compressMasks);
                }
            }
        }
         if (resultsDirectory !=null && savePreprocessed){
-            IJ.saveAsTiff(preprocessed,resultsDirectory + "/Images/Preprocessed/"+image.getTitle()+"_Nuclei_Preprocessed.tif");
+            final ImagePlus toSave = BackgroundWriter.snapshot(preprocessed);
+            final String path = resultsDirectory + "/Images/Preprocessed/" + image.getTitle() + "_Nuclei_Preprocessed.tif";
+            BackgroundWriter.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (!IJ.saveAsTiff(toSave, path)) {
+                        BackgroundWriter.failed("The preprocessed image " + path + " could not be saved");
+                    }
+                }
+            });
         }
     }
 
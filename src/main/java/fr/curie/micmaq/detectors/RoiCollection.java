@@ -0,0 +1,195 @@
+package fr.curie.micmaq.detectors;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.io.RoiEncoder;
+import ij.measure.ResultsTable;
+import ij.plugin.RoiScaler;
+import ij.plugin.filter.ParticleAnalyzer;
+import ij.plugin.frame.RoiManager;
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+
+import java.awt.*;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Ordered list of ROIs owned by a detector
+ * - used instead of the RoiManager singleton during the analysis, so experiments running at the same time do not share ROIs
+ * - no window nor list model: the RoiManager is only filled at the end for display (see {@link #toRoiManager()})
+ */
+public class RoiCollection {
+    private final ArrayList<Roi> rois = new ArrayList<>();
+
+    public RoiCollection() {
+    }
+
+    /**
+     * @param rois ROIs to put in the collection (null are ignored)
+     */
+    public RoiCollection(Roi[] rois) {
+        if (rois != null) {
+            for (Roi roi : rois) {
+                if (roi != null) this.rois.add(roi);
+            }
+        }
+    }
+
+    public void addRoi(Roi roi) {
+        if (roi != null) rois.add(roi);
+    }
+
+    public int getCount() {
+        return rois.size();
+    }
+
+    public Roi getRoi(int index) {
+        return rois.get(index);
+    }
+
+    public void setRoi(Roi roi, int index) {
+        rois.set(index, roi);
+    }
+
+    public void rename(int index, String name) {
+        rois.get(index).setName(name);
+    }
+
+    public Roi[] getRoisAsArray() {
+        return rois.toArray(new Roi[0]);
+    }
+
+    public void reset() {
+        rois.clear();
+    }
+
+    /**
+     * set the ROI on the image (and the slice corresponding to the ROI position)
+     * @param imp image
+     * @param index index of ROI
+     */
+    public void select(ImagePlus imp, int index) {
+        Roi roi = rois.get(index);
+        if (imp.getStackSize() > 1 && roi.getPosition() > 0) imp.setSliceWithoutUpdate(roi.getPosition());
+        imp.setRoi(roi, false);
+    }
+
+    /**
+     * scale all ROIs
+     * @param xscale scale in x
+     * @param yscale scale in y
+     * @param centered scale from the center of each ROI
+     */
+    public void scale(double xscale, double yscale, boolean centered) {
+        for (int i = 0; i < rois.size(); i++) {
+            Roi roi = rois.get(i);
+            Roi scaled = RoiScaler.scale(roi, xscale, yscale, centered);
+            scaled.setName(roi.getName());
+            scaled.setPosition(roi.getPosition());
+            rois.set(i, scaled);
+        }
+    }
+
+    /**
+     * save the ROIs as .roi if path ends with .roi (only first ROI) or as zip
+     * ROIs without name are named with the coordinates of their center as in the RoiManager
+     * @param path path of file
+     * @return true if saved
+     */
+    public boolean save(String path) {
+        if (rois.isEmpty()) return false;
+        if (path.endsWith(".roi")) return RoiEncoder.save(rois.get(0), path);
+        try (ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(path)))) {
+            DataOutputStream out = new DataOutputStream(zos);
+            RoiEncoder encoder = new RoiEncoder(out);
+            HashSet<String> names = new HashSet<>();
+            for (Roi roi : rois) {
+                String name = uniqueName(label(roi), names);
+                zos.putNextEntry(new ZipEntry(name + ".roi"));
+                encoder.write(roi);
+                out.flush();
+            }
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private static String label(Roi roi) {
+        if (roi.getName() != null) return roi.getName();
+        Rectangle r = roi.getBounds();
+        String label = String.format("%04d-%04d", r.y + r.height / 2, r.x + r.width / 2);
+        if (roi.getPosition() > 0) label = String.format("%04d-", roi.getPosition()) + label;
+        return label;
+    }
+
+    private static String uniqueName(String name, HashSet<String> names) {
+        String unique = name;
+        int count = 1;
+        while (names.contains(unique)) {
+            unique = name + "-" + count;
+            count++;
+        }
+        names.add(unique);
+        return unique;
+    }
+
+    /**
+     * put all ROIs in the RoiManager (emptied before) for display
+     * @return the RoiManager
+     */
+    public RoiManager toRoiManager() {
+        RoiManager roiManager = RoiManager.getRoiManager();
+        roiManager.reset();
+        for (Roi roi : rois) roiManager.addRoi(roi);
+        return roiManager;
+    }
+
+    /**
+     * Particle analyzer adding the particles to a collection instead of the RoiManager
+     * the results table used is private to the analysis
+     * @param imp binary/thresholded image
+     * @param options options of {@link ParticleAnalyzer} (ADD_TO_MANAGER is ignored)
+     * @param minSize minimum size of particles
+     * @param maxSize maximum size of particles
+     * @return collection of particles
+     */
+    public static RoiCollection analyzeParticles(ImagePlus imp, int options, double minSize, double maxSize) {
+        RoiCollection collection = new RoiCollection();
+        CollectingParticleAnalyzer particleAnalyzer = new CollectingParticleAnalyzer(options & ~ParticleAnalyzer.ADD_TO_MANAGER, minSize, maxSize, collection);
+        particleAnalyzer.analyze(imp);
+        return collection;
+    }
+
+    private static class CollectingParticleAnalyzer extends ParticleAnalyzer {
+        private final RoiCollection collection;
+        private int slice;
+
+        CollectingParticleAnalyzer(int options, double minSize, double maxSize, RoiCollection collection) {
+            super(options, 0, new ResultsTable(), minSize, maxSize);
+            this.collection = collection;
+        }
+
+        @Override
+        public boolean analyze(ImagePlus imp, ImageProcessor ip) {
+            slice = (imp.getStackSize() > 1) ? imp.getCurrentSlice() : 0;
+            return super.analyze(imp, ip);
+        }
+
+        @Override
+        protected void saveResults(ImageStatistics stats, Roi roi) {
+            super.saveResults(stats, roi);
+            if (slice > 0) roi.setPosition(slice);
+            collection.addRoi(roi);
+        }
+    }
+}
@@ -1,10 +1,11 @@
 package fr.curie.micmaq.detectors;
 
+import fr.curie.micmaq.helpers.BackgroundWriter;
 import fr.curie.micmaq.helpers.MeasureCalibration;
+import fr.curie.micmaq.helpers.StageTimings;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.Prefs;
-import ij.WindowManager;
 import ij.gui.*;
 import ij.io.RoiEncoder;
 import ij.measure.Measurements;
@@ -15,7 +16,6 @@ import ij.plugin.RGBStackMerge;
 import ij.plugin.filter.Analyzer;
 import ij.plugin.filter.BackgroundSubtracter;
 import ij.plugin.filter.MaximumFinder;
-import ij.plugin.frame.RoiManager;
 import ij.process.Blitter;
 import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
@@ -50,7 +50,9 @@ public class SpotDetector {
     private final String resultsDirectory;
     private boolean saveImage;
     private boolean saveRois;
+    private boolean singleSpotArchive = false;
     private boolean savePreprocessedImage;
+    private RoiCollection spotArchive; /*spot ROIs of all regions, named with the region, when saved in one archive*/
 
 
     //    Showing images
@@ -238,6 +240,14 @@ public class SpotDetector {
         System.out.println("saveImage: "+saveImage+" saveRois: "+saveRois+" savePreprocessedImage: "+savePreprocessedImage);
     }
 
+    /**
+     * @param singleSpotArchive true to save the spot ROIs found by threshold in all the regions of the image in one
+     *                          archive (see {@link #saveSpotArchive()}) instead of one file per region
+     */
+    public void setSingleSpotArchive(boolean singleSpotArchive) {
+        this.singleSpotArchive = singleSpotArchive;
+    }
+
     /**
      * Set parameters for macro if necessary
      *
@@ -478,11 +488,19 @@ public class SpotDetector {
                     thresholdIP.show();
                 }
                 if (resultsDirectory != null && saveImage) {
-                    if (IJ.saveAsTiff(thresholdIP, resultsDirectory + "/Images/Spot" + spotName + "/thresholding/" + thresholdIP.getTitle())) {
-                        IJ.log("The spot binary mask " + thresholdIP.getTitle() + " was saved in " + resultsDirectory + "/Images/Spot" + spotName + "/thresholding/");
-                    } else {
-                        IJ.log("The spot binary mask " + thresholdIP.getTitle() + " could not be saved in  " + resultsDirectory + "/Images/Spot" + spotName + "/thresholding/");
-                    }
+                    final ImagePlus toSave = BackgroundWriter.snapshot(thresholdIP);
+                    final String title = thresholdIP.getTitle();
+                    final String directory = resultsDirectory + "/Images/Spot" + spotName + "/thresholding/";
+                    BackgroundWriter.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (IJ.saveAsTiff(toSave, directory + title)) {
+                                IJ.log("The spot binary mask " + title + " was saved in " + directory);
+                            } else {
+                                BackgroundWriter.failed("The spot binary mask " + title + " could not be saved in " + directory);
+                            }
+                        }
+                    });
                 }
             }
 //            Detection by find maxima
@@ -495,27 +513,52 @@ public class SpotDetector {
                         findMaximaIP.setRoi((Roi) null);
                         PointRoi roiMaxima = findMaxima(findMaximaIP, prominence, "full");
                         findMaximaIP.setRoi(roiMaxima);
-                        boolean wasSaved = RoiEncoder.save(roiMaxima, resultsDirectory + "/ROI/Spot" + spotName + "/findmaxima/" + image.getTitle() + "_findMaxima_all_roi.roi");
-                        if (!wasSaved) {
-                            IJ.error("Could not save ROIs");
-                        } else {
-                            IJ.log("The ROIs of the spot found by find Maxima method of " + image.getTitle() + " were saved in " + resultsDirectory + "/ROI/Spot" + spotName + "/" + image.getTitle() + "findMaxima_all_roi.roi");
-                        }
+                        final Roi toSave = (Roi) roiMaxima.clone();
+                        final String title = image.getTitle();
+                        final String directory = resultsDirectory + "/ROI/Spot" + spotName + "/";
+                        BackgroundWriter.submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                boolean wasSaved = RoiEncoder.save(toSave, directory + "findmaxima/" + title + "_findMaxima_all_roi.roi");
+                                if (!wasSaved) {
+                                    BackgroundWriter.failed("The ROIs of the spot found by find Maxima method of " + title + " could not be saved in " + directory);
+                                } else {
+                                    IJ.log("The ROIs of the spot found by find Maxima method of " + title + " were saved in " + directory + title + "findMaxima_all_roi.roi");
+                                }
+                            }
+                        });
                     }
                     if (saveImage) {
-                        ImagePlus toSave = findMaximaIP.flatten();
-                        if (IJ.saveAsTiff(toSave, resultsDirectory + "/Images/Spot" + spotName + "/findmaxima/" + findMaximaIP.getTitle())) {
-                            IJ.log("The find maxima spots image " + findMaximaIP.getTitle() + " was saved in " + resultsDirectory + "/Images/Spot" + spotName + "/findmaxima/" + findMaximaIP.getTitle());
-                        } else {
-                            IJ.log("The find maxima spots image " + findMaximaIP.getTitle() + " could not be saved in " + resultsDirectory + "/Images/Spot" + spotName + "/findmaxima/");
-                        }
+                        /*the flattened image is a new image, owned by the writer*/
+                        final ImagePlus toSave = findMaximaIP.flatten();
+                        final String title = findMaximaIP.getTitle();
+                        final String directory = resultsDirectory + "/Images/Spot" + spotName + "/findmaxima/";
+                        BackgroundWriter.submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (IJ.saveAsTiff(toSave, directory + title)) {
+                                    IJ.log("The find maxima spots image " + title + " was saved in " + directory + title);
+                                } else {
+                                    BackgroundWriter.failed("The find maxima spots image " + title + " could not be saved in " + directory);
+                                }
+                            }
+                        });
                     }
 
                 }
             }
             if(resultsDirectory!=null && savePreprocessedImage ) {
                 IJ.log("savePreprocessedImage "+savePreprocessedImage +" "+imageToMeasure.getNSlices()+" slices");
-                IJ.saveAsTiff(imageToMeasure, resultsDirectory + "/Images/preprocessed/" + image.getTitle()+spotName+"_quantif_preprocessed.tif");
+                final ImagePlus toSave = BackgroundWriter.snapshot(imageToMeasure);
+                final String path = resultsDirectory + "/Images/preprocessed/" + image.getTitle() + spotName + "_quantif_preprocessed.tif";
+                BackgroundWriter.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!IJ.saveAsTiff(toSave, path)) {
+                            BackgroundWriter.failed("The preprocessed image " + path + " could not be saved");
+                        }
+                    }
+                });
             }
             return true;
         } else return false;
@@ -539,11 +582,16 @@ public class SpotDetector {
         //IJ.log("SpotDetector analysis per region : "+spotName);
         //IJ.log("SpotDetector analysis per region : "+type);
 //        Detection and measurements
-        if (spotByFindMaxima) {
-            findMaximaPerRegion(regionROI, resultsTableFinal, type);
-        }
-        if (spotByThreshold) {
-            findThresholdPerRegion(regionID, regionROI, resultsTableFinal, type,spotsMeasuresTable);
+        StageTimings.push(StageTimings.SPOT_DETECTION);
+        try {
+            if (spotByFindMaxima) {
+                findMaximaPerRegion(regionROI, resultsTableFinal, type);
+            }
+            if (spotByThreshold) {
+                findThresholdPerRegion(regionID, regionROI, resultsTableFinal, type,spotsMeasuresTable);
+            }
+        } finally {
+            StageTimings.pop();
         }
     }
 
@@ -593,7 +641,7 @@ public class SpotDetector {
      * @param type              : image, cell, nucleus or cytoplasm
      */
     private void findThresholdPerRegion(int regionID, Roi regionROI, ResultsTable resultsTableToAdd, String type, ResultsTable spotMeasuresTable) {
-        RoiManager roiManagerFoci = null;
+        RoiCollection roiManagerFoci = null;
         int numberSpot = 0; /*count number of spot detected*/
 //        Detection
         ImageProcessor tmpIP = thresholdIP.getProcessor().duplicate();
@@ -613,13 +661,29 @@ public class SpotDetector {
             roiManagerFoci = detector.analyzeParticles(new ImagePlus("", tmpIP));
             numberSpot = roiManagerFoci.getCount();
 //            --> Saving
-            if (resultsDirectory != null && saveRois && numberSpot > 0) {
-                String extension = (roiManagerFoci.getCount() == 1) ? ".roi" : ".zip";
-                if (roiManagerFoci.save(resultsDirectory + "/ROI/Spot" + spotName + "/thresholding/" + image.getTitle() + "_threshold_" + type + (regionID + 1) + "_ROIs" + extension)) {
-                    IJ.log("The ROIs of the " + type + " " + (regionID + 1) + " of the image " + image.getTitle() + " by threshold method were saved in " + resultsDirectory + "/ROI/Spot" + spotName + "/thresholding/");
-                } else {
-                    IJ.log("The ROIs of the " + type + " " + (regionID + 1) + " of the image " + image.getTitle() + " by threshold method could not be saved in " + resultsDirectory + "/ROI/Spot" + spotName + "/thresholding/");
+            if (resultsDirectory != null && saveRois && numberSpot > 0 && singleSpotArchive) {
+                if (spotArchive == null) spotArchive = new RoiCollection();
+                Roi[] copies = BackgroundWriter.snapshot(roiManagerFoci.getRoisAsArray());
+                for (int s = 0; s < copies.length; s++) {
+                    copies[s].setName(type + (regionID + 1) + "_spot" + (s + 1));
+                    spotArchive.addRoi(copies[s]);
                 }
+            } else if (resultsDirectory != null && saveRois && numberSpot > 0) {
+                String extension = (roiManagerFoci.getCount() == 1) ? ".roi" : ".zip";
+                final RoiCollection toSave = new RoiCollection(BackgroundWriter.snapshot(roiManagerFoci.getRoisAsArray()));
+                final String region = "The ROIs of the " + type + " " + (regionID + 1) + " of the image " + image.getTitle() + " by threshold method";
+                final String directory = resultsDirectory + "/ROI/Spot" + spotName + "/thresholding/";
+                final String path = directory + image.getTitle() + "_threshold_" + type + (regionID + 1) + "_ROIs" + extension;
+                BackgroundWriter.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (toSave.save(path)) {
+                            IJ.log(region + " were saved in " + directory);
+                        } else {
+                            BackgroundWriter.failed(region + " could not be saved in " + directory);
+                        }
+                    }
+                });
             }
         }
 //        Measurement
@@ -656,6 +720,29 @@ public class SpotDetector {
         }
     }
 
+    /**
+     * save the spot ROIs of all the regions in one archive (when {@link #singleSpotArchive}), after the measurements
+     * - the ROIs are named with their region and their index in the region (Cell12_spot3)
+     */
+    public void saveSpotArchive() {
+        if (spotArchive == null) return;
+        final RoiCollection toSave = spotArchive;
+        spotArchive = null;
+        final String directory = resultsDirectory + "/ROI/Spot" + spotName + "/thresholding/";
+        final String path = directory + image.getTitle() + "_threshold_ROIs.zip";
+        final String title = image.getTitle();
+        BackgroundWriter.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (toSave.save(path)) {
+                    IJ.log("The " + toSave.getCount() + " spot ROIs of the image " + title + " by threshold method were saved in " + directory);
+                } else {
+                    BackgroundWriter.failed("The spot ROIs of the image " + title + " by threshold method could not be saved in " + directory);
+                }
+            }
+        });
+    }
+
     /**
      * Detect and measure spots by searching local maxima
      *
@@ -703,10 +790,7 @@ public class SpotDetector {
 //      MACRO : apply custom commands of user
             if (macroText != null) {
                 IJ.log("SpotDetector macro:" + macroText);
-                imageToReturn.show();
-                IJ.selectWindow(imageToReturn.getID());
-                IJ.runMacro("setBatchMode(true);" + macroText + "setBatchMode(false);");
-                temp = WindowManager.getCurrentImage();
+                temp = Detector.runMacro(imageToReturn, "setBatchMode(true);" + macroText + "setBatchMode(false);", StageTimings.PREPROCESSING_MACRO);
                 if(temp!=imageToReturn) {
                     imageToReturn.changes=false;
                     imageToReturn.hide();
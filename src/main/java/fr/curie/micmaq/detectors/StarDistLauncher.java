@@ -5,12 +5,14 @@ import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.Roi;
 import ij.io.FileSaver;
-import ij.plugin.frame.RoiManager;
 import net.imagej.Dataset;
 import net.imagej.DefaultDataset;
 import net.imagej.ImageJ;
 import net.imagej.ImgPlus;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.numeric.RealType;
+import org.scijava.command.CommandModule;
 
 import java.awt.*;
 import java.io.File;
@@ -25,7 +27,6 @@ public class StarDistLauncher {
     double percentileTop=100.0;
     double probThresh=0.5;
     double nmsThresh=0.0;
-    String outputType="Both";
     int nTiles=1;
     int excludeBoundary=2;
     String roiPosition="Automatic";
@@ -37,7 +38,7 @@ public class StarDistLauncher {
     double scale=1.0;
     boolean excludeOnEdges=false;
 
-    RoiManager stardistRoiManager;
+    RoiCollection stardistRoiManager;
 
     private ImagePlus stardistMask;
 
@@ -56,7 +57,7 @@ public class StarDistLauncher {
      * - Configuring model parameters, including normalization, percentile thresholds,
      *   probability and non-maximum suppression thresholds, output type, tiles, and boundary exclusions.
      * - Running the StarDist2D model with these parameters.
-     * - Managing and validating the resulting ROIs (Regions of Interest) using the RoiManager,
+     * - Making the resulting ROIs (Regions of Interest) from the label image output by StarDist and validating them,
      *   including optional rescaling and filtering ROIs based on boundary conditions.
      * - Generating a labeled output mask based on the detected ROIs.
      * - Cleaning up temporary files created during the process.
@@ -98,7 +99,7 @@ public class StarDistLauncher {
             params.put("percentileTop",percentileTop);
             params.put("probThresh",probThresh);
             params.put("nmsThresh",nmsThresh);
-            params.put("outputType",outputType);
+            params.put("outputType","Label Image"); /*the ROIs are made from the label image, not read from the RoiManager*/
             if(modelFile!=null) params.put("modelFile",modelFile);
             params.put("nTiles",nTiles);
             params.put("excludeBoundary",excludeBoundary);
@@ -107,12 +108,12 @@ public class StarDistLauncher {
             params.put("showCsbdeepProgress",showCsbdeepProgress);
             params.put("showProbAndDist",showProbAndDist);
 
-            stardistRoiManager = RoiManager.getRoiManager();
-            stardistRoiManager.reset();
+            CommandModule module = ij.command().run(StarDist2D.class, true, params).get();
 
-            ij.command().run(StarDist2D.class, true, params).get();
-
-            stardistRoiManager = RoiManager.getRoiManager();
+            /*the ROIs of each experiment come from its own label image, the RoiManager is shared by the experiments*/
+            Dataset label = (Dataset) module.getOutput("label");
+            ImagePlus labelImage = wrapLabel(label).duplicate();
+            stardistRoiManager = CellposeLauncher.label2Roi(labelImage, 0, 0, 0);
             System.out.println("nb rois: "+stardistRoiManager.getCount());
             if(scale!=1.0){
                 double iscale=1/scale;
@@ -132,6 +133,15 @@ public class StarDistLauncher {
 
     }
 
+    /**
+     * @param label label image given by StarDist, of any real type
+     * @return image sharing the pixels of the label image
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends RealType<T>> ImagePlus wrapLabel(Dataset label) {
+        return ImageJFunctions.wrap((RandomAccessibleInterval<T>) (RandomAccessibleInterval<?>) label.getImgPlus(), "label");
+    }
+
     /**
      * Validates the regions of interest (ROIs) managed by the stardistRoiManager. If the
      * excludeOnEdges flag is enabled, ROIs that are located on the very edges of the current
@@ -213,14 +223,6 @@ public class StarDistLauncher {
         this.nmsThresh = nmsThresh;
     }
 
-    public String getOutputType() {
-        return outputType;
-    }
-
-    public void setOutputType(String outputType) {
-        this.outputType = outputType;
-    }
-
     public int getnTiles() {
         return nTiles;
     }
@@ -285,7 +287,7 @@ public class StarDistLauncher {
         this.modelFile = modelFile;
     }
 
-    public RoiManager getStardistRoiManager() {
+    public RoiCollection getStardistRoiManager() {
         return stardistRoiManager;
     }
 
@@ -4,9 +4,11 @@ import ch.epfl.biop.wrappers.cellpose.ij2commands.Cellpose;
 import com.intellij.uiDesigner.core.GridConstraints;
 import com.intellij.uiDesigner.core.GridLayoutManager;
 import com.jgoodies.common.collect.ArrayListModel;
+import fr.curie.micmaq.batch.AnalysisRun;
 import fr.curie.micmaq.config.*;
 import fr.curie.micmaq.detectors.CellposeLauncher;
 import fr.curie.micmaq.detectors.Experiment;
+import fr.curie.micmaq.helpers.ExperimentResults;
 import fr.curie.micmaq.helpers.ImageToAnalyze;
 import fr.curie.micmaq.helpers.MeasureCalibration;
 import fr.curie.micmaq.segment.SegmentationParameters;
@@ -84,6 +86,11 @@ public class MicMaq_plugin extends JFrame implements PlugIn {
     boolean resized = false;
     int sizeflag = 0;
 
+    /**
+     * options of the Options menu, kept in the preferences (a macro gives its own)
+     */
+    RunOptions runOptions = RunOptions.fromPreferences();
+
     ArrayList<String> patterns = null;
     String filePattern = "";
     String path_shorten = null;
@@ -270,15 +277,19 @@ public class MicMaq_plugin extends JFrame implements PlugIn {
             @Override
             public void actionPerformed(ActionEvent e) {
                 GenericDialog gd = new GenericDialog("Cellpose tiling parameters");
-                gd.addNumericField("Tile_size", CellposeLauncher.tileSize, 0);
-                gd.addNumericField("Tile_overlap", CellposeLauncher.tileOverlap, 0);
+                gd.addNumericField("Tile_size", runOptions.getTileSize(), 0);
+                gd.addNumericField("Tile_overlap", runOptions.getTileOverlap(), 0);
+                gd.addNumericField("Concurrent_Cellpose_processes", runOptions.getTileProcesses(), 0);
                 gd.showDialog();
 
                 if (!gd.wasCanceled()) {
-                    CellposeLauncher.tileSize = (int) gd.getNextNumber();
-                    CellposeLauncher.tileOverlap = (int) gd.getNextNumber();
+                    int tileSize = (int) gd.getNextNumber();
+                    int tileOverlap = (int) gd.getNextNumber();
+                    runOptions.setTiling(tileSize, tileOverlap, (int) gd.getNextNumber());
+                    runOptions.savePreferences();
 
-                    IJ.log("changed Cellpose tiling to :\ntile size: " + CellposeLauncher.tileSize + "\ntile overlap: " + CellposeLauncher.tileOverlap);
+                    IJ.log("changed Cellpose tiling to :\ntile size: " + runOptions.getTileSize() + "\ntile overlap: " + runOptions.getTileOverlap()
+                            + "\nconcurrent Cellpose processes: " + runOptions.getTileProcesses());
                 }
 
             }
@@ -314,8 +325,80 @@ public class MicMaq_plugin extends JFrame implements PlugIn {
             }
         });
 
+        JMenuItem itemE3 = new JMenuItem("set parallel processing");
+        itemE3.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                GenericDialog gd = new GenericDialog("Parallel processing");
+                gd.addNumericField("Number_of_workers", runOptions.getNbWorkers(), 0);
+                gd.addMessage("number of fields of view analysed at the same time (available processors: " + Runtime.getRuntime().availableProcessors() + ")");
+                gd.addNumericField("Read_ahead_memory (MB)", runOptions.getPrefetchMemoryMB(), 0);
+                gd.addMessage("images of the next fields of view read during the analysis (0 to disable, max memory: " + IJ.maxMemory() / (1024 * 1024) + "MB)");
+                gd.addNumericField("Number_of_readers", runOptions.getNbReaders(), 0);
+                gd.addMessage("number of files opened at the same time when the directory is parsed");
+                gd.addCheckbox("Project_stacks_while_reading", runOptions.isStreamProjections());
+                gd.addMessage("the stacks only used through a projection are never entirely in memory");
+                gd.showDialog();
+
+                if (!gd.wasCanceled()) {
+                    runOptions.setNbWorkers((int) gd.getNextNumber());
+                    runOptions.setPrefetchMemoryMB((int) gd.getNextNumber());
+                    runOptions.setNbReaders((int) gd.getNextNumber());
+                    runOptions.setStreamProjections(gd.getNextBoolean());
+                    runOptions.savePreferences();
+                    IJ.log("changed number of workers to : " + runOptions.getNbWorkers() + "\nread ahead memory: " + runOptions.getPrefetchMemoryMB() + "MB"
+                            + "\nnumber of readers: " + runOptions.getNbReaders() + "\nprojection while reading: " + runOptions.isStreamProjections());
+                }
+            }
+        });
+
+        JCheckBoxMenuItem itemE4 = new JCheckBoxMenuItem("resume interrupted analysis", runOptions.isResumeRun());
+        itemE4.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                runOptions.setResumeRun(itemE4.isSelected());
+                runOptions.savePreferences();
+                IJ.log("resume interrupted analysis : " + runOptions.isResumeRun());
+            }
+        });
+
+        JCheckBoxMenuItem itemE5 = new JCheckBoxMenuItem("compress label masks", runOptions.isCompressMasks());
+        itemE5.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                runOptions.setCompressMasks(itemE5.isSelected());
+                runOptions.savePreferences();
+                IJ.log("label masks compressed with 32 bits labels : " + runOptions.isCompressMasks());
+            }
+        });
+
+        JCheckBoxMenuItem itemE6 = new JCheckBoxMenuItem("one spot ROI archive per image", runOptions.isSingleSpotArchive());
+        itemE6.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                runOptions.setSingleSpotArchive(itemE6.isSelected());
+                runOptions.savePreferences();
+                IJ.log("spot ROIs of all regions saved in one archive : " + runOptions.isSingleSpotArchive());
+            }
+        });
+
+        JCheckBoxMenuItem itemE7 = new JCheckBoxMenuItem("keep Cellpose running during analysis", runOptions.isCellposeWorkers());
+        itemE7.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                runOptions.setCellposeWorkers(itemE7.isSelected());
+                runOptions.savePreferences();
+                IJ.log("Cellpose model loaded once per analysis : " + runOptions.isCellposeWorkers());
+            }
+        });
+
         menuEdit.add(itemE1);
         menuEdit.add(itemE2);
+        menuEdit.add(itemE3);
+        menuEdit.add(itemE4);
+        menuEdit.add(itemE5);
+        menuEdit.add(itemE6);
+        menuEdit.add(itemE7);
         bar.add(menuEdit);
 
 
@@ -645,6 +728,7 @@ public class MicMaq_plugin extends JFrame implements PlugIn {
         gd.setOKLabel("wait ! ");
         gd.addMessage(" parsing files, please be patient ");
         gd.showDialog();
+        provider.setNbReaders(runOptions.getNbReaders());
         provider.parseDirectory(filePattern);
         gd.dispose();
     }
@@ -656,6 +740,7 @@ public class MicMaq_plugin extends JFrame implements PlugIn {
         gd.setOKLabel("wait ! ");
         gd.addMessage(" parsing files, please be patient ");
         gd.showDialog();
+        provider.setNbReaders(runOptions.getNbReaders());
         provider.reorganiseFiles(filePatternTextField.getText(), patterns);
         gd.dispose();
 
@@ -838,6 +923,7 @@ public class MicMaq_plugin extends JFrame implements PlugIn {
                     imp.show();
                 }
             }
+            imgs.releaseChannels();
         }
     }
 
@@ -870,12 +956,13 @@ public class MicMaq_plugin extends JFrame implements PlugIn {
             WindowManager.setWindow(WindowManager.getWindow("Log"));
 
             exp.run();
+            imgs.releaseChannels();
             if (cellResults != null) cellResults.show("cells/spots");
             if (nucleusResults != null) nucleusResults.show("nuclei correspondence");
             progress.dispose();
             new WindowOrganizer().run("tile");
             WindowManager.getWindow("cells/spots").toFront();
-            RoiManager.getInstance().toFront();
+            RoiManager.getRoiManager().toFront();
         }
     }
 
@@ -905,10 +992,11 @@ public class MicMaq_plugin extends JFrame implements PlugIn {
                 }
             }
         }
+        imgs.releaseChannels();
         progress.dispose();
         new WindowOrganizer().run("tile");
         //WindowManager.getWindow("Log").toFront();
-        RoiManager.getInstance().toFront();
+        RoiManager.getRoiManager().toFront();
     }
 
     public void runAllExperiments() {
@@ -920,71 +1008,70 @@ public class MicMaq_plugin extends JFrame implements PlugIn {
         Instant dateBegin = Instant.now();
         if (cellResults != null) cellResults = null;
         if (nucleusResults != null) nucleusResults = null;
+        summary = null;
         boolean[] projCheck = checkParameters();
         if (projCheck[2]) return;
         ProgressMonitor progress = new ProgressMonitor(this, "computing for all images",
                 "", -1, provider.getNbFielOfView() * 100);
         progress.setMillisToDecideToPopup(1);
         progress.setMillisToPopup(1);
-        int countNbExp = 0;
-        for (int index = 0; index < provider.getNbFielOfView(); index++) {
-            if (provider.getFieldOfView(index).isUsed()) countNbExp++;
+        int nbSpotChannels = (spotPanels != null) ? spotPanels.size() : 0;
+        /*the settings are read from the panels on this thread, the workers do not access the Swing components*/
+        AnalysisRun analysisRun = new AnalysisRun(provider, workingDirectory, resultDirectory, runOptions,
+                fov -> createSettings(fov, projCheck), nbSpotChannels);
+        for (int s = 0; s < nbSpotChannels; s++) {
+            if (spotPanels.get(s) != null)
+                analysisRun.setSpotChannel(s, spotPanels.get(s).getMeasure().isSpotThreshold() ? spotFilePrefix(s) : null);
         }
-        for (int index = 0; index < provider.getNbFielOfView(); index++) {
-
-            IJ.log("#############################");
-            IJ.log("##      run experiment " + IJ.pad(index + 1, 3) + "           ##");
-            IJ.log("#############################");
-            IJ.log("selected for computation : " + provider.getFieldOfView(index).isUsed());
-            IJ.showStatus("running experiment " + index + " (" + provider.getNbFielOfView() + ")");
-            if (provider.getFieldOfView(index).isUsed()) {
-                String msg = "working on " + (index + 1) + "/" + provider.getNbFielOfView();
+        analysisRun.setSummary(quantifPanel.getSummary(), quantifPanel.getCountOnlyPositiveCells());
+        analysisRun.setListener(new AnalysisRun.Listener() {
+            @Override
+            public void merging(int index, int nbFields) {
+                IJ.showStatus("running experiment " + index + " (" + nbFields + ")");
+                String msg = "working on " + (index + 1) + "/" + nbFields;
                 if (index > 0) {
                     Instant dateTmp = Instant.now();
                     Duration duration = Duration.between(dateBegin, dateTmp);
-                    //IJ.log("duration computation:"+duration);
                     duration = duration.dividedBy(index); // time of 1 step
-                    //IJ.log("duration per step="+duration);
-                    duration = duration.multipliedBy(provider.getNbFielOfView() - index);//time of remaining steps to compute
-                    //IJ.log("duration estimated "+duration);
+                    duration = duration.multipliedBy(nbFields - index);//time of remaining steps to compute
                     String remainString = formatDuration(duration);
                     msg += (", " + remainString + " remaining");
                 }
                 progress.setNote(msg);
                 progress.setProgress(index * 100);
-                Experiment exp = createExperiment(index, false, projCheck);
-                exp.run();
-                if (progress.isCanceled()) {
-                    exp.interruptProcess();
-                    IJ.log("process canceled");
-                    return;
-                }
+            }
+
+            @Override
+            public void merged(int index) {
+                ExperimentResults allResults = analysisRun.getResults();
+                cellResults = allResults.getCellResults();
+                nucleusResults = allResults.getNucleusResults();
+                spotsInNuclei = allResults.getSpotsInNuclei();
+                spotsInCells = allResults.getSpotsInCells();
+                spotsInCyto = allResults.getSpotsInCyto();
+                showResults(false);
                 progress.setProgress((index + 1) * 100);
                 IJ.showProgress(index + 1, provider.getNbFielOfView());
-            } else {
-                IJ.log("User removed this field of view from analysis\nnothing done!");
-            }
-            /*if (cellResults != null) {
-                cellResults.save(resultDirectory + "Results.xls");
-            }
-            if (nucleusResults != null) {
-                nucleusResults.save(resultDirectory + "Cells-Nuclei-Association.xls");
-            }
-            if (spotPanels != null) {
-                for (int s = 0; s < spotPanels.size(); s++) {
-                    if (spotPanels.get(s) != null) {
-                        if (spotsInNuclei != null && spotsInNuclei[s] != null && spotPanels.get(s).getMeasure().isSpotThreshold())
-                            spotsInNuclei[s].save(resultDirectory + "C" + spotPanels.get(s).getChannel() + "_" + spotPanels.get(s).proteinName + "_SpotsInNuclei.xls");
-                        if (spotsInCells != null && spotsInCells[s] != null && spotPanels.get(s).getMeasure().isSpotThreshold())
-                            spotsInCells[s].save(resultDirectory + "C" + spotPanels.get(s).getChannel() + "_" + spotPanels.get(s).proteinName + "_SpotsInCells.xls");
-                        if (spotsInCyto != null && spotsInCyto[s] != null && spotPanels.get(s).getMeasure().isSpotThreshold())
-                            spotsInCyto[s].save(resultDirectory + "C" + spotPanels.get(s).getChannel() + "_" + spotPanels.get(s).proteinName + "_SpotsInCytoplasms.xls");
-                    }
-                }
-            }*/
-            saveResults(false);
+            }
+
+            @Override
+            public boolean isCanceled() {
+                return progress.isCanceled();
+            }
+        });
+        analysisRun.start();
+        try {
+            analysisRun.analyse(FieldOfView::isUsed, true);
+        } finally {
+            analysisRun.close();
         }
-        saveResults(true);
+        if (analysisRun.isCanceled()) {
+            progress.close();
+            return;
+        }
+        summary = analysisRun.getSummary();
+        showResults(true); /*the files are already complete*/
+        if (analysisRun.getLastExperiment() != null) analysisRun.getLastExperiment().showRois();
 
         Instant dateEnd = Instant.now();
         long duration = Duration.between(dateBegin, dateEnd).toMillis();
@@ -993,11 +1080,53 @@ public class MicMaq_plugin extends JFrame implements PlugIn {
     }
 
     public Experiment createExperiment(int index, boolean preview, boolean[] checkproj) {
+        int nbSpotChannels = (spotPanels != null) ? spotPanels.size() : 0;
+        ExperimentResults results = new ExperimentResults(cellResults, nucleusResults, spotsInNuclei, spotsInCells, spotsInCyto, nbSpotChannels);
+        Experiment exp = createExperiment(index, preview, checkproj, results);
+        if (exp != null && quantifPanel.getSummary()) {
+            results.setSummary(new ResultsTable());
+            exp.setSummaryTable(results.getSummary(), quantifPanel.getCountOnlyPositiveCells());
+        }
+        cellResults = results.getCellResults();
+        nucleusResults = results.getNucleusResults();
+        if (results.getSummary() != null) summary = results.getSummary();
+        spotsInNuclei = results.getSpotsInNuclei();
+        spotsInCells = results.getSpotsInCells();
+        spotsInCyto = results.getSpotsInCyto();
+        return exp;
+    }
+
+    public Experiment createExperiment(int index, boolean preview, boolean[] checkproj, ExperimentResults results) {
+        ExperimentSettings settings = createSettings(provider.getFieldOfView(index), checkproj);
+        if (settings == null) return null;
+        return createExperiment(settings, preview, results);
+    }
+
+    /**
+     * create the experiment of settings already read from the panels (the Swing components are not accessed)
+     * @param settings settings of the field of view
+     * @param preview true for a preview
+     * @param results tables filled by the experiment
+     * @return the experiment
+     */
+    private Experiment createExperiment(ExperimentSettings settings, boolean preview, ExperimentResults results) {
         IJ.log("create experiment");
-        FieldOfView imgs = provider.getFieldOfView(index);
+        boolean[] spotChannels = new boolean[(spotPanels != null) ? spotPanels.size() : 0];
+        for (int s = 0; s < spotChannels.length; s++) spotChannels[s] = spotPanels.get(s) != null;
+        Experiment exp = AnalysisRun.createExperiment(workingDirectory, settings, preview, results, spotChannels);
+        IJ.log("create experiment finished");
+        return exp;
+    }
+
+    /**
+     * settings of the experiment of a field of view from the panels, the images are not read
+     * @param imgs field of view
+     * @param checkproj projection choices from {@link #checkParameters()}
+     * @return settings or null if Cellpose is not configured
+     */
+    public ExperimentSettings createSettings(FieldOfView imgs, boolean[] checkproj) {
         ExperimentSettings settings = new ExperimentSettings(imgs);
-        boolean nucleus = false;
-        boolean cell = false;
+        settings.setRunOptions(runOptions);
         for (int i = 0; i < channelPanels.size(); i++) {
             ChannelPanel cp = channelPanels.get(i);
             if (cp.isUsed() && cp.isNuclei()) {
@@ -1026,7 +1155,6 @@ public class MicMaq_plugin extends JFrame implements PlugIn {
                         System.out.println("do nothing (should be in macro)!");
                     }
                 }
-                nucleus = true;
             }
             if (cp.isUsed() && cp.isCell()) {
                 System.out.println("cell channel: " + (i + 1));
@@ -1053,7 +1181,6 @@ public class MicMaq_plugin extends JFrame implements PlugIn {
                         IJ.log("do nothing (should be in macro)!");
                     }
                 }
-                cell = true;
             }
             if (cp.isUsed()) {
                 System.out.println("quantification channel: " + (i + 1));
@@ -1107,80 +1234,35 @@ public class MicMaq_plugin extends JFrame implements PlugIn {
 
         settings.setCalibration((MeasureCalibration) calibrationCombo.getSelectedItem());
         IJ.log("using calibration " + calibrationCombo.getSelectedItem());
-        if (cellResults == null) cellResults = new ResultsTable();
-        if (nucleus && cell && nucleusResults == null) nucleusResults = new ResultsTable();
-        Experiment exp = settings.createExperiment(workingDirectory, imgs, cellResults, nucleusResults, preview);
-        if (quantifPanel.getSummary()) {
-            summary = new ResultsTable();
-            boolean onlyPositive4Spots = quantifPanel.getCountOnlyPositiveCells();
-            exp.setSummaryTable(summary, onlyPositive4Spots);
-        }
-        if (spotPanels != null) {
-            IJ.log("there are spots");
-            for (int s = 0; s < spotPanels.size(); s++) {
-                if (spotPanels.get(s) != null) {
-                    IJ.log("spots for channel " + (s + 1));
-                    if (spotsInNuclei == null) spotsInNuclei = new ResultsTable[spotPanels.size()];
-                    if (spotsInCells == null) spotsInCells = new ResultsTable[spotPanels.size()];
-                    if (spotsInCyto == null) spotsInCyto = new ResultsTable[spotPanels.size()];
-                    if (nucleus && spotsInNuclei[s] == null) {
-                        IJ.log("create result table for spots in nuclei");
-                        spotsInNuclei[s] = new ResultsTable();
-                    }
-                    if (cell && spotsInCells[s] == null) {
-                        IJ.log("create result table for spots in cells");
-                        spotsInCells[s] = new ResultsTable();
-                    }
-                    if (nucleus && cell && spotsInCyto[s] == null) {
-                        IJ.log("create result table for spots in cytoplasms");
-                        spotsInCyto[s] = new ResultsTable();
-                    }
-                    IJ.log("set tables in experiments");
-                    exp.setSpotsTables(s, spotsInNuclei[s], spotsInCells[s], spotsInCyto[s]);
-                }
-            }
-        }
-        IJ.log("create experiment finished");
-        return exp;
+        return settings;
     }
 
-    public void saveResults(boolean deleteLastEmptyRow) {
+    /**
+     * show the main results tables
+     * @param deleteLastEmptyRow true at the end of the analysis to remove the empty row of the next measure
+     */
+    private void showResults(boolean deleteLastEmptyRow) {
         if (cellResults != null) {
             if (deleteLastEmptyRow) cellResults.deleteRow(cellResults.size() - 1);
             cellResults.show("Results");
-            cellResults.save(resultDirectory + "Results.xls");
         }
         if (nucleusResults != null) {
             if (deleteLastEmptyRow) nucleusResults.deleteRow(nucleusResults.size() - 1);
             nucleusResults.show("Cells-Nuclei Association");
-            nucleusResults.save(resultDirectory + "Cells-Nuclei-Association.xls");
-        }
-        if (spotPanels != null) {
-            for (int s = 0; s < spotPanels.size(); s++) {
-                if (spotPanels.get(s) != null) {
-                    if (spotsInNuclei != null && spotsInNuclei[s] != null && spotPanels.get(s).getMeasure().isSpotThreshold())
-                        spotsInNuclei[s].save(resultDirectory + "C" + spotPanels.get(s).getChannel() + "_" + spotPanels.get(s).proteinName + "_SpotsInNuclei.xls");
-                    if (spotsInCells != null && spotsInCells[s] != null && spotPanels.get(s).getMeasure().isSpotThreshold())
-                        spotsInCells[s].save(resultDirectory + "C" + spotPanels.get(s).getChannel() + "_" + spotPanels.get(s).proteinName + "_SpotsInCells.xls");
-                    if (spotsInCyto != null && spotsInCyto[s] != null && spotPanels.get(s).getMeasure().isSpotThreshold())
-                        spotsInCyto[s].save(resultDirectory + "C" + spotPanels.get(s).getChannel() + "_" + spotPanels.get(s).proteinName + "_SpotsInCytoplasms.xls");
-
-                    if (!spotPanels.get(s).getMeasure().isSpotThreshold()) {
-                        spotsInNuclei = null;
-                        spotsInCells = null;
-                        spotsInCyto = null;
-                    }
-                }
-            }
         }
         if (summary != null) {
             //summary.deleteRow(summary.size() - 1);
             summary.show("summary");
-            summary.save(resultDirectory + "summary.xls");
-
         }
     }
 
+    /**
+     * @return prefix of the spots results files of a spot channel (C2_protein)
+     */
+    private String spotFilePrefix(int s) {
+        return "C" + spotPanels.get(s).getChannel() + "_" + spotPanels.get(s).proteinName;
+    }
+
     private boolean[] checkParameters() {
         boolean warningN = false;
         boolean warningC = false;
@@ -1249,10 +1331,7 @@ public class MicMaq_plugin extends JFrame implements PlugIn {
         }
         Recorder.recordOption("calibration", calibrationCombo.getItemAt(calibrationCombo.getSelectedIndex()).toString());
         Recorder.recordOption("parameterpath", tmpdir + "/Results/Parameters.txt");
-        if (CellposeLauncher.tileSize > 0) {
-            Recorder.recordOption("tileSize", "" + CellposeLauncher.tileSize);
-            Recorder.recordOption("tileOverlap", "" + CellposeLauncher.tileOverlap);
-        }
+        runOptions.record();
         Recorder.saveCommand();
     }
 
@@ -1278,19 +1357,14 @@ public class MicMaq_plugin extends JFrame implements PlugIn {
         String parameterFilePath = Macro.getValue(options, "parameterpath", "");
         IJ.log("Parameter file: " + parameterFilePath);
 
+        //tiling, parallel processing... (before parsing the directory, which uses the readers)
+        runOptions = RunOptions.parse(options);
+
         updateDirectory(workingDirectory, filePattern);
 
         loadParameterFile(parameterFilePath, false);
         checkParameters();
 
-        //tiling?
-        String tileSize = Macro.getValue(options, "tileSize", null);
-        if (tileSize != null) {
-            CellposeLauncher.tileSize = Integer.parseInt(tileSize);
-            String tileOverlap = Macro.getValue(options, "tileOverlap", null);
-            CellposeLauncher.tileOverlap = Integer.parseInt(tileOverlap);
-        }
-
 
         createParametersFile();
         runAllExperiments();
@@ -1333,8 +1407,8 @@ public class MicMaq_plugin extends JFrame implements PlugIn {
 
             bufferedWriter.append("\n\nCALIBRATION: " + calibrationCombo.getItemAt(calibrationCombo.getSelectedIndex()).toString());
 
-            if (CellposeLauncher.tileSize >= 0)
-                bufferedWriter.append("\n\nCellpose tiling: size=" + CellposeLauncher.tileSize + "\t overlap=" + CellposeLauncher.tileOverlap);
+            if (runOptions.getTileSize() >= 0)
+                bufferedWriter.append("\n\nCellpose tiling: size=" + runOptions.getTileSize() + "\t overlap=" + runOptions.getTileOverlap());
 
             for (int i = 0; i < channelPanels.size(); i++) {
                 ChannelPanel cp = channelPanels.get(i);
@@ -0,0 +1,177 @@
+package fr.curie.micmaq.helpers;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.Roi;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writing of masks, ROIs and preprocessed images off the analysis threads
+ * - the run starts the writer ({@link #start(int, int)}) and waits for the files to be written ({@link #finish()})
+ * - the writes are queued with the images or ROIs they write, which must not be modified afterwards
+ *   ({@link #snapshot(ImagePlus)} and {@link #snapshot(Roi[])} give copies owned by the writer)
+ * - the queue is bounded: when it is full, or when the writer is already finishing, the analysis thread writes the
+ *   file itself
+ * - without writer started (preview), the files are written immediately
+ * - a write that fails reports it with {@link #failed(String)}, the failures are counted at the end of the run
+ * - the writes are counted by the timings of the field of view submitting them, with their time in its saving stage
+ *   (see {@link StageTimings}): the field of view can be marked done once its files exist
+ * - the time spent writing is also logged for the whole run at the end of the run
+ */
+public class BackgroundWriter {
+    private static BackgroundWriter current;
+    private static final ThreadLocal<BackgroundWriter> writing = new ThreadLocal<>();
+    private static final ThreadLocal<StageTimings> writingField = new ThreadLocal<>();
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger written = new AtomicInteger();
+    private final AtomicLong writeNanos = new AtomicLong();
+
+    private BackgroundWriter(int nbThreads, int capacity) {
+        executor = new ThreadPoolExecutor(nbThreads, nbThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(capacity), new ThreadFactory() {
+            final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MIC-MAQ writer " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                /*queue full or writer shut down by finish(): written by the calling thread, never dropped*/
+                r.run();
+            }
+        });
+    }
+
+    /**
+     * start writing in background, the files of a previous writer not finished are written first
+     * @param nbThreads number of files written at the same time
+     * @param capacity maximum number of files waiting to be written
+     */
+    public static void start(int nbThreads, int capacity) {
+        finish();
+        synchronized (BackgroundWriter.class) {
+            current = new BackgroundWriter(Math.max(1, nbThreads), Math.max(1, capacity));
+        }
+    }
+
+    /**
+     * wait for all the files to be written and stop the writer
+     */
+    public static void finish() {
+        BackgroundWriter writer;
+        synchronized (BackgroundWriter.class) {
+            writer = current;
+            current = null;
+        }
+        if (writer == null) return;
+        writer.executor.shutdown();
+        try {
+            while (!writer.executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                IJ.showStatus("writing files: " + (writer.executor.getQueue().size() + writer.executor.getActiveCount()) + " remaining");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.written.get() > 0) IJ.log(writer.written.get() + " file(s) saved by the background writer, " + writer.writeNanos.get() / 1000000 + " ms spent writing");
+        if (writer.failed.get() > 0) IJ.log(writer.failed.get() + " file(s) could not be written");
+    }
+
+    /**
+     * write a file in background, or now if no writer is started
+     * @param write writing of the file, using only data owned by the task
+     */
+    public static void submit(final Runnable write) {
+        final BackgroundWriter writer;
+        synchronized (BackgroundWriter.class) {
+            writer = current;
+        }
+        if (writer == null) {
+            StageTimings.push(StageTimings.SAVING);
+            try {
+                write.run();
+            } finally {
+                StageTimings.pop();
+            }
+            return;
+        }
+        final StageTimings field = StageTimings.current();
+        if (field != null) field.writeSubmitted();
+        writer.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writing.set(writer);
+                if (field != null) writingField.set(field);
+                /*written by the analysis thread when the queue is full: a stage pausing the running one*/
+                boolean inline = field != null && StageTimings.current() == field;
+                if (inline) StageTimings.push(StageTimings.SAVING);
+                long begin = System.nanoTime();
+                try {
+                    write.run();
+                } catch (RuntimeException e) {
+                    writer.failed.incrementAndGet();
+                    if (field != null) field.writeFailed();
+                    e.printStackTrace();
+                } finally {
+                    long elapsed = System.nanoTime() - begin;
+                    writing.remove();
+                    writingField.remove();
+                    if (inline) StageTimings.pop();
+                    else if (field != null) field.add(StageTimings.SAVING, elapsed);
+                    writer.writeNanos.addAndGet(elapsed);
+                    writer.written.incrementAndGet();
+                    if (field != null) field.writeDone();
+                }
+            }
+        });
+    }
+
+    /**
+     * report a file that could not be written, to call from the writing task
+     * @param message message logged
+     */
+    public static void failed(String message) {
+        IJ.log(message);
+        BackgroundWriter writer = writing.get();
+        if (writer != null) writer.failed.incrementAndGet();
+        StageTimings field = writingField.get();
+        if (field != null) field.writeFailed();
+    }
+
+    /**
+     * image to write: a new image sharing the pixels, the image given must not be modified afterwards
+     * (the title changed by the saving is the one of the snapshot)
+     */
+    public static ImagePlus snapshot(ImagePlus imp) {
+        ImagePlus result = new ImagePlus(imp.getTitle(), imp.getStack());
+        result.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+        if (imp.isHyperStack()) result.setOpenAsHyperStack(true);
+        result.setCalibration(imp.getCalibration());
+        result.getProcessor().setColorModel(imp.getProcessor().getColorModel());
+        result.getProcessor().setMinAndMax(imp.getDisplayRangeMin(), imp.getDisplayRangeMax());
+        return result;
+    }
+
+    /**
+     * ROIs to write: copies, so that the ROIs given can be renamed or modified afterwards
+     */
+    public static Roi[] snapshot(Roi[] rois) {
+        Roi[] result = new Roi[rois.length];
+        for (int i = 0; i < rois.length; i++) {
+            if (rois[i] != null) result[i] = (Roi) rois[i].clone();
+        }
+        return result;
+    }
+}
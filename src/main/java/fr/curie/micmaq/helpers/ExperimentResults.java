@@ -0,0 +1,199 @@
+package fr.curie.micmaq.helpers;
+
+import ij.IJ;
+import ij.measure.ResultsTable;
+
+/**
+ * Results tables filled by the analysis of a field of view
+ * - each field of view running in parallel gets its own instance
+ * - the instances are then appended, in field of view order, to the instance holding the tables of the whole batch
+ */
+public class ExperimentResults {
+    private ResultsTable cellResults;
+    private ResultsTable nucleusResults;
+    private ResultsTable summary;
+
+    private ResultsTable[] spotsInNuclei;
+    private ResultsTable[] spotsInCells;
+    private ResultsTable[] spotsInCyto;
+    private final int nbSpotChannels;
+    private StageTimings timings;
+
+    /**
+     * empty tables
+     * @param nbSpotChannels number of channels that can have spots tables
+     */
+    public ExperimentResults(int nbSpotChannels) {
+        this.nbSpotChannels = nbSpotChannels;
+    }
+
+    /**
+     * continue filling already existing tables (null if not created yet)
+     * @param cellResults measures in cell/cytoplasm or nuclei if no cell
+     * @param nucleusResults measures in nuclei if cell
+     * @param spotsInNuclei spots tables in nuclei per channel
+     * @param spotsInCells spots tables in cells per channel
+     * @param spotsInCyto spots tables in cytoplasm per channel
+     * @param nbSpotChannels number of channels that can have spots tables
+     */
+    public ExperimentResults(ResultsTable cellResults, ResultsTable nucleusResults, ResultsTable[] spotsInNuclei, ResultsTable[] spotsInCells, ResultsTable[] spotsInCyto, int nbSpotChannels) {
+        this.cellResults = cellResults;
+        this.nucleusResults = nucleusResults;
+        this.spotsInNuclei = spotsInNuclei;
+        this.spotsInCells = spotsInCells;
+        this.spotsInCyto = spotsInCyto;
+        this.nbSpotChannels = nbSpotChannels;
+    }
+
+    /**
+     * create the main tables if needed
+     * @param nucleus true if nuclei are segmented
+     * @param cell true if cells are segmented
+     */
+    public void prepareTables(boolean nucleus, boolean cell) {
+        if (cellResults == null) cellResults = new ResultsTable();
+        if (nucleus && cell && nucleusResults == null) nucleusResults = new ResultsTable();
+    }
+
+    /**
+     * create the spots tables of a channel if needed
+     * @param index index of spot channel
+     * @param nucleus true if nuclei are segmented
+     * @param cell true if cells are segmented
+     */
+    public void prepareSpotTables(int index, boolean nucleus, boolean cell) {
+        if (spotsInNuclei == null) spotsInNuclei = new ResultsTable[nbSpotChannels];
+        if (spotsInCells == null) spotsInCells = new ResultsTable[nbSpotChannels];
+        if (spotsInCyto == null) spotsInCyto = new ResultsTable[nbSpotChannels];
+        if (nucleus && spotsInNuclei[index] == null) {
+            IJ.log("create result table for spots in nuclei");
+            spotsInNuclei[index] = new ResultsTable();
+        }
+        if (cell && spotsInCells[index] == null) {
+            IJ.log("create result table for spots in cells");
+            spotsInCells[index] = new ResultsTable();
+        }
+        if (nucleus && cell && spotsInCyto[index] == null) {
+            IJ.log("create result table for spots in cytoplasms");
+            spotsInCyto[index] = new ResultsTable();
+        }
+    }
+
+    public void setSummary(ResultsTable summary) {
+        this.summary = summary;
+    }
+
+    public ResultsTable getCellResults() {
+        return cellResults;
+    }
+
+    public ResultsTable getNucleusResults() {
+        return nucleusResults;
+    }
+
+    public ResultsTable getSummary() {
+        return summary;
+    }
+
+    public ResultsTable[] getSpotsInNuclei() {
+        return spotsInNuclei;
+    }
+
+    public ResultsTable[] getSpotsInCells() {
+        return spotsInCells;
+    }
+
+    public ResultsTable[] getSpotsInCyto() {
+        return spotsInCyto;
+    }
+
+    public int getNbSpotChannels() {
+        return nbSpotChannels;
+    }
+
+    /**
+     * @return time spent in each stage of the analysis, null for the tables of a previous run
+     */
+    public StageTimings getTimings() {
+        return timings;
+    }
+
+    public void setTimings(StageTimings timings) {
+        this.timings = timings;
+    }
+
+    /**
+     * append the rows of the tables of a field of view at the end of these tables
+     * the measure tables keep their empty last row so that the final tables are the same as when filled sequentially
+     * @param fieldResults tables of the field of view
+     */
+    public void append(ExperimentResults fieldResults) {
+        if (fieldResults.cellResults != null) {
+            if (cellResults == null) cellResults = new ResultsTable();
+            appendRows(fieldResults.cellResults, cellResults, true);
+        }
+        if (fieldResults.nucleusResults != null) {
+            if (nucleusResults == null) nucleusResults = new ResultsTable();
+            appendRows(fieldResults.nucleusResults, nucleusResults, true);
+        }
+        spotsInNuclei = appendSpotTables(fieldResults.spotsInNuclei, spotsInNuclei);
+        spotsInCells = appendSpotTables(fieldResults.spotsInCells, spotsInCells);
+        spotsInCyto = appendSpotTables(fieldResults.spotsInCyto, spotsInCyto);
+    }
+
+    private ResultsTable[] appendSpotTables(ResultsTable[] source, ResultsTable[] destination) {
+        if (source == null) return destination;
+        if (destination == null) destination = new ResultsTable[nbSpotChannels];
+        for (int s = 0; s < source.length; s++) {
+            if (source[s] != null) {
+                if (destination[s] == null) destination[s] = new ResultsTable();
+                appendRows(source[s], destination[s], true);
+            }
+        }
+        return destination;
+    }
+
+    /**
+     * summary of the measures per experiment name (first column of the tables)
+     * - computed once on the tables of all fields of view, so the fields of view of a same experiment are aggregated
+     * @param nucleusResults measures in nuclei if cell, null otherwise
+     * @param cellResults measures in cell/cytoplasm or nuclei if no cell
+     * @param onlyPositive4Spots true to count the cells positive for spots
+     * @return the summary table
+     */
+    public static ResultsTable summarize(ResultsTable nucleusResults, ResultsTable cellResults, boolean onlyPositive4Spots) {
+        ResultsTable summaryTable = new ResultsTable();
+        if (nucleusResults != null && cellResults != null)
+            SummarizeResults.summarize(summaryTable, nucleusResults, 0, cellResults, 0, onlyPositive4Spots);
+        else if (nucleusResults != null) SummarizeResults.summarize(summaryTable, nucleusResults, 0);
+        else if (cellResults != null) SummarizeResults.summarize(summaryTable, cellResults, 0);
+        return summaryTable;
+    }
+
+    /**
+     * copy all rows of a table at the end of another one, string and numeric values are kept as is
+     * @param source table to copy
+     * @param destination table to fill
+     * @param trailingEmptyRow true if the tables are filled by adding values then incrementing the counter (last row is empty)
+     *                         false if the counter is incremented before adding values
+     */
+    public static void appendRows(ResultsTable source, ResultsTable destination, boolean trailingEmptyRow) {
+        int nbRows = trailingEmptyRow ? source.size() - 1 : source.size();
+        String[] headings = source.getHeadings();
+        for (int row = 0; row < nbRows; row++) {
+            if (!trailingEmptyRow) destination.incrementCounter();
+            for (String heading : headings) {
+                int col = source.getColumnIndex(heading);
+                if (col < 0) continue;
+                double value = source.getValueAsDouble(col, row);
+                String stringValue = Double.isNaN(value) ? source.getStringValue(col, row) : null;
+                if (stringValue != null && !stringValue.equals("NaN")) {
+                    destination.addValue(heading, stringValue);
+                } else {
+                    destination.addValue(heading, value);
+                }
+            }
+            if (trailingEmptyRow) destination.incrementCounter();
+        }
+    }
+}
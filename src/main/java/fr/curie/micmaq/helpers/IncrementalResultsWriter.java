@@ -0,0 +1,83 @@
+package fr.curie.micmaq.helpers;
+
+import ij.IJ;
+import ij.measure.ResultsTable;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tab delimited results file (same format as {@link ResultsTable#save(String)} without row numbers) filled field of view after field of view
+ * - the header is written with the first rows
+ * - then only the new rows are appended to the file
+ * - the whole file is written again only if new rows bring a column unknown by the header
+ */
+public class IncrementalResultsWriter {
+    private final String path;
+    private ArrayList<String> headings;
+
+    /**
+     * @param path path of the file (replaced by the first rows written)
+     */
+    public IncrementalResultsWriter(String path) {
+        this.path = path;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * append the rows of a field of view
+     * @param fieldRows table with only the rows of the field of view
+     * @param allRows table with all the rows (field of view included), written if the header has to change
+     * @param trailingEmptyRow true if the last row of the tables is the empty row of the next measure
+     */
+    public void append(ResultsTable fieldRows, ResultsTable allRows, boolean trailingEmptyRow) {
+        if (fieldRows == null) return;
+        try {
+            if (headings == null || !headings.containsAll(Arrays.asList(fieldRows.getHeadings()))) {
+                rewrite(allRows, trailingEmptyRow);
+                return;
+            }
+            try (PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(path, true)))) {
+                writeRows(pw, fieldRows, trailingEmptyRow);
+            }
+        } catch (IOException e) {
+            IJ.log("the results of the field of view could not be written in " + path + ": " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * write the header then all the rows
+     * @param allRows table to write
+     * @param trailingEmptyRow true if the last row of the table is the empty row of the next measure
+     * @throws IOException if the file cannot be written
+     */
+    public void rewrite(ResultsTable allRows, boolean trailingEmptyRow) throws IOException {
+        headings = new ArrayList<>(Arrays.asList(allRows.getHeadings()));
+        try (PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(path, false)))) {
+            pw.println(String.join("\t", headings));
+            writeRows(pw, allRows, trailingEmptyRow);
+        }
+    }
+
+    private void writeRows(PrintWriter pw, ResultsTable table, boolean trailingEmptyRow) {
+        int nbRows = trailingEmptyRow ? table.size() - 1 : table.size();
+        StringBuilder sb = new StringBuilder();
+        for (int row = 0; row < nbRows; row++) {
+            sb.setLength(0);
+            for (int h = 0; h < headings.size(); h++) {
+                if (h > 0) sb.append('\t');
+                int col = table.getColumnIndex(headings.get(h));
+                sb.append((col >= 0) ? table.getStringValue(col, row) : "0"); /*missing values are 0 in the tables*/
+            }
+            pw.println(sb);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package fr.curie.micmaq.helpers;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Label masks written as deflate compressed TIFF with 32 bits integer labels
+ * - the masks are mostly background: deflate (lossless, read by ImageJ and Bio-Formats) makes them several times smaller
+ * - the labels are written as signed 32 bits integers whatever the type of the image (8, 16 bits or float when the
+ *   labels do not fit in 16 bits): the files of large tiled images keep integer labels
+ * - the planes are written by strips, a plane is never entirely in memory as bytes
+ * - the ImageJ description (stack dimensions, unit, z spacing), the pixel size and its unit are written as by ImageJ
+ * - the offsets of a classic TIFF are 32 bits: a mask larger than 4 GB once compressed is saved by ImageJ instead
+ */
+public class LabelTiffWriter {
+    private static final int STRIP_BYTES = 256 * 1024;
+    private static final int ENTRY_SIZE = 12;
+    private static final long MAX_OFFSET = 0xFFFFFFFFL;
+
+    private final FileChannel channel;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private byte[] compressed = new byte[STRIP_BYTES];
+    private long position = 0;
+    private boolean tooLarge = false;
+
+    private LabelTiffWriter(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * write the label mask
+     * @param imp label mask
+     * @param path path of file
+     * @return true if saved
+     */
+    public static boolean write(ImagePlus imp, String path) {
+        LabelTiffWriter writer = null;
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writer = new LabelTiffWriter(channel);
+            try {
+                writer.writeImage(imp);
+            } finally {
+                writer.deflater.end();
+            }
+            return true;
+        } catch (IOException e) {
+            if (writer != null && writer.tooLarge) {
+                IJ.log("the label mask " + imp.getTitle() + " is larger than 4 GB compressed, it is saved by ImageJ");
+                return IJ.saveAsTiff(imp, path);
+            }
+            IJ.log("the label mask " + imp.getTitle() + " could not be saved in " + path);
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private void writeImage(ImagePlus imp) throws IOException {
+        ByteBuffer header = buffer(8);
+        header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(0);
+        header.flip();
+        write(header);
+        long previousLink = 4; /*where the offset of the next IFD is written*/
+        ImageStack stack = imp.getStack();
+        byte[] description = description(imp);
+        for (int p = 1; p <= stack.getSize(); p++) {
+            long[][] strips = writePlane(stack.getProcessor(p));
+            long descriptionOffset = -1;
+            if (p == 1) {
+                descriptionOffset = position;
+                write(ByteBuffer.wrap(description));
+            }
+            long ifd = writeIfd(imp, strips, descriptionOffset, description.length);
+            ByteBuffer link = buffer(4);
+            link.putInt((int) ifd);
+            link.flip();
+            channel.write(link, previousLink);
+            previousLink = ifd + 2 + (long) entryCount(p == 1) * ENTRY_SIZE;
+        }
+    }
+
+    /**
+     * @return offsets and byte counts of the strips of the plane
+     */
+    private long[][] writePlane(ImageProcessor ip) throws IOException {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        int rowsPerStrip = rowsPerStrip(width, height);
+        int nbStrips = (height + rowsPerStrip - 1) / rowsPerStrip;
+        long[] offsets = new long[nbStrips];
+        long[] byteCounts = new long[nbStrips];
+        ByteBuffer raw = buffer(rowsPerStrip * width * 4);
+        for (int s = 0; s < nbStrips; s++) {
+            raw.clear();
+            int lastRow = Math.min(height, (s + 1) * rowsPerStrip);
+            for (int y = s * rowsPerStrip; y < lastRow; y++) {
+                for (int x = 0; x < width; x++) raw.putInt(Math.round(ip.getf(x, y)));
+            }
+            deflater.reset();
+            deflater.setInput(raw.array(), 0, raw.position());
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == compressed.length) compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            offsets[s] = position;
+            byteCounts[s] = length;
+            write(ByteBuffer.wrap(compressed, 0, length));
+        }
+        return new long[][]{offsets, byteCounts};
+    }
+
+    private static int rowsPerStrip(int width, int height) {
+        return Math.max(1, Math.min(height, STRIP_BYTES / (width * 4)));
+    }
+
+    private static int entryCount(boolean first) {
+        return first ? 15 : 11;
+    }
+
+    /**
+     * write the IFD of a plane, with the values that do not fit in the entries before it
+     * @return offset of IFD
+     */
+    private long writeIfd(ImagePlus imp, long[][] strips, long descriptionOffset, int descriptionLength) throws IOException {
+        boolean first = descriptionOffset >= 0;
+        int nbStrips = strips[0].length;
+        long stripOffsets = -1, stripByteCounts = -1, resolution = -1;
+        if (nbStrips > 1) {
+            stripOffsets = position;
+            write(longs(strips[0]));
+            stripByteCounts = position;
+            write(longs(strips[1]));
+        }
+        Calibration cal = imp.getCalibration();
+        if (first) {
+            resolution = position;
+            ByteBuffer values = buffer(16);
+            long denominator = Math.max(1, Math.round(cal.pixelWidth * 1000000));
+            values.putInt(1000000).putInt((int) denominator);
+            denominator = Math.max(1, Math.round(cal.pixelHeight * 1000000));
+            values.putInt(1000000).putInt((int) denominator);
+            values.flip();
+            write(values);
+        }
+        if (position % 2 == 1) write(buffer(1)); /*IFD on word boundary*/
+        int nbEntries = entryCount(first);
+        ByteBuffer ifd = buffer(2 + nbEntries * ENTRY_SIZE + 4);
+        ifd.putShort((short) nbEntries);
+        entry(ifd, 254, 4, 1, 0); /*NewSubfileType*/
+        entry(ifd, 256, 4, 1, imp.getWidth());
+        entry(ifd, 257, 4, 1, imp.getHeight());
+        entry(ifd, 258, 3, 1, 32); /*BitsPerSample*/
+        entry(ifd, 259, 3, 1, 8); /*Compression: deflate*/
+        entry(ifd, 262, 3, 1, 1); /*Photometric: black is zero*/
+        if (first) entry(ifd, 270, 2, descriptionLength, descriptionOffset);
+        entry(ifd, 273, 4, nbStrips, (nbStrips > 1) ? stripOffsets : strips[0][0]);
+        entry(ifd, 277, 3, 1, 1); /*SamplesPerPixel*/
+        entry(ifd, 278, 4, 1, rowsPerStrip(imp.getWidth(), imp.getHeight()));
+        entry(ifd, 279, 4, nbStrips, (nbStrips > 1) ? stripByteCounts : strips[1][0]);
+        if (first) {
+            entry(ifd, 282, 5, 1, resolution);
+            entry(ifd, 283, 5, 1, resolution + 8);
+            entry(ifd, 296, 3, 1, resolutionUnit(cal)); /*ResolutionUnit*/
+        }
+        entry(ifd, 339, 3, 1, 2); /*SampleFormat: signed integer*/
+        ifd.putInt(0);
+        ifd.flip();
+        long offset = position;
+        write(ifd);
+        return offset;
+    }
+
+    /**
+     * ResolutionUnit as written by ImageJ: inch or centimeter, otherwise none (the unit is in the description)
+     */
+    private static int resolutionUnit(Calibration cal) {
+        String unit = cal.getUnit();
+        if ("inch".equals(unit)) return 2;
+        if ("cm".equals(unit)) return 3;
+        return 1;
+    }
+
+    /**
+     * description read by ImageJ to restore the stack dimensions and the calibration
+     */
+    private static byte[] description(ImagePlus imp) {
+        Calibration cal = imp.getCalibration();
+        StringBuilder sb = new StringBuilder("ImageJ=").append(IJ.getVersion()).append('\n');
+        int size = imp.getStackSize();
+        if (size > 1) {
+            sb.append("images=").append(size).append('\n');
+            if (imp.getNChannels() > 1) sb.append("channels=").append(imp.getNChannels()).append('\n');
+            if (imp.getNSlices() > 1) sb.append("slices=").append(imp.getNSlices()).append('\n');
+            if (imp.getNFrames() > 1) sb.append("frames=").append(imp.getNFrames()).append('\n');
+            if (imp.isHyperStack()) sb.append("hyperstack=true\n");
+        }
+        if (cal.scaled()) sb.append("unit=").append(cal.getUnit()).append('\n');
+        if (size > 1 && cal.pixelDepth != 1) sb.append("spacing=").append(cal.pixelDepth).append('\n');
+        sb.append("min=0.0\n");
+        sb.append("max=").append(maxLabel(imp)).append('\n');
+        sb.append('\0');
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static double maxLabel(ImagePlus imp) {
+        double max = 0;
+        ImageStack stack = imp.getStack();
+        for (int p = 1; p <= stack.getSize(); p++) max = Math.max(max, stack.getProcessor(p).getStatistics().max);
+        return Math.max(1, max);
+    }
+
+    /**
+     * entry of IFD, the value is given (SHORT, LONG) or is the offset of the values (ASCII, RATIONAL, several values)
+     */
+    private static void entry(ByteBuffer ifd, int tag, int type, int count, long value) {
+        ifd.putShort((short) tag).putShort((short) type).putInt(count);
+        if (type == 3 && count == 1) ifd.putShort((short) value).putShort((short) 0);
+        else ifd.putInt((int) value);
+    }
+
+    private static ByteBuffer longs(long[] values) {
+        ByteBuffer result = buffer(values.length * 4);
+        for (long v : values) result.putInt((int) v);
+        result.flip();
+        return result;
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * write the remaining bytes of buffer at the end of file
+     * - the file stays within 4 GB, so that the offsets written as 32 bits integers are valid
+     * @throws IOException if the file would be larger than 4 GB
+     */
+    private void write(ByteBuffer buffer) throws IOException {
+        if (position + buffer.remaining() > MAX_OFFSET) {
+            tooLarge = true;
+            throw new IOException("the offsets of a TIFF file larger than 4 GB do not fit in 32 bits");
+        }
+        while (buffer.hasRemaining()) position += channel.write(buffer, position);
+    }
+}
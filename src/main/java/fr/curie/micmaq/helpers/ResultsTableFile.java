@@ -0,0 +1,118 @@
+package fr.curie.micmaq.helpers;
+
+import ij.measure.ResultsTable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Tab delimited file of a results table read back exactly as it was written, for the tables saved to be merged later
+ * - {@link ResultsTable#open(String)} reads the values with the precision displayed and turns string columns whose
+ *   values look like numbers into numeric columns: the tables saved by a run and read again would not be the same
+ * - the numbers are written with all their digits ({@link Double#toString(double)})
+ * - the strings are written with a leading " (tabs and new lines escaped) so that they are read again as strings
+ * - the first line gives the number of rows, so that tables without columns keep their rows
+ */
+public class ResultsTableFile {
+    private static final String HEADER = "MIC-MAQ table 1";
+    private static final String LABEL = "Label";
+
+    /**
+     * @param table table to write
+     * @param file file written
+     * @param trailingEmptyRow true if the last row of the table is the empty row of the next measure (not written)
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(ResultsTable table, File file, boolean trailingEmptyRow) throws IOException {
+        int nbRows = Math.max(0, trailingEmptyRow ? table.size() - 1 : table.size());
+        String[] headings = table.getHeadings();
+        try (PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(file, false)))) {
+            pw.println(HEADER + "\t" + nbRows);
+            StringBuilder sb = new StringBuilder();
+            for (int h = 0; h < headings.length; h++) {
+                if (h > 0) sb.append('\t');
+                sb.append(escape(headings[h]));
+            }
+            pw.println(sb);
+            for (int row = 0; row < nbRows; row++) {
+                sb.setLength(0);
+                for (int h = 0; h < headings.length; h++) {
+                    if (h > 0) sb.append('\t');
+                    if (LABEL.equals(headings[h])) {
+                        String label = table.getLabel(row);
+                        sb.append('"').append(escape(label == null ? "" : label));
+                        continue;
+                    }
+                    int col = table.getColumnIndex(headings[h]);
+                    double value = table.getValueAsDouble(col, row);
+                    String text = table.getStringValue(col, row);
+                    /*string values are stored as NaN*/
+                    if (Double.isNaN(value) && text != null && !text.equals("NaN")) sb.append('"').append(escape(text));
+                    else sb.append(Double.toString(value));
+                }
+                pw.println(sb);
+            }
+        }
+    }
+
+    /**
+     * @param file file written by {@link #write(ResultsTable, File, boolean)}
+     * @param trailingEmptyRow true to add the empty row of the next measure
+     * @return the table
+     * @throws IOException if the file cannot be read or was not written by {@link #write(ResultsTable, File, boolean)}
+     */
+    public static ResultsTable read(File file, boolean trailingEmptyRow) throws IOException {
+        ResultsTable table = new ResultsTable();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = reader.readLine();
+            if (line == null || !line.startsWith(HEADER + "\t")) throw new IOException(file + " is not a MIC-MAQ table");
+            int nbRows = Integer.parseInt(line.substring(HEADER.length() + 1).trim());
+            line = reader.readLine();
+            String[] headings = (line == null || line.isEmpty()) ? new String[0] : line.split("\t", -1);
+            for (int h = 0; h < headings.length; h++) headings[h] = unescape(headings[h]);
+            for (int row = 0; row < nbRows; row++) {
+                line = reader.readLine();
+                if (line == null) throw new IOException(file + " is truncated");
+                String[] cells = line.split("\t", -1);
+                table.incrementCounter();
+                for (int h = 0; h < headings.length && h < cells.length; h++) {
+                    String cell = cells[h];
+                    if (cell.startsWith("\"")) {
+                        String text = unescape(cell.substring(1));
+                        if (LABEL.equals(headings[h])) table.setLabel(text, row);
+                        else table.setValue(headings[h], row, text);
+                    } else {
+                        table.setValue(headings[h], row, Double.parseDouble(cell));
+                    }
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException(file + " could not be read: " + e.getMessage(), e);
+        }
+        if (trailingEmptyRow) table.incrementCounter();
+        return table;
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String value) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+}
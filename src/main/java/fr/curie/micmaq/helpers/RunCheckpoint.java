@@ -0,0 +1,217 @@
+package fr.curie.micmaq.helpers;
+
+import fr.curie.micmaq.config.FieldOfView;
+import ij.IJ;
+import ij.measure.ResultsTable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+/**
+ * Checkpoint of a batch run so that an interrupted run can be resumed
+ * - the tables of each analysed field of view are saved as fragments in Results/fragments/, with all the digits of the
+ *   values and the string columns kept as strings (see {@link ResultsTableFile})
+ * - the run manifest (Results/run_manifest.txt) lists the fields of view done, keyed on their files and series,
+ *   with the hash of the parameters of the run
+ * - when resuming with the same parameters, the fields of view done are read from their fragments instead of being analysed
+ */
+public class RunCheckpoint {
+    public static final String MANIFEST = "run_manifest.txt";
+    public static final String FRAGMENTS = "fragments";
+    private static final String HEADER = "MIC-MAQ run manifest 2";
+
+    private final File manifest;
+    private final File fragmentsDirectory;
+    private final String parameterHash;
+    private final HashMap<String, String> doneFields = new HashMap<>();
+
+    /**
+     * @param resultDirectory results directory of the run
+     * @param parameterHash hash of the parameters of the run (see {@link #parameterHash(String)})
+     */
+    public RunCheckpoint(String resultDirectory, String parameterHash) {
+        this.manifest = new File(resultDirectory, MANIFEST);
+        this.fragmentsDirectory = new File(resultDirectory, FRAGMENTS);
+        this.parameterHash = parameterHash;
+    }
+
+    /**
+     * hash of the parameters file, without the list of files used (a resumed run can analyse other fields of view)
+     * @param parametersPath path of Parameters.txt
+     * @return hexadecimal SHA-256 of the parameters
+     */
+    public static String parameterHash(String parametersPath) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(parametersPath))) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().startsWith("files used in analysis")) continue;
+                digest.update(line.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) '\n');
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return "";
+        }
+    }
+
+    /**
+     * start a new checkpoint, the fragments of a previous run are deleted
+     */
+    public synchronized void start() {
+        doneFields.clear();
+        File[] previous = fragmentsDirectory.listFiles();
+        if (previous != null) for (File f : previous) f.delete();
+        fragmentsDirectory.mkdirs();
+        try (PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(manifest, false)))) {
+            pw.println(HEADER);
+            pw.println("parameters\t" + parameterHash);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * read the manifest of a previous run
+     * @return true if the previous run has the same parameters (its fields of view done will not be analysed again)
+     */
+    public synchronized boolean resume() {
+        doneFields.clear();
+        if (!manifest.exists()) {
+            IJ.log("no previous run to resume in " + manifest.getParent());
+            return false;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(manifest))) {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                IJ.log("the previous run was saved in another format: it is not resumed");
+                return false;
+            }
+            line = reader.readLine();
+            if (line == null || !line.equals("parameters\t" + parameterHash)) {
+                IJ.log("the parameters changed since the previous run: it is not resumed");
+                return false;
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length == 3) doneFields.put(key(fields[0], fields[1]), fields[2]);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        IJ.log("resume previous run: " + doneFields.size() + " field(s) of view already done");
+        return true;
+    }
+
+    private static String key(String paths, String serie) {
+        return paths + "\t" + serie;
+    }
+
+    private static String key(FieldOfView fov) {
+        return key(fov.getFilePaths(), "" + fov.getSerieNb());
+    }
+
+    public synchronized boolean isDone(FieldOfView fov) {
+        return doneFields.containsKey(key(fov));
+    }
+
+    /**
+     * save the tables of a field of view then add it to the manifest
+     * @param fov field of view
+     * @param index index of the field of view in the run (name of fragments)
+     * @param results tables of the field of view
+     */
+    public void save(FieldOfView fov, int index, ExperimentResults results) {
+        String fragment = "fov" + index;
+        synchronized (this) {
+            /*the indexes change when the directory is parsed again (watch mode): the fragments of other fields are kept*/
+            for (int n = 2; doneFields.containsValue(fragment); n++) fragment = "fov" + index + "_" + n;
+        }
+        try {
+            writeTable(results.getCellResults(), fragment + "_cells.txt", true);
+            writeTable(results.getNucleusResults(), fragment + "_nuclei.txt", true);
+            for (int s = 0; s < results.getNbSpotChannels(); s++) {
+                if (results.getSpotsInNuclei() != null) writeTable(results.getSpotsInNuclei()[s], fragment + "_spotsInNuclei" + s + ".txt", true);
+                if (results.getSpotsInCells() != null) writeTable(results.getSpotsInCells()[s], fragment + "_spotsInCells" + s + ".txt", true);
+                if (results.getSpotsInCyto() != null) writeTable(results.getSpotsInCyto()[s], fragment + "_spotsInCyto" + s + ".txt", true);
+            }
+        } catch (IOException e) {
+            IJ.log("the tables of " + fov.getFieldname() + " could not be saved for resuming");
+            e.printStackTrace();
+            return;
+        }
+        synchronized (this) {
+            try (PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(manifest, true)))) {
+                pw.println(key(fov) + "\t" + fragment);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            doneFields.put(key(fov), fragment);
+        }
+    }
+
+    /**
+     * read the tables of a field of view done in the previous run
+     * @param fov field of view
+     * @param nbSpotChannels number of channels that can have spots tables
+     * @return tables of the field of view or null if they could not be read
+     */
+    public ExperimentResults load(FieldOfView fov, int nbSpotChannels) {
+        String fragment;
+        synchronized (this) {
+            fragment = doneFields.get(key(fov));
+        }
+        if (fragment == null) return null;
+        try {
+            ResultsTable[] spotsInNuclei = new ResultsTable[nbSpotChannels];
+            ResultsTable[] spotsInCells = new ResultsTable[nbSpotChannels];
+            ResultsTable[] spotsInCyto = new ResultsTable[nbSpotChannels];
+            for (int s = 0; s < nbSpotChannels; s++) {
+                spotsInNuclei[s] = readTable(fragment + "_spotsInNuclei" + s + ".txt", true);
+                spotsInCells[s] = readTable(fragment + "_spotsInCells" + s + ".txt", true);
+                spotsInCyto[s] = readTable(fragment + "_spotsInCyto" + s + ".txt", true);
+            }
+            ExperimentResults results = new ExperimentResults(readTable(fragment + "_cells.txt", true),
+                    readTable(fragment + "_nuclei.txt", true), spotsInNuclei, spotsInCells, spotsInCyto, nbSpotChannels);
+            return results;
+        } catch (IOException e) {
+            IJ.log("the tables of " + fov.getFieldname() + " could not be read from the previous run");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @param table table to save (nothing written if null)
+     * @param name name of fragment file
+     * @param trailingEmptyRow true if the last row of the table is the empty row of the next measure
+     */
+    private void writeTable(ResultsTable table, String name, boolean trailingEmptyRow) throws IOException {
+        if (table == null) return;
+        ResultsTableFile.write(table, new File(fragmentsDirectory, name), trailingEmptyRow);
+    }
+
+    /**
+     * @param name name of fragment file
+     * @param trailingEmptyRow true to add the empty row of the next measure
+     * @return the table or null if it was not saved
+     */
+    private ResultsTable readTable(String name, boolean trailingEmptyRow) throws IOException {
+        File file = new File(fragmentsDirectory, name);
+        if (!file.exists()) return null;
+        return ResultsTableFile.read(file, trailingEmptyRow);
+    }
+}
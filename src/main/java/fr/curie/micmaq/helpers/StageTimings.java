@@ -0,0 +1,207 @@
+package fr.curie.micmaq.helpers;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
+/**
+ * Time spent in each stage of the analysis of a field of view
+ * - the experiment binds its timings to the thread analysing the field ({@link #start()})
+ * - the stages are delimited by {@link #push(int)} and {@link #pop()}, which do nothing when no timings are bound
+ * - a stage started inside another one pauses it: the times are exclusive and their sum is at most the total time
+ * - the files queued to {@link BackgroundWriter} are counted and their writing time is added to the saving stage by
+ *   the writer threads, in parallel with the analysis: the saving time is not part of the total time
+ * - {@link #whenWritten(Runnable)} acts and {@link #awaitWrites()} returns once the files queued are all written
+ * - the timings of each field of view are appended to Results/timings.csv once its files are written (one row per
+ *   field, times in ms)
+ */
+public class StageTimings {
+    public static final int READ = 0;
+    public static final int PROJECTION = 1;
+    public static final int PREPROCESSING_MACRO = 2;
+    public static final int SEGMENTATION = 3;
+    public static final int ASSOCIATION = 4;
+    public static final int MEASUREMENT = 5;
+    public static final int SPOT_DETECTION = 6;
+    public static final int SAVING = 7;
+    public static final String FILE = "timings.csv";
+    public static final String[] STAGES = {"read", "projection", "preprocessing macro", "segmentation",
+            "association", "measurement", "spot detection", "saving"};
+
+    private static final ThreadLocal<StageTimings> current = new ThreadLocal<>();
+
+    private final long[] nanos = new long[STAGES.length];
+    /*running stages: stage, start time, time of the stages started inside*/
+    private final ArrayDeque<long[]> running = new ArrayDeque<>();
+    private final long begin;
+    private long total = -1;
+    /*files of the field of view queued to the writer and not written yet*/
+    private int pendingWrites = 0;
+    private boolean writeFailed = false;
+    private Runnable whenWritten;
+
+    private StageTimings() {
+        begin = System.nanoTime();
+    }
+
+    /**
+     * new timings bound to the current thread
+     * @return the timings, to stop when the field of view is done
+     */
+    public static StageTimings start() {
+        StageTimings timings = new StageTimings();
+        current.set(timings);
+        return timings;
+    }
+
+    /**
+     * stop the total time and unbind the timings from the current thread
+     */
+    public void stop() {
+        while (!running.isEmpty()) end();
+        total = System.nanoTime() - begin;
+        if (current.get() == this) current.remove();
+    }
+
+    /**
+     * @return timings bound to the current thread, null if none
+     */
+    static StageTimings current() {
+        return current.get();
+    }
+
+    /**
+     * start a stage in the timings of the current thread
+     * @param stage one of the stage constants
+     */
+    public static void push(int stage) {
+        StageTimings timings = current.get();
+        if (timings != null) timings.running.push(new long[]{stage, System.nanoTime(), 0});
+    }
+
+    /**
+     * end the last stage started in the timings of the current thread
+     */
+    public static void pop() {
+        StageTimings timings = current.get();
+        if (timings != null && !timings.running.isEmpty()) timings.end();
+    }
+
+    private void end() {
+        long[] stage = running.pop();
+        long elapsed = System.nanoTime() - stage[1];
+        synchronized (this) {
+            nanos[(int) stage[0]] += elapsed - stage[2];
+        }
+        if (!running.isEmpty()) running.peek()[2] += elapsed;
+    }
+
+    /**
+     * add time measured elsewhere (e.g. images decoded or files written by another thread)
+     * @param stage one of the stage constants
+     * @param nanoseconds time to add
+     */
+    public synchronized void add(int stage, long nanoseconds) {
+        nanos[stage] += nanoseconds;
+    }
+
+    /**
+     * a file of the field of view is queued to the writer
+     */
+    synchronized void writeSubmitted() {
+        pendingWrites++;
+    }
+
+    /**
+     * a file of the field of view could not be written
+     */
+    synchronized void writeFailed() {
+        writeFailed = true;
+    }
+
+    /**
+     * a file of the field of view queued to the writer is written (or failed)
+     */
+    void writeDone() {
+        Runnable action = null;
+        synchronized (this) {
+            pendingWrites--;
+            if (pendingWrites == 0 && whenWritten != null) {
+                action = whenWritten;
+                whenWritten = null;
+            }
+            notifyAll();
+        }
+        if (action != null) runIfWritten(action);
+    }
+
+    /**
+     * run an action once all the files of the field of view queued so far are written, on the thread writing the last
+     * one (or now if none is pending)
+     * - the action is not run if a file could not be written
+     * @param action action, e.g. marking the field of view as done
+     */
+    public void whenWritten(Runnable action) {
+        synchronized (this) {
+            if (pendingWrites > 0) {
+                whenWritten = action;
+                return;
+            }
+        }
+        runIfWritten(action);
+    }
+
+    /**
+     * wait for the files of the field of view queued to the writer to be written (or to fail)
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized void awaitWrites() throws InterruptedException {
+        while (pendingWrites > 0) wait();
+    }
+
+    private void runIfWritten(Runnable action) {
+        boolean failed;
+        synchronized (this) {
+            failed = writeFailed;
+        }
+        if (!failed) action.run();
+    }
+
+    public synchronized long getMillis(int stage) {
+        return nanos[stage] / 1000000;
+    }
+
+    /**
+     * @return time of the analysis of the field of view, from {@link #start()} to {@link #stop()}
+     */
+    public long getTotalMillis() {
+        return ((total < 0) ? System.nanoTime() - begin : total) / 1000000;
+    }
+
+    /**
+     * append the timings of a field of view to a csv file, the header is written if the file is new
+     * the read time counts the decoding done ahead by the read-ahead thread, which is not part of the total time
+     * @param path path of csv file
+     * @param index index of field of view
+     * @param fieldName name of field of view
+     */
+    public void appendTo(String path, int index, String fieldName) {
+        File file = new File(path);
+        boolean header = !file.exists() || file.length() == 0;
+        try (PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(file, true)))) {
+            if (header) {
+                pw.print("field_of_view,name");
+                for (String stage : STAGES) pw.print("," + stage.replace(' ', '_') + "_ms");
+                pw.println(",total_ms");
+            }
+            pw.print((index + 1) + ",\"" + fieldName.replace("\"", "\"\"") + "\"");
+            for (int stage = 0; stage < STAGES.length; stage++) pw.print("," + getMillis(stage));
+            pw.println("," + getTotalMillis());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
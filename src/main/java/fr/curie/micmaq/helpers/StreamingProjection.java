@@ -0,0 +1,181 @@
+package fr.curie.micmaq.helpers;
+
+import ij.ImagePlus;
+import ij.process.Blitter;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+
+/**
+ * Z-projection computed plane by plane, without keeping the stack in memory
+ * - the planes are given in any order with {@link #add(ImageProcessor, int)}, only the planes {@link #needs(int)} are used
+ * - maximum, sum and standard deviation are accumulated per pixel (same results as ZProjector)
+ * - the best focal slices are the planes with the highest mean of edges, only the best ones are kept
+ * - the methods are the ones of Detector.projection, an unknown method is the best focal slice
+ * - the result has the property {@link #PROPERTY} so that the detector knows the image is a projection
+ */
+public class StreamingProjection {
+    public static final String PROPERTY = "MicMaq.projection";
+    static final int MAX = 0;
+    static final int SUM = 1;
+    static final int SD = 2;
+    static final int BEST = 3;
+
+    private final String method;
+    private final int mode;
+    private final int first;
+    private final int last;
+    private final int nbBest;
+    private int bitDepth = 0;
+    private int count = 0;
+    private float[] max;
+    private double[] sum;
+    private double[] sum2;
+    private ImageProcessor[] best;
+    private double[] bestFocus;
+    private int[] bestSlice;
+
+    /**
+     * @param method method of projection (as in Detector.setzStackParameters)
+     * @param firstSlice first slice projected, in range [1,NSlices]
+     * @param lastSlice last slice projected, in range [1,NSlices]
+     */
+    public StreamingProjection(String method, int firstSlice, int lastSlice) {
+        this.method = method;
+        if (method.equals("Maximum projection")) mode = MAX;
+        else if (method.equals("Standard Deviation projection")) mode = SD;
+        else if (method.equals("Sum Slices")) mode = SUM;
+        else mode = BEST;
+        nbBest = method.equals("Maximum of 3 best Focal slices") ? 3 : 1;
+        /*the best focal slices are searched in the whole stack*/
+        first = (mode == BEST) ? 1 : firstSlice;
+        last = (mode == BEST) ? Integer.MAX_VALUE : lastSlice;
+    }
+
+    /**
+     * @param slice slice in range [1,NSlices]
+     * @return true if the slice is used by the projection
+     */
+    public boolean needs(int slice) {
+        return slice >= first && slice <= last;
+    }
+
+    /**
+     * accumulate a plane, the plane is not modified and is not kept (except a copy of the best focal slices)
+     * @param ip plane
+     * @param slice slice of plane in range [1,NSlices]
+     */
+    public void add(ImageProcessor ip, int slice) {
+        if (!needs(slice)) return;
+        int n = ip.getPixelCount();
+        if (count == 0) {
+            bitDepth = ip.getBitDepth();
+            if (mode == MAX) {
+                max = new float[n];
+                Arrays.fill(max, -Float.MAX_VALUE);
+            } else if (mode == BEST) {
+                best = new ImageProcessor[nbBest];
+                bestFocus = new double[nbBest];
+                bestSlice = new int[nbBest];
+                Arrays.fill(bestFocus, Double.NEGATIVE_INFINITY);
+            } else {
+                sum = new double[n];
+                if (mode == SD) sum2 = new double[n];
+            }
+        }
+        count++;
+        switch (mode) {
+            case MAX:
+                for (int i = 0; i < n; i++) max[i] = Math.max(max[i], ip.getf(i));
+                break;
+            case SUM:
+                for (int i = 0; i < n; i++) sum[i] += ip.getf(i);
+                break;
+            case SD:
+                for (int i = 0; i < n; i++) {
+                    double v = ip.getf(i);
+                    sum[i] += v;
+                    sum2[i] += v * v;
+                }
+                break;
+            default:
+                keepIfBest(ip, slice);
+        }
+    }
+
+    /**
+     * same order as Detector.topNIndices: highest mean of edges first, lowest slice first when equal
+     */
+    private void keepIfBest(ImageProcessor ip, int slice) {
+        ImageProcessor edges = ip.duplicate();
+        edges.findEdges();
+        double focus = edges.getStatistics().mean;
+        for (int j = 0; j < nbBest; j++) {
+            if (focus > bestFocus[j] || (focus == bestFocus[j] && slice < bestSlice[j])) {
+                for (int k = nbBest - 1; k > j; k--) {
+                    best[k] = best[k - 1];
+                    bestFocus[k] = bestFocus[k - 1];
+                    bestSlice[k] = bestSlice[k - 1];
+                }
+                best[j] = ip.duplicate();
+                bestFocus[j] = focus;
+                bestSlice[j] = slice;
+                return;
+            }
+        }
+    }
+
+    /**
+     * project a stack already in memory
+     * @param imp stack
+     * @param firstSlice slice of the first plane of stack in range [1,NSlices] (the stack can be a part of the planes)
+     * @return projection
+     */
+    public ImagePlus project(ImagePlus imp, int firstSlice) {
+        for (int z = 1; z <= imp.getStackSize(); z++) {
+            int slice = firstSlice + z - 1;
+            if (needs(slice)) add(imp.getStack().getProcessor(z), slice);
+        }
+        return getResult(imp.getTitle(), imp.getWidth(), imp.getHeight());
+    }
+
+    /**
+     * @param title title of image
+     * @return projection of the planes added
+     */
+    public ImagePlus getResult(String title, int width, int height) {
+        ImageProcessor result;
+        if (count == 0) {
+            result = new FloatProcessor(width, height);
+        } else if (mode == MAX) {
+            result = new FloatProcessor(width, height, max);
+            if (bitDepth == 8) result = result.convertToByte(false);
+            else if (bitDepth == 16) result = result.convertToShort(false);
+        } else if (mode == SUM) {
+            float[] pixels = new float[sum.length];
+            for (int i = 0; i < pixels.length; i++) pixels[i] = (float) sum[i];
+            result = new FloatProcessor(width, height, pixels);
+        } else if (mode == SD) {
+            float[] pixels = new float[sum.length];
+            if (count > 1) {
+                for (int i = 0; i < pixels.length; i++) {
+                    double variance = (count * sum2[i] - sum[i] * sum[i]) / count / (count - 1.0);
+                    pixels[i] = (variance > 0) ? (float) Math.sqrt(variance) : 0f;
+                }
+            }
+            result = new FloatProcessor(width, height, pixels);
+        } else {
+            result = best[0];
+            for (int j = 1; j < nbBest && best[j] != null; j++) {
+                ImageProcessor tmp = result.duplicate();
+                tmp.copyBits(best[j], 0, 0, Blitter.MAX);
+                result = tmp;
+            }
+        }
+        result.resetMinAndMax();
+        ImagePlus imp = new ImagePlus(title, result);
+        imp.setProperty(PROPERTY, method);
+        return imp;
+    }
+}
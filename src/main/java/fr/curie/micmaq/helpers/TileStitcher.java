@@ -0,0 +1,192 @@
+package fr.curie.micmaq.helpers;
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stitching of the label masks of overlapping tiles, done on the labels without converting them to ROIs
+ * - the tiles are placed row by row as cut by the tiling of Cellpose: tiles of the size of the stack, shifted by
+ *   tile size - overlap
+ * - for each pair of overlapping tiles, the labels are compared in the area shared by the tiles: two labels are the
+ *   same object when their intersection over union in this area reaches the threshold
+ * - the labels of a same object are merged with union-find, then the objects are numbered in the order of the image
+ * - in the overlaps, the pixels are taken from the first tile with an object there
+ */
+public class TileStitcher {
+    /**
+     * default minimum intersection over union in the overlap of two tiles for two labels to be the same object
+     */
+    public static final double MIN_IOU = 0.2;
+
+    private final ImageStack tiles;
+    private final int width;
+    private final int height;
+    private final Rectangle[] bounds;
+    private final int[] offsets; /*first global label of each tile - 1*/
+    private final int[] parent;
+
+    private TileStitcher(ImageStack tiles, int width, int height, int overlap) {
+        this.tiles = tiles;
+        this.width = width;
+        this.height = height;
+        int step = tiles.getWidth() - overlap;
+        int nbTiles = 0;
+        for (int y = 0; y < height - overlap; y += step) {
+            for (int x = 0; x < width - overlap; x += step) nbTiles++;
+        }
+        nbTiles = Math.min(nbTiles, tiles.getSize());
+        bounds = new Rectangle[nbTiles];
+        int index = 0;
+        for (int y = 0; y < height - overlap && index < nbTiles; y += step) {
+            for (int x = 0; x < width - overlap && index < nbTiles; x += step) {
+                bounds[index++] = new Rectangle(x, y, tiles.getWidth(), tiles.getHeight());
+            }
+        }
+        offsets = new int[nbTiles];
+        int total = 0;
+        for (int t = 0; t < nbTiles; t++) {
+            offsets[t] = total;
+            total += maxLabel(tiles.getProcessor(t + 1));
+        }
+        parent = new int[total + 1];
+        for (int i = 0; i < parent.length; i++) parent[i] = i;
+    }
+
+    /**
+     * stitch the label masks of the tiles
+     * @param tiles label masks of the tiles, in the order of the tiling
+     * @param width width of the stitched image
+     * @param height height of the stitched image
+     * @param overlap overlap between neighbouring tiles
+     * @param minIoU minimum intersection over union in the overlap of two tiles to merge two labels
+     * @return label image, 16 bits or 32 bits (float) when there are more than 65535 objects
+     */
+    public static ImageProcessor stitch(ImageStack tiles, int width, int height, int overlap, double minIoU) {
+        TileStitcher stitcher = new TileStitcher(tiles, width, height, overlap);
+        int merged = 0;
+        for (int a = 0; a < stitcher.bounds.length; a++) {
+            for (int b = a + 1; b < stitcher.bounds.length; b++) {
+                Rectangle shared = stitcher.bounds[a].intersection(stitcher.bounds[b]).intersection(new Rectangle(0, 0, width, height));
+                if (!shared.isEmpty()) merged += stitcher.mergeOverlap(a, b, shared, minIoU);
+            }
+        }
+        IJ.log("stitch tiles: " + (stitcher.parent.length - 1) + " labels, " + merged + " merged in overlaps");
+        return stitcher.relabel();
+    }
+
+    /**
+     * count the overlaps of the labels of two tiles in their shared area and merge the labels of same object
+     * @return number of merges
+     */
+    private int mergeOverlap(int a, int b, Rectangle shared, double minIoU) {
+        ImageProcessor ipA = tiles.getProcessor(a + 1);
+        ImageProcessor ipB = tiles.getProcessor(b + 1);
+        Rectangle ra = bounds[a];
+        Rectangle rb = bounds[b];
+        HashMap<Integer, int[]> areas = new HashMap<>();
+        HashMap<Long, int[]> intersections = new HashMap<>();
+        for (int y = shared.y; y < shared.y + shared.height; y++) {
+            for (int x = shared.x; x < shared.x + shared.width; x++) {
+                int la = (int) ipA.getf(x - ra.x, y - ra.y);
+                int lb = (int) ipB.getf(x - rb.x, y - rb.y);
+                if (la > 0) increment(areas, offsets[a] + la);
+                if (lb > 0) increment(areas, offsets[b] + lb);
+                if (la > 0 && lb > 0) {
+                    long key = ((long) (offsets[a] + la) << 32) | (offsets[b] + lb);
+                    int[] count = intersections.get(key);
+                    if (count == null) intersections.put(key, new int[]{1});
+                    else count[0]++;
+                }
+            }
+        }
+        int merged = 0;
+        for (Map.Entry<Long, int[]> entry : intersections.entrySet()) {
+            int labelA = (int) (entry.getKey() >>> 32);
+            int labelB = (int) (entry.getKey() & 0xffffffffL);
+            double intersection = entry.getValue()[0];
+            double iou = intersection / (areas.get(labelA)[0] + areas.get(labelB)[0] - intersection);
+            if (iou >= minIoU && union(labelA, labelB)) merged++;
+        }
+        return merged;
+    }
+
+    /**
+     * write the labels of the tiles in the image, then number the merged objects
+     */
+    private ImageProcessor relabel() {
+        int[] labels = new int[width * height];
+        for (int t = 0; t < bounds.length; t++) {
+            ImageProcessor ip = tiles.getProcessor(t + 1);
+            Rectangle r = bounds[t];
+            int maxX = Math.min(r.width, width - r.x);
+            int maxY = Math.min(r.height, height - r.y);
+            for (int y = 0; y < maxY; y++) {
+                int line = (r.y + y) * width + r.x;
+                for (int x = 0; x < maxX; x++) {
+                    if (labels[line + x] != 0) continue;
+                    int label = (int) ip.getf(x, y);
+                    if (label > 0) labels[line + x] = offsets[t] + label;
+                }
+            }
+        }
+        int[] finalLabels = new int[parent.length];
+        int count = 0;
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i] == 0) continue;
+            int root = find(labels[i]);
+            if (finalLabels[root] == 0) finalLabels[root] = ++count;
+            labels[i] = finalLabels[root];
+        }
+        IJ.log("stitch tiles: " + count + " objects");
+        if (count <= 65535) {
+            short[] pixels = new short[labels.length];
+            for (int i = 0; i < labels.length; i++) pixels[i] = (short) labels[i];
+            return new ShortProcessor(width, height, pixels, null);
+        }
+        float[] pixels = new float[labels.length];
+        for (int i = 0; i < labels.length; i++) pixels[i] = labels[i];
+        return new FloatProcessor(width, height, pixels);
+    }
+
+    private int find(int label) {
+        int root = label;
+        while (parent[root] != root) root = parent[root];
+        while (parent[label] != root) {
+            int next = parent[label];
+            parent[label] = root;
+            label = next;
+        }
+        return root;
+    }
+
+    /**
+     * @return true if the labels were not already merged
+     */
+    private boolean union(int labelA, int labelB) {
+        int rootA = find(labelA);
+        int rootB = find(labelB);
+        if (rootA == rootB) return false;
+        if (rootA < rootB) parent[rootB] = rootA;
+        else parent[rootA] = rootB;
+        return true;
+    }
+
+    private static void increment(HashMap<Integer, int[]> counts, int label) {
+        int[] count = counts.get(label);
+        if (count == null) counts.put(label, new int[]{1});
+        else count[0]++;
+    }
+
+    private static int maxLabel(ImageProcessor ip) {
+        int max = 0;
+        for (int i = 0; i < ip.getPixelCount(); i++) max = Math.max(max, (int) ip.getf(i));
+        return max;
+    }
+}
@@ -13,8 +13,8 @@ import ij.process.ImageProcessor;
  * ImageJ plugin to run Cellpose on HyperStacks (Z/T and optionally multi-channel).
  * It iterates through timepoints and z-slices, runs Cellpose per 2D plane or
  * per 3D stack when Z>1, and aggregates the resulting masks into a labeled
- * hyperstack matching the input dimensions. Tiling is supported via
- * CellposeLauncher.tileSize and tileOverlap.
+ * hyperstack matching the input dimensions. Tiling is supported with the
+ * tile size and overlap of the dialog (no tiling when the size is negative).
  */
 public class CellposeLauncherHyperStack implements PlugInFilter {
 
@@ -28,6 +28,8 @@ public class CellposeLauncherHyperStack implements PlugInFilter {
     int cytoChannel = 1;   // 1-based for CellposeTaskSettings
     int nucleiChannel = 0; // 0 means none
     boolean excludeOnEdges = false;
+    int tileSize = -1;
+    int tileOverlap = 0;
 
     @Override
     public int setup(String arg, ImagePlus imp) {
@@ -49,7 +51,8 @@ public class CellposeLauncherHyperStack implements PlugInFilter {
         gd.addNumericField("cyto_channel (1-3, 0=gray)", cytoChannel, 0);
         gd.addNumericField("nuclei_channel (0=None,1-3)", nucleiChannel, 0);
         gd.addCheckbox("exclude_on_edges", excludeOnEdges);
-        gd.addMessage("Tiling (set in MIC-MAQ > Preferences)\nTile size=" + CellposeLauncher.tileSize + ", overlap=" + CellposeLauncher.tileOverlap);
+        gd.addNumericField("tile_size (-1 for no tiling)", tileSize, 0);
+        gd.addNumericField("tile_overlap", tileOverlap, 0);
         gd.showDialog();
         if (gd.wasCanceled()) return false;
         model = gd.getNextString();
@@ -59,6 +62,8 @@ public class CellposeLauncherHyperStack implements PlugInFilter {
         cytoChannel = (int) gd.getNextNumber();
         nucleiChannel = (int) gd.getNextNumber();
         excludeOnEdges = gd.getNextBoolean();
+        tileSize = (int) gd.getNextNumber();
+        tileOverlap = (int) gd.getNextNumber();
         if (!useNucleiChannel) nucleiChannel = 0;
         return true;
     }
@@ -90,6 +95,7 @@ public class CellposeLauncherHyperStack implements PlugInFilter {
                 }
                 CellposeLauncher cpl = new CellposeLauncher(inputForCP, diameter, cellprob, model,
                         cytoChannel, nucleiChannel, excludeOnEdges);
+                cpl.setTiling(tileSize, tileOverlap, 1);
                 ImagePlus mask = cpl.runCellpose();
                 for (int z = 1; z <= nZ; z++) {
                     mask.setZ(z);
@@ -107,6 +113,7 @@ public class CellposeLauncherHyperStack implements PlugInFilter {
                 }
                 CellposeLauncher cpl = new CellposeLauncher(inputForCP, diameter, cellprob, model,
                         cytoChannel, nucleiChannel, excludeOnEdges);
+                cpl.setTiling(tileSize, tileOverlap, 1);
                 ImagePlus mask = cpl.runCellpose();
                 outStack.addSlice(mask.getProcessor().duplicate());
             }
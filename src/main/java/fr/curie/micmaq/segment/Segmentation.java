@@ -4,6 +4,7 @@ import fr.curie.micmaq.config.ImageProvider;
 import fr.curie.micmaq.config.ImageSet;
 import fr.curie.micmaq.detectors.CellposeLauncher;
 import fr.curie.micmaq.detectors.NucleiDetector;
+import fr.curie.micmaq.detectors.RoiCollection;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.WindowManager;
@@ -14,7 +15,6 @@ import ij.plugin.LutLoader;
 import ij.plugin.ZProjector;
 import ij.plugin.filter.EDM;
 import ij.plugin.filter.ParticleAnalyzer;
-import ij.plugin.frame.RoiManager;
 import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
 
@@ -23,7 +23,7 @@ import java.awt.image.IndexColorModel;
 public class Segmentation {
     SegmentationParameters params;
     Roi[] rois;
-    RoiManager roiManager;
+    RoiCollection roiManager;
     boolean showBinaryImage=false;
 
     public Segmentation(SegmentationParameters params){
@@ -63,6 +63,7 @@ public class Segmentation {
      */
     public ImagePlus cellposeSegmentation(ImagePlus imp){
         CellposeLauncher cellposeLauncher = new CellposeLauncher(imp, params.cellposeDiameter, params.cellposeCellproba_trheshold, params.cellposeModel, params.excludeOnEdge);
+        cellposeLauncher.setTiling(params.getTileSize(), params.getTileOverlap(), 1);
         cellposeLauncher.analysis();
         ImagePlus labeledImage = cellposeLauncher.getCellposeMask();
         renameImage(imp,labeledImage,"cellpose");
@@ -188,19 +189,10 @@ public class Segmentation {
         threshold_proc.setAutoThreshold(params.thresholdMethod+" dark");
 //        GET BINARY MASK OF THRESHOLD IMAGE THROUGH PARTICLE ANALYZER
 //        Set options
-        RoiManager roiManager = RoiManager.getInstance();
-        if (roiManager==null){
-            roiManager=new RoiManager();
-        }else {
-            roiManager.reset();
-        }
-        int analyzer_option = /*ParticleAnalyzer.SHOW_MASKS+*/ParticleAnalyzer.ADD_TO_MANAGER;
+        int analyzer_option = 0/*ParticleAnalyzer.SHOW_MASKS*/;
         if (params.excludeOnEdge) analyzer_option+= ParticleAnalyzer.EXCLUDE_EDGE_PARTICLES;
 //        Analyze
-        ParticleAnalyzer.setRoiManager(roiManager);
-        ParticleAnalyzer particleAnalyzer = new ParticleAnalyzer(analyzer_option,0,null,params.minSize,Integer.MAX_VALUE);
-        particleAnalyzer.analyze(threshold_IP);
-        rois = roiManager.getRoisAsArray();
+        rois = RoiCollection.analyzeParticles(threshold_IP, analyzer_option, params.minSize, Integer.MAX_VALUE).getRoisAsArray();
 //        Get binary mask output and renames it
         ImagePlus mask_IP= binaryImage(image,rois);
         renameImage(image, mask_IP,"binary_mask");
@@ -239,29 +231,18 @@ public class Segmentation {
      * It fills the found object to make it invisible, so it is not detected another time.
      * The scan ends when the end of image or selection is reached
      * @param threshold_IP : binary image with particles to find
-     * @return RoiManager that contains the Rois corresponding to the particles found
+     * @return collection that contains the Rois corresponding to the particles found
      */
-    public RoiManager analyzeParticles(ImagePlus threshold_IP) {
-//        Get RoiManager
-        RoiManager roiManager = RoiManager.getInstance();
-        if (roiManager == null) { /*if no instance of roiManager, creates one*/
-            roiManager = new RoiManager();
-        } else { /*if already exists, empties it*/
-            roiManager.reset();
-        }
-
+    public RoiCollection analyzeParticles(ImagePlus threshold_IP) {
 //        Set options for particle analyzer
-        ParticleAnalyzer.setRoiManager(roiManager); /*precise with RoiManager to use*/
-        int analyzer_option = ParticleAnalyzer.SHOW_OVERLAY_MASKS+ParticleAnalyzer.ADD_TO_MANAGER;
+        int analyzer_option = ParticleAnalyzer.SHOW_OVERLAY_MASKS;
         if (params.isExcludeOnEdge()) analyzer_option+= ParticleAnalyzer.EXCLUDE_EDGE_PARTICLES;
-        ParticleAnalyzer particleAnalyzer=new ParticleAnalyzer(analyzer_option,0,null,params.getMinSize(),Integer.MAX_VALUE);
 
 //        Analyze
         ImageProcessor threshold_proc = threshold_IP.getProcessor();
         threshold_proc.setAutoThreshold("Default dark");
 //        threshold_proc.setThreshold(128,255); /*Needs to set threshold for the binary image*/
-        particleAnalyzer.analyze(threshold_IP); /*adds particles found to RoiManager and add overlay (see options)*/
-        return roiManager;
+        return RoiCollection.analyzeParticles(threshold_IP, analyzer_option, params.getMinSize(), Integer.MAX_VALUE); /*adds overlay (see options)*/
     }
 
     /**
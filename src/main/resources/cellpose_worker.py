@@ -0,0 +1,88 @@
+# Cellpose worker of MIC-MAQ: the model is loaded once and the images are segmented on request
+# usage: python cellpose_worker.py <model> <diameter> <cellprob_threshold> <channel1> <channel2> <use_gpu 0/1> <do_3D 0/1>
+# requests on stdin, one per line:
+#   TIFF: <input tif>\t<output tif>\t<number of channels>\t<number of slices>
+#   raw:  <input raw>\t<output raw>\t<number of channels>\t<number of slices>\t<width>\t<height>\t<type u1, u2 or f4>
+#         the raw files are little endian pixels without header, planes in ImageJ order (channels of the first slice first)
+# answers on stdout, one per request: "MICMAQ OK" ("MICMAQ OK <bytes per label>" for raw: 2 or 4, unsigned)
+# or "MICMAQ ERROR <message>" (other lines printed by Cellpose are ignored)
+import os
+import sys
+import traceback
+
+import numpy as np
+from cellpose import io, models
+
+
+def answer(text):
+    sys.stdout.write("MICMAQ " + text + "\n")
+    sys.stdout.flush()
+
+
+def load_model(name, gpu):
+    if os.path.exists(name):
+        return models.CellposeModel(gpu=gpu, pretrained_model=name)
+    try:
+        return models.CellposeModel(gpu=gpu, model_type=name)
+    except TypeError:  # Cellpose 4: the models are given as pretrained_model
+        return models.CellposeModel(gpu=gpu, pretrained_model=name)
+
+
+def read_raw(source, nb_channels, nb_slices, width, height, dtype):
+    image = np.fromfile(source, dtype=np.dtype("<" + dtype))
+    if nb_slices > 1 and nb_channels > 1:
+        return image.reshape(nb_slices, nb_channels, height, width)
+    if nb_slices > 1:
+        return image.reshape(nb_slices, height, width)
+    if nb_channels > 1:
+        return image.reshape(nb_channels, height, width)
+    return image.reshape(height, width)
+
+
+def main():
+    name = sys.argv[1]
+    diameter = float(sys.argv[2])
+    cellprob = float(sys.argv[3])
+    channels = [int(sys.argv[4]), int(sys.argv[5])]
+    gpu = sys.argv[6] == "1"
+    do_3d = sys.argv[7] == "1"
+    model = load_model(name, gpu)
+    answer("READY")
+    for line in sys.stdin:
+        line = line.rstrip("\r\n")
+        if not line or line == "QUIT":
+            break
+        try:
+            fields = line.split("\t")
+            source, destination, nb_channels, nb_slices = fields[:4]
+            raw = len(fields) == 7
+            if raw:
+                image = read_raw(source, int(nb_channels), int(nb_slices), int(fields[4]), int(fields[5]), fields[6])
+            else:
+                image = io.imread(source)
+            channel_axis = None
+            z_axis = None
+            if int(nb_slices) > 1:
+                z_axis = 0
+                if int(nb_channels) > 1:
+                    channel_axis = 1
+            elif int(nb_channels) > 1:
+                channel_axis = 0
+            result = model.eval(image, diameter=diameter if diameter > 0 else None, channels=channels,
+                                channel_axis=channel_axis, z_axis=z_axis, cellprob_threshold=cellprob, do_3D=do_3d)
+            masks = np.asarray(result[0])
+            if raw:
+                bytes_per_label = 2 if masks.max() < 65536 else 4
+                masks.astype("<u" + str(bytes_per_label)).tofile(destination)
+                answer("OK " + str(bytes_per_label))
+            else:
+                masks = masks.astype(np.uint16 if masks.max() < 65536 else np.uint32)
+                io.imsave(destination, masks)
+                answer("OK")
+        except Exception as e:
+            traceback.print_exc()
+            answer("ERROR " + str(e).replace("\n", " "))
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,245 @@
+package fr.curie.micmaq.batch;
+
+import fr.curie.micmaq.detectors.CellposeLauncher;
+import fr.curie.micmaq.detectors.CytoDetector;
+import fr.curie.micmaq.detectors.RoiCollection;
+import fr.curie.micmaq.detectors.SpotDetector;
+import fr.curie.micmaq.helpers.ExpandMask;
+import fr.curie.micmaq.helpers.MeasureCalibration;
+import fr.curie.micmaq.helpers.SummarizeResults;
+import fr.curie.micmaq.helpers.SyntheticImages;
+import fr.curie.micmaq.helpers.TileStitcher;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.measure.ResultsTable;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.Rectangle;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * JMH benchmark of the detector hot paths on synthetic images
+ * - each hot path is run on every combination of image size and object count, for example after mvn test-compile:
+ * <pre>
+ * java -cp target/test-classes:target/classes:... org.openjdk.jmh.Main HotPathBenchmark
+ *      -p hotPath=label2Roi,checkDuplicates -p size=512,2048 -p objects=100,1000 -rf csv -rff /tmp/bench.csv
+ * </pre>
+ * - the inputs are made before each call (see {@link SyntheticImages}), only the call of the hot path is timed
+ * - the result of the call is returned to JMH, so that it is not optimised away
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class HotPathBenchmark {
+    private static final long SEED = 42;
+
+    /**
+     * a hot path prepares its inputs for one call and returns the call to time
+     */
+    interface HotPath {
+        Supplier<Object> prepare(int size, int nbObjects);
+    }
+
+    @Param({"label2Roi", "associateNucleiCell", "expandsMask2D", "expandsMask3D", "checkDuplicates", "stitchTiles",
+            "analysisPerRegion", "summarize"})
+    public String hotPath;
+    @Param({"512", "1024"})
+    public int size;
+    @Param({"50", "200"})
+    public int objects;
+    @Param({"8"})
+    public int depth;
+    int nbFieldsSummary = 10;
+
+    private final LinkedHashMap<String, HotPath> hotPaths = new LinkedHashMap<>();
+    private Supplier<Object> call;
+
+    public HotPathBenchmark() {
+        hotPaths.put("label2Roi", this::label2Roi);
+        hotPaths.put("associateNucleiCell", this::associateNucleiCell);
+        hotPaths.put("expandsMask2D", this::expandsMask2D);
+        hotPaths.put("expandsMask3D", this::expandsMask3D);
+        hotPaths.put("checkDuplicates", this::checkDuplicates);
+        hotPaths.put("stitchTiles", this::stitchTiles);
+        hotPaths.put("analysisPerRegion", this::analysisPerRegion);
+        hotPaths.put("summarize", this::summarize);
+    }
+
+    /**
+     * new inputs for each call: some hot paths modify them
+     */
+    @Setup(Level.Invocation)
+    public void prepare() {
+        HotPath path = hotPaths.get(hotPath);
+        if (path == null) throw new IllegalArgumentException("unknown hot path " + hotPath + ", available: " + String.join(", ", hotPaths.keySet()));
+        call = path.prepare(size, objects);
+    }
+
+    @Benchmark
+    public Object run() {
+        return call.get();
+    }
+
+    /**
+     * label image of touching-free disks, as given by Cellpose
+     */
+    private static ShortProcessor labels(int size, int nbObjects, double radiusFraction) {
+        double radius = radiusFraction * SyntheticImages.spacing(size, size, nbObjects);
+        return SyntheticImages.labelImage(size, size, nbObjects, radius, SEED);
+    }
+
+    private Supplier<Object> label2Roi(int size, int nbObjects) {
+        ImagePlus labels = new ImagePlus("labels", labels(size, nbObjects, 0.4));
+        return () -> CellposeLauncher.label2Roi(labels, 0, 0, 0);
+    }
+
+    /**
+     * association through {@link CytoDetector#prepare()}, which also computes the cytoplasms of the associated cells
+     */
+    private Supplier<Object> associateNucleiCell(int size, int nbObjects) {
+        ImageProcessor cells = labels(size, nbObjects, 0.45);
+        ImageProcessor nuclei = labels(size, nbObjects, 0.2);
+        Roi[] cellRois = CellposeLauncher.label2Roi(new ImagePlus("cells", cells), 0, 0, 0).getRoisAsArray();
+        Roi[] nucleiRois = CellposeLauncher.label2Roi(new ImagePlus("nuclei", nuclei), 0, 0, 0).getRoisAsArray();
+        ImagePlus image = new ImagePlus("cytoplasm", SyntheticImages.intensityImage(cells, 100, 1000, 20, SEED));
+        CytoDetector cytoDetector = new CytoDetector(image, "benchmark", cellRois, null, false, false, false, 0.5, 0);
+        cytoDetector.setNucleiRois(nucleiRois);
+        cytoDetector.setMeasureCalibration(new MeasureCalibration());
+        return () -> {
+            cytoDetector.prepare();
+            return cytoDetector;
+        };
+    }
+
+    private Supplier<Object> expandsMask2D(int size, int nbObjects) {
+        ImageProcessor nuclei = labels(size, nbObjects, 0.2);
+        int radius = Math.max(1, (int) Math.round(0.2 * SyntheticImages.spacing(size, size, nbObjects)));
+        return () -> ExpandMask.expandsMask(nuclei, radius);
+    }
+
+    private Supplier<Object> expandsMask3D(int size, int nbObjects) {
+        double spacing = SyntheticImages.spacing(size, size, nbObjects);
+        ImageStack nuclei = SyntheticImages.labelStack(size, size, depth, nbObjects, 0.2 * spacing, Math.max(1, depth / 4.0), SEED);
+        int radius = Math.max(1, (int) Math.round(0.2 * spacing));
+        return () -> ExpandMask.expandsMask(nuclei, radius, 1);
+    }
+
+    /**
+     * the objects crossing the overlaps of 4 tiles are detected twice, slightly shifted as by neighbouring tiles
+     */
+    private Supplier<Object> checkDuplicates(int size, int nbObjects) {
+        int overlap = Math.max(16, size / 16);
+        int tileSize = (size + overlap) / 2;
+        RoiCollection rois = CellposeLauncher.label2Roi(new ImagePlus("labels", labels(size, nbObjects, 0.4)), 0, 0, 0);
+        int step = tileSize - overlap;
+        for (int i = rois.getCount() - 1; i >= 0; i--) {
+            Roi roi = rois.getRoi(i);
+            Rectangle r = roi.getBounds();
+            boolean crossX = r.x < step + overlap && r.x + r.width > step;
+            boolean crossY = r.y < step + overlap && r.y + r.height > step;
+            if (crossX || crossY) {
+                Roi duplicate = (Roi) roi.clone();
+                duplicate.setLocation(r.x + 1, r.y + 1);
+                rois.addRoi(duplicate);
+            }
+        }
+        CellposeLauncher launcher = new CellposeLauncher(new ImagePlus("image", new ShortProcessor(size, size)), 30, 0.0, "cyto2", false);
+        launcher.setTiling(tileSize, overlap, 1);
+        return () -> {
+            launcher.checkDuplicates(rois);
+            return rois;
+        };
+    }
+
+    /**
+     * the label image cut in 4 overlapping tiles, as given by Cellpose on tiled images, stitched back
+     */
+    private Supplier<Object> stitchTiles(int size, int nbObjects) {
+        int overlap = Math.max(16, size / 16);
+        int tileSize = (size + overlap) / 2;
+        ImageProcessor labels = labels(size, nbObjects, 0.4);
+        ImageStack tiles = new ImageStack(tileSize, tileSize);
+        int step = tileSize - overlap;
+        for (int y = 0; y < size - overlap; y += step) {
+            for (int x = 0; x < size - overlap; x += step) {
+                labels.setRoi(x, y, tileSize, tileSize);
+                ImageProcessor tile = labels.crop();
+                if (tile.getWidth() != tileSize || tile.getHeight() != tileSize) {
+                    ImageProcessor full = tile.createProcessor(tileSize, tileSize);
+                    full.insert(tile, 0, 0);
+                    tile = full;
+                }
+                tiles.addSlice("", tile);
+            }
+        }
+        return () -> TileStitcher.stitch(tiles, size, size, overlap, TileStitcher.MIN_IOU);
+    }
+
+    /**
+     * spots detected by threshold and find maxima in each cell, as done by the measure of cells
+     */
+    private Supplier<Object> analysisPerRegion(int size, int nbObjects) {
+        ImageProcessor cells = labels(size, nbObjects, 0.45);
+        ImageProcessor image = SyntheticImages.intensityImage(cells, 100, 300, 20, SEED);
+        SyntheticImages.addSpots(image, cells, nbObjects * 5, 1.5, 2000, SEED);
+        SpotDetector spot = new SpotDetector(new ImagePlus("spots", image), "benchmark");
+        spot.setMeasureCalibration(new MeasureCalibration());
+        spot.setSpotByThreshold("Li", 2, false, true, false);
+        spot.setSpotByFindMaxima(500, false);
+        spot.prepare();
+        Roi[] cellRois = CellposeLauncher.label2Roi(new ImagePlus("cells", cells), 0, 0, 0).getRoisAsArray();
+        return () -> {
+            ResultsTable results = new ResultsTable();
+            ResultsTable spots = new ResultsTable();
+            for (int i = 0; i < cellRois.length; i++) {
+                results.incrementCounter();
+                spot.analysisPerRegion(i + 1, cellRois[i], results, "Cell", spots);
+            }
+            return spots;
+        };
+    }
+
+    /**
+     * summary of a cells table of nbObjects rows per field of view, the size is not used
+     */
+    private Supplier<Object> summarize(int size, int nbObjects) {
+        ResultsTable results = new ResultsTable();
+        Random random = new Random(SEED);
+        for (int f = 0; f < nbFieldsSummary; f++) {
+            for (int i = 0; i < nbObjects; i++) {
+                results.incrementCounter();
+                results.addValue("Name experiment", "field" + f);
+                results.addValue("Cell ID", i + 1);
+                results.addValue("Cell Area", 200 + random.nextGaussian() * 20);
+                results.addValue("Cell Mean", 1000 + random.nextGaussian() * 100);
+                results.addValue("Cell RawIntDen", 200000 + random.nextGaussian() * 20000);
+                results.addValue("Cell threshold spots nr.", random.nextInt(10));
+            }
+        }
+        return () -> {
+            ResultsTable summary = new ResultsTable();
+            SummarizeResults.summarize(summary, results, 0);
+            return summary;
+        };
+    }
+}
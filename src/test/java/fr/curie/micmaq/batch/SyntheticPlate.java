@@ -0,0 +1,281 @@
+package fr.curie.micmaq.batch;
+
+import fr.curie.micmaq.helpers.SyntheticImages;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Macro;
+import ij.measure.Calibration;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Synthetic plate to measure the analysis at scale without acquired data, from the command line
+ * - one multi-channel TIFF per field of view, read directly by FieldOfViewProvider.parseDirectory:
+ *   C1 nuclei, C2 cells (nuclei are inside the cells), then one channel of gaussian foci per spot channel
+ * - the ground truth is written in the GroundTruth subdirectory (not parsed as images):
+ *   label images of nuclei and cells per field, spots.csv with every focus and fields.csv with the counts per field
+ * - for example:
+ * <pre>
+ * java -Djava.awt.headless=true -cp target/test-classes:target/classes:... fr.curie.micmaq.batch.SyntheticPlate directory=/tmp/plate rows=2 columns=3 fields=4
+ *      width=1024 height=1024 depth=5 objects=150 spots=4 spotChannels=2 noise=20 seed=7
+ * </pre>
+ * - file names have no varying numbers (wells and fields are named with letters): the directory is parsed with
+ *   groupFiles=true and Bio-Formats would group files whose names only differ by numbers into one dataset
+ */
+public class SyntheticPlate {
+    public static final String GROUND_TRUTH = "GroundTruth";
+
+    String prefix = "synthetic";
+    int rows = 2;
+    int columns = 3;
+    int fields = 2;
+    int width = 1024;
+    int height = 1024;
+    int depth = 1;
+    int nbObjects = 100;
+    int nbSpotChannels = 1;
+    double spotsPerCell = 5;
+    double background = 100;
+    double noise = 20;
+    double pixelSize = 0.2;
+    long seed = 1;
+
+    public static void main(String[] args) {
+        if (System.getProperty("java.awt.headless") == null) System.setProperty("java.awt.headless", "true");
+        String options = MicMaqBatch.options(args);
+        String directory = Macro.getValue(options, "directory", null);
+        if (directory == null) {
+            System.out.println("usage: SyntheticPlate directory=<output> [rows=<n>] [columns=<n>] [fields=<n per well>]"
+                    + " [width=<px>] [height=<px>] [depth=<slices>] [objects=<cells per field> | density=<cells per megapixel>]"
+                    + " [spotChannels=<n>] [spots=<mean per cell>] [background=<value>] [noise=<sd>] [pixelSize=<um>] [seed=<n>] [prefix=<name>]");
+            System.exit(2);
+        }
+        SyntheticPlate plate = new SyntheticPlate();
+        plate.setOptions(options);
+        System.exit(plate.write(directory) ? 0 : 1);
+    }
+
+    public void setOptions(String options) {
+        prefix = Macro.getValue(options, "prefix", prefix);
+        rows = Integer.parseInt(Macro.getValue(options, "rows", "" + rows));
+        columns = Integer.parseInt(Macro.getValue(options, "columns", "" + columns));
+        fields = Integer.parseInt(Macro.getValue(options, "fields", "" + fields));
+        width = Integer.parseInt(Macro.getValue(options, "width", "" + width));
+        height = Integer.parseInt(Macro.getValue(options, "height", "" + height));
+        depth = Math.max(1, Integer.parseInt(Macro.getValue(options, "depth", "" + depth)));
+        nbObjects = Integer.parseInt(Macro.getValue(options, "objects", "" + nbObjects));
+        String density = Macro.getValue(options, "density", null);
+        if (density != null) nbObjects = (int) Math.round(Double.parseDouble(density) * width * (double) height / 1e6);
+        nbObjects = Math.max(1, Math.min(nbObjects, 65535));
+        nbSpotChannels = Math.max(0, Integer.parseInt(Macro.getValue(options, "spotChannels", "" + nbSpotChannels)));
+        spotsPerCell = Double.parseDouble(Macro.getValue(options, "spots", "" + spotsPerCell));
+        background = Double.parseDouble(Macro.getValue(options, "background", "" + background));
+        noise = Double.parseDouble(Macro.getValue(options, "noise", "" + noise));
+        pixelSize = Double.parseDouble(Macro.getValue(options, "pixelSize", "" + pixelSize));
+        seed = Long.parseLong(Macro.getValue(options, "seed", "" + seed));
+    }
+
+    /**
+     * @param index index in range [0,...]
+     * @param first first letter ('a' or 'A')
+     * @return a, b ... z, aa, ab ...
+     */
+    static String letters(int index, char first) {
+        StringBuilder result = new StringBuilder();
+        do {
+            result.insert(0, (char) (first + index % 26));
+            index = index / 26 - 1;
+        } while (index >= 0);
+        return result.toString();
+    }
+
+    /**
+     * write all the fields of view of the plate and their ground truth
+     * @param directory output directory (created if needed)
+     * @return false if a file could not be written
+     */
+    public boolean write(String directory) {
+        File groundTruth = new File(directory, GROUND_TRUTH);
+        if (!groundTruth.exists() && !groundTruth.mkdirs()) {
+            IJ.log("the directory " + groundTruth + " could not be created");
+            return false;
+        }
+        int nbFields = rows * columns * fields;
+        IJ.log("synthetic plate: " + nbFields + " field(s) of view of " + width + "x" + height + "x" + depth
+                + " with " + nbObjects + " cells and " + (2 + nbSpotChannels) + " channels in " + directory);
+        try (PrintWriter spots = new PrintWriter(new BufferedWriter(new FileWriter(new File(groundTruth, "spots.csv"))));
+             PrintWriter counts = new PrintWriter(new BufferedWriter(new FileWriter(new File(groundTruth, "fields.csv"))))) {
+            spots.println("field,channel,cell,in_nucleus,x,y,z");
+            counts.print("field,nuclei,cells");
+            for (int s = 0; s < nbSpotChannels; s++) counts.print(",spots_C" + (s + 3));
+            counts.println();
+            int index = 0;
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < columns; c++) {
+                    for (int f = 0; f < fields; f++) {
+                        String name = prefix + "_" + letters(r, 'A') + letters(c, 'a') + "_f" + letters(f, 'a');
+                        int[] nbSpots = writeField(directory, name, seed * 1000003L + index, spots);
+                        if (nbSpots == null) return false;
+                        counts.print(name + "," + nbObjects + "," + nbObjects);
+                        for (int n : nbSpots) counts.print("," + n);
+                        counts.println();
+                        index++;
+                        IJ.log("field of view " + index + "/" + nbFields + ": " + name);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            IJ.log("the ground truth could not be written in " + groundTruth);
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param fieldSeed seed of the field of view
+     * @param spots ground truth of the spots
+     * @return number of spots per spot channel, null if the images could not be saved
+     */
+    private int[] writeField(String directory, String name, long fieldSeed, PrintWriter spots) {
+        Random random = new Random(fieldSeed);
+        double spacing = SyntheticImages.spacing(width, height, nbObjects);
+        double[][] centres = SyntheticImages.centres(width, height, nbObjects, fieldSeed);
+        double nucleusRadiusZ = Math.max(1, depth / 5.0);
+        double cellRadiusZ = Math.max(1.5, depth / 3.0);
+        ImageStack nuclei = emptyStack();
+        ImageStack cells = emptyStack();
+        double[] cellRadius = new double[nbObjects];
+        double[] zCentre = new double[nbObjects];
+        for (int i = 0; i < nbObjects; i++) {
+            double nucleusRadius = 0.22 * spacing * (1 + 0.1 * random.nextGaussian());
+            cellRadius[i] = Math.min(0.49 * spacing, 0.45 * spacing * (1 + 0.05 * random.nextGaussian()));
+            zCentre[i] = (depth == 1) ? 0 : Math.max(0, Math.min(depth - 1, (depth - 1) / 2.0 + random.nextGaussian() * depth / 10.0));
+            SyntheticImages.drawSphere(cells, centres[i][0], centres[i][1], zCentre[i], cellRadius[i], cellRadiusZ, i + 1);
+            SyntheticImages.drawSphere(nuclei, centres[i][0], centres[i][1], zCentre[i], Math.max(1, nucleusRadius), nucleusRadiusZ, i + 1);
+        }
+        FloatProcessor[][] channels = new FloatProcessor[2 + nbSpotChannels][];
+        channels[0] = signal(nuclei, background + 1200);
+        channels[1] = signal(cells, background + 500);
+        int[] nbSpots = new int[nbSpotChannels];
+        for (int s = 0; s < nbSpotChannels; s++) {
+            channels[2 + s] = signal(cells, background + 150);
+            for (int i = 0; i < nbObjects; i++) {
+                int n = poisson(spotsPerCell, random);
+                for (int k = 0; k < n; k++) {
+                    double radius = Math.sqrt(random.nextDouble()) * 0.8 * cellRadius[i];
+                    double angle = random.nextDouble() * 2 * Math.PI;
+                    double x = centres[i][0] + radius * Math.cos(angle);
+                    double y = centres[i][1] + radius * Math.sin(angle);
+                    double z = (depth == 1) ? 0 : Math.max(0, Math.min(depth - 1, zCentre[i] + (random.nextDouble() - 0.5) * cellRadiusZ));
+                    int xi = (int) Math.round(x);
+                    int yi = (int) Math.round(y);
+                    int zi = (int) Math.round(z);
+                    if (xi < 0 || yi < 0 || xi >= width || yi >= height) continue;
+                    addFocus(channels[2 + s], x, y, z, 1.5, 1.0, 1500 + 300 * random.nextGaussian());
+                    boolean inNucleus = nuclei.getProcessor(zi + 1).get(xi, yi) == i + 1;
+                    spots.println(name + "," + (3 + s) + "," + (i + 1) + "," + (inNucleus ? 1 : 0) + ","
+                            + String.format(Locale.US, "%.2f,%.2f,%.2f", x, y, z));
+                    nbSpots[s]++;
+                }
+            }
+        }
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            for (int c = 0; c < channels.length; c++) {
+                FloatProcessor fp = channels[c][z];
+                for (int p = 0; p < fp.getPixelCount(); p++) fp.setf(p, fp.getf(p) + (float) (random.nextGaussian() * noise));
+                stack.addSlice("c" + (c + 1) + "z" + (z + 1), fp.convertToShortProcessor(false));
+            }
+        }
+        ImagePlus image = new ImagePlus(name, stack);
+        image.setDimensions(channels.length, depth, 1);
+        image.setOpenAsHyperStack(true);
+        image.setCalibration(calibration());
+        ImagePlus nucleiLabels = new ImagePlus(name + "_nuclei", nuclei);
+        nucleiLabels.setCalibration(calibration());
+        ImagePlus cellLabels = new ImagePlus(name + "_cells", cells);
+        cellLabels.setCalibration(calibration());
+        String groundTruth = directory + File.separator + GROUND_TRUTH + File.separator;
+        if (!IJ.saveAsTiff(image, directory + File.separator + name + ".tif")
+                || !IJ.saveAsTiff(nucleiLabels, groundTruth + name + "_nuclei.tif")
+                || !IJ.saveAsTiff(cellLabels, groundTruth + name + "_cells.tif")) {
+            IJ.log("the images of " + name + " could not be saved in " + directory);
+            return null;
+        }
+        return nbSpots;
+    }
+
+    private ImageStack emptyStack() {
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) stack.addSlice(new ShortProcessor(width, height));
+        return stack;
+    }
+
+    private Calibration calibration() {
+        Calibration calibration = new Calibration();
+        calibration.pixelWidth = pixelSize;
+        calibration.pixelHeight = pixelSize;
+        calibration.pixelDepth = pixelSize * 2.5;
+        calibration.setUnit("micron");
+        return calibration;
+    }
+
+    /**
+     * intensity of objects of a label stack, blurred as by the optics
+     * @param labels label stack
+     * @param signal value inside the objects
+     * @return one image per slice (noise is added when saving)
+     */
+    private FloatProcessor[] signal(ImageStack labels, double signal) {
+        FloatProcessor[] result = new FloatProcessor[labels.getSize()];
+        GaussianBlur blur = new GaussianBlur();
+        for (int z = 0; z < labels.getSize(); z++) {
+            ImageProcessor ip = labels.getProcessor(z + 1);
+            FloatProcessor fp = new FloatProcessor(width, height);
+            for (int p = 0; p < fp.getPixelCount(); p++) fp.setf(p, (float) ((ip.get(p) > 0) ? signal : background));
+            blur.blurGaussian(fp, 1.0, 1.0, 0.01);
+            result[z] = fp;
+        }
+        return result;
+    }
+
+    /**
+     * add a 3D gaussian focus to the slices of a channel
+     */
+    private void addFocus(FloatProcessor[] slices, double x, double y, double z, double sigmaXY, double sigmaZ, double amplitude) {
+        int extent = (int) Math.ceil(3 * sigmaXY);
+        int extentZ = (depth == 1) ? 0 : (int) Math.ceil(3 * sigmaZ);
+        for (int zz = Math.max(0, (int) z - extentZ); zz <= Math.min(depth - 1, (int) z + extentZ + 1); zz++) {
+            double dz2 = (depth == 1) ? 0 : (zz - z) * (zz - z) / (2 * sigmaZ * sigmaZ);
+            for (int yy = Math.max(0, (int) y - extent); yy <= Math.min(height - 1, (int) y + extent + 1); yy++) {
+                for (int xx = Math.max(0, (int) x - extent); xx <= Math.min(width - 1, (int) x + extent + 1); xx++) {
+                    double d2 = ((xx - x) * (xx - x) + (yy - y) * (yy - y)) / (2 * sigmaXY * sigmaXY);
+                    slices[zz].setf(xx, yy, (float) (slices[zz].getf(xx, yy) + amplitude * Math.exp(-d2 - dz2)));
+                }
+            }
+        }
+    }
+
+    private static int poisson(double mean, Random random) {
+        double limit = Math.exp(-mean);
+        double product = random.nextDouble();
+        int n = 0;
+        while (product > limit) {
+            product *= random.nextDouble();
+            n++;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,166 @@
+package fr.curie.micmaq.helpers;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Random;
+
+/**
+ * Synthetic images with known objects, to measure the analysis without acquired data
+ * - the objects are disks (spheres in 3D) centred on a jittered grid, so that their number and size are controlled
+ * - the same seed gives the same centres: images of nuclei and of cells can be made with different sizes of objects
+ * - the intensity images are made from label images with gaussian noise
+ */
+public class SyntheticImages {
+
+    /**
+     * @param nbObjects number of objects
+     * @return centres (x,y) of the objects on a jittered grid covering the image
+     */
+    public static double[][] centres(int width, int height, int nbObjects, long seed) {
+        Random random = new Random(seed);
+        int columns = Math.max(1, (int) Math.ceil(Math.sqrt(nbObjects * (double) width / height)));
+        int rows = Math.max(1, (int) Math.ceil(nbObjects / (double) columns));
+        double cellWidth = width / (double) columns;
+        double cellHeight = height / (double) rows;
+        double[][] result = new double[nbObjects][2];
+        for (int i = 0; i < nbObjects; i++) {
+            result[i][0] = (i % columns + 0.5 + (random.nextDouble() - 0.5) * 0.2) * cellWidth;
+            result[i][1] = (i / columns + 0.5 + (random.nextDouble() - 0.5) * 0.2) * cellHeight;
+        }
+        return result;
+    }
+
+    /**
+     * @return spacing of the grid of the centres, the objects do not touch if their radius is below half of it
+     */
+    public static double spacing(int width, int height, int nbObjects) {
+        return Math.sqrt(width * (double) height / Math.max(1, nbObjects));
+    }
+
+    /**
+     * label image of disks, label i+1 for object i
+     * @param radius radius of disks in pixels
+     */
+    public static ShortProcessor labelImage(int width, int height, int nbObjects, double radius, long seed) {
+        ShortProcessor labels = new ShortProcessor(width, height);
+        double[][] centres = centres(width, height, nbObjects, seed);
+        for (int i = 0; i < nbObjects; i++) {
+            int label = Math.min(i + 1, 65535);
+            drawDisk(labels, centres[i][0], centres[i][1], radius, label);
+        }
+        return labels;
+    }
+
+    /**
+     * label stack of spheres, label i+1 for object i, centred in the middle slice
+     * @param radiusXY radius of spheres in pixels
+     * @param radiusZ radius of spheres in slices
+     */
+    public static ImageStack labelStack(int width, int height, int depth, int nbObjects, double radiusXY, double radiusZ, long seed) {
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) stack.addSlice(new ShortProcessor(width, height));
+        double[][] centres = centres(width, height, nbObjects, seed);
+        Random random = new Random(seed);
+        for (int i = 0; i < nbObjects; i++) {
+            int label = Math.min(i + 1, 65535);
+            double zc = (depth - 1) / 2.0 + (random.nextDouble() - 0.5) * Math.max(0, depth - 2 * radiusZ);
+            drawSphere(stack, centres[i][0], centres[i][1], zc, radiusXY, radiusZ, label);
+        }
+        return stack;
+    }
+
+    /**
+     * draw an ellipsoid in a stack (a disk if the stack has one slice)
+     * @param zc centre in slices, in range [0,depth-1]
+     * @param radiusXY radius in pixels
+     * @param radiusZ radius in slices
+     * @param value value of the pixels of the ellipsoid
+     */
+    public static void drawSphere(ImageStack stack, double xc, double yc, double zc, double radiusXY, double radiusZ, int value) {
+        if (stack.getSize() == 1) {
+            drawDisk(stack.getProcessor(1), xc, yc, radiusXY, value);
+            return;
+        }
+        for (int z = 0; z < stack.getSize(); z++) {
+            double dz = (z - zc) / radiusZ;
+            if (dz * dz >= 1) continue;
+            drawDisk(stack.getProcessor(z + 1), xc, yc, radiusXY * Math.sqrt(1 - dz * dz), value);
+        }
+    }
+
+    /**
+     * draw a disk in an image
+     * @param radius radius in pixels
+     * @param value value of the pixels of the disk
+     */
+    public static void drawDisk(ImageProcessor ip, double xc, double yc, double radius, int value) {
+        int xmin = Math.max(0, (int) Math.floor(xc - radius));
+        int xmax = Math.min(ip.getWidth() - 1, (int) Math.ceil(xc + radius));
+        int ymin = Math.max(0, (int) Math.floor(yc - radius));
+        int ymax = Math.min(ip.getHeight() - 1, (int) Math.ceil(yc + radius));
+        double r2 = radius * radius;
+        for (int y = ymin; y <= ymax; y++) {
+            for (int x = xmin; x <= xmax; x++) {
+                double dx = x - xc;
+                double dy = y - yc;
+                if (dx * dx + dy * dy <= r2) ip.set(x, y, value);
+            }
+        }
+    }
+
+    /**
+     * intensity image from labels: background outside the objects, signal inside, plus gaussian noise
+     * @param labels label image
+     * @param background mean value outside the objects
+     * @param signal mean value inside the objects
+     * @param noise standard deviation of noise
+     */
+    public static ShortProcessor intensityImage(ImageProcessor labels, double background, double signal, double noise, long seed) {
+        Random random = new Random(seed);
+        ShortProcessor result = new ShortProcessor(labels.getWidth(), labels.getHeight());
+        for (int i = 0; i < labels.getPixelCount(); i++) {
+            double value = ((labels.get(i) > 0) ? signal : background) + random.nextGaussian() * noise;
+            result.set(i, (int) Math.max(0, Math.min(65535, Math.round(value))));
+        }
+        return result;
+    }
+
+    /**
+     * add gaussian spots at random positions inside the objects of a label image
+     * @param image intensity image to modify
+     * @param labels label image of objects (spots are only placed on pixels with a label)
+     * @param nbSpots number of spots to add
+     * @param sigma standard deviation of spots in pixels
+     * @param amplitude maximum intensity added by a spot
+     * @return positions (x,y) of the spots added
+     */
+    public static int[][] addSpots(ImageProcessor image, ImageProcessor labels, int nbSpots, double sigma, double amplitude, long seed) {
+        Random random = new Random(seed);
+        int[][] positions = new int[nbSpots][2];
+        int added = 0;
+        for (int attempt = 0; added < nbSpots && attempt < nbSpots * 100; attempt++) {
+            int x = random.nextInt(image.getWidth());
+            int y = random.nextInt(image.getHeight());
+            if (labels.get(x, y) == 0) continue;
+            int extent = (int) Math.ceil(3 * sigma);
+            for (int yy = Math.max(0, y - extent); yy <= Math.min(image.getHeight() - 1, y + extent); yy++) {
+                for (int xx = Math.max(0, x - extent); xx <= Math.min(image.getWidth() - 1, x + extent); xx++) {
+                    double d2 = (xx - x) * (xx - x) + (yy - y) * (yy - y);
+                    double value = image.getf(xx, yy) + amplitude * Math.exp(-d2 / (2 * sigma * sigma));
+                    image.setf(xx, yy, (float) Math.min(65535, value));
+                }
+            }
+            positions[added][0] = x;
+            positions[added][1] = y;
+            added++;
+        }
+        if (added < nbSpots) {
+            int[][] tmp = new int[added][];
+            System.arraycopy(positions, 0, tmp, 0, added);
+            positions = tmp;
+        }
+        return positions;
+    }
+}